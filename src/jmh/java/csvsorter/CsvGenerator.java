@@ -0,0 +1,197 @@
+package csvsorter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * generates csv inputs for the benchmarks. the same parameters always generate the same rows, so results of
+ * different versions are compared on the same data.
+ * every row has 5 fields, and the sorting key is at {@link #KEY_INDEX}:
+ * the row number, a random word, the key, a quoted field with a comma in it, and a filler up to the row width.
+ * <p>
+ * the keys are taken from keyCardinality distinct values. presortedness decides their order:
+ * 1 - the keys are sorted, 0 - the keys are random, -1 - the keys are sorted in reverse.
+ * in between, every key is the sorted (or reversed) key with that probability, and a random key otherwise.
+ * <p>
+ * large inputs are generated to a file by the main method:
+ * <pre>
+ * java -cp target/benchmarks.jar csvsorter.CsvGenerator output.csv rows [rowWidth keyCardinality keyType presortedness seed]
+ * </pre>
+ */
+public class CsvGenerator {
+
+    /**
+     * the index of the sorting key in the generated rows
+     */
+    public static final int KEY_INDEX = 2;
+
+    public static final long DEFAULT_SEED = 42;
+
+    /**
+     * the types of the generated keys. they are all compared as strings by the sorter, so only the
+     * zero padded strings and the dates are generated in the order of their values
+     */
+    public enum KeyType {
+        /**
+         * zero padded letters, "key-aaab"
+         */
+        STRING,
+        /**
+         * signed integers, "-1234"
+         */
+        INTEGER,
+        /**
+         * signed decimals with 2 digits after the point, "-12.34"
+         */
+        DECIMAL,
+        /**
+         * iso dates, "2001-02-03"
+         */
+        DATE
+    }
+
+    private static final LocalDate FIRST_DATE = LocalDate.of(1970, 1, 1);
+    private static final String[] WORDS = {"alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel"};
+
+    private final long rows;
+    private final int rowWidth;
+    private final long keyCardinality;
+    private final KeyType keyType;
+    private final double presortedness;
+    private final long seed;
+    private final int keyLetters;
+
+    /**
+     * @param rows           - number of rows
+     * @param rowWidth       - length of every row, rows are longer only if their fields don't fit in it
+     * @param keyCardinality - number of distinct keys
+     * @param keyType        - the type of the keys
+     * @param presortedness  - from -1 (reverse sorted) through 0 (random) to 1 (sorted)
+     * @param seed           - the seed of the random values
+     */
+    public CsvGenerator(long rows, int rowWidth, long keyCardinality, KeyType keyType, double presortedness, long seed) {
+        if (rows < 0 || rowWidth < 0 || keyCardinality <= 0 || presortedness < -1 || presortedness > 1) {
+            throw new IllegalArgumentException("rows and row width can't be negative, key cardinality must be positive"
+                    + " and presortedness must be between -1 and 1");
+        }
+        this.rows = rows;
+        this.rowWidth = rowWidth;
+        this.keyCardinality = keyCardinality;
+        this.keyType = keyType;
+        this.presortedness = presortedness;
+        this.seed = seed;
+        int letters = 1;
+        for (long values = 26; values < keyCardinality; values *= 26) {
+            letters++;
+        }
+        this.keyLetters = letters;
+    }
+
+    /**
+     * @param rows           - number of rows
+     * @param rowWidth       - length of every row
+     * @param keyCardinality - number of distinct keys
+     * @param keyType        - the type of the keys
+     * @param presortedness  - from -1 (reverse sorted) through 0 (random) to 1 (sorted)
+     */
+    public CsvGenerator(long rows, int rowWidth, long keyCardinality, KeyType keyType, double presortedness) {
+        this(rows, rowWidth, keyCardinality, keyType, presortedness, DEFAULT_SEED);
+    }
+
+    /**
+     * @return all the rows, for inputs that fit in memory
+     */
+    public List<String> lines() {
+        if (rows > Integer.MAX_VALUE) {
+            throw new IllegalStateException(rows + " rows don't fit in a list");
+        }
+        List<String> lines = new ArrayList<>((int) rows);
+        SplittableRandom random = new SplittableRandom(seed);
+        StringBuilder row = new StringBuilder(rowWidth);
+        for (long i = 0; i < rows; i++) {
+            lines.add(row(i, random, row));
+        }
+        return lines;
+    }
+
+    /**
+     * @param file - the file to write the rows to, one row per line
+     */
+    public void write(Path file) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        StringBuilder row = new StringBuilder(rowWidth);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (long i = 0; i < rows; i++) {
+                writer.write(row(i, random, row));
+                writer.write('\n');
+            }
+        }
+    }
+
+    private String row(long rowNumber, SplittableRandom random, StringBuilder row) {
+        row.setLength(0);
+        row.append(rowNumber).append(',')
+                .append(WORDS[random.nextInt(WORDS.length)]).append(',')
+                .append(key(rowNumber, random)).append(',')
+                .append('"').append(WORDS[random.nextInt(WORDS.length)]).append(", ")
+                .append(WORDS[random.nextInt(WORDS.length)]).append('"').append(',');
+        while (row.length() < rowWidth) {
+            row.append((char) ('a' + random.nextInt(26)));
+        }
+        return row.toString();
+    }
+
+    private String key(long rowNumber, SplittableRandom random) {
+        long ordinal;
+        if (random.nextDouble() < Math.abs(presortedness)) {
+            long position = presortedness > 0 ? rowNumber : rows - 1 - rowNumber;
+            ordinal = (long) ((double) position / rows * keyCardinality);
+        } else {
+            ordinal = random.nextLong(keyCardinality);
+        }
+        switch (keyType) {
+            case INTEGER:
+                return Long.toString(ordinal - keyCardinality / 2);
+            case DECIMAL:
+                long cents = ordinal - keyCardinality / 2;
+                return (cents < 0 ? "-" : "") + Math.abs(cents) / 100 + "." + String.format("%02d", Math.abs(cents) % 100);
+            case DATE:
+                return FIRST_DATE.plusDays(ordinal).toString();
+            default:
+                char[] letters = new char[keyLetters];
+                for (int i = keyLetters - 1; i >= 0; i--) {
+                    letters[i] = (char) ('a' + ordinal % 26);
+                    ordinal /= 26;
+                }
+                return "key-" + new String(letters);
+        }
+    }
+
+    /**
+     * generate a csv file.
+     *
+     * @param args - output file, rows, and optionally row width (100), key cardinality (rows), key type (STRING),
+     *             presortedness (0) and seed (42)
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: CsvGenerator output rows [rowWidth keyCardinality keyType presortedness seed]");
+            return;
+        }
+        long rows = Long.parseLong(args[1]);
+        int rowWidth = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        long keyCardinality = args.length > 3 ? Long.parseLong(args[3]) : Math.max(1, rows);
+        KeyType keyType = args.length > 4 ? KeyType.valueOf(args[4].toUpperCase()) : KeyType.STRING;
+        double presortedness = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+        long seed = args.length > 6 ? Long.parseLong(args[6]) : DEFAULT_SEED;
+        new CsvGenerator(rows, rowWidth, keyCardinality, keyType, presortedness, seed).write(Paths.get(args[0]));
+    }
+}
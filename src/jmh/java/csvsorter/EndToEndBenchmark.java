@@ -0,0 +1,101 @@
+package csvsorter;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the whole sort of a generated file - the map and the reduce, as done by Main, in each of the sort modes.
+ * the input is generated once per trial, use -p rows=100000000 (and a large enough heap and disk) for big inputs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    @Param({"1000000"})
+    public long rows;
+
+    @Param({"100"})
+    public int rowWidth;
+
+    @Param({"0"})
+    public double presortedness;
+
+    @Param({"fixed", "ranges", "replacement", "binary", "lz4", "partitions"})
+    public String mode;
+
+    private File tempDir;
+    private String inputFile;
+    private String tempFilesDir;
+    private SortOptions options;
+
+    @Setup
+    public void generateInput() throws IOException {
+        tempDir = Files.createTempDirectory("csvsorter-end-to-end").toFile();
+        inputFile = new File(tempDir, "input.csv").getPath();
+        tempFilesDir = new File(tempDir, "temp").getPath() + File.separator;
+        new CsvGenerator(rows, rowWidth, rows, CsvGenerator.KeyType.STRING, presortedness).write(new File(inputFile).toPath());
+        options = sortOptions(mode);
+    }
+
+    @TearDown
+    public void deleteTempDir() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Benchmark
+    public String sort() throws IOException {
+        File tempFiles = new File(tempFilesDir);
+        FileUtils.forceMkdir(tempFiles);
+        FileUtils.cleanDirectory(tempFiles);
+        RunStorage runStorage = new RunStorage(options);
+        SortScheduler scheduler = new SortScheduler(options.getNumberOfWorkers());
+        new Mapper(options, runStorage, scheduler).map(inputFile, tempFilesDir);
+        return new Reducer(options, runStorage, scheduler).reduceRec(tempFilesDir, Constants.MAP_SUFFIX, 1);
+    }
+
+    private static SortOptions sortOptions(String mode) {
+        SortOptions.Builder builder = SortOptions.builder(CsvGenerator.KEY_INDEX);
+        switch (mode) {
+            case "fixed":
+                break;
+            case "ranges":
+                builder.inputSplitting(SortOptions.InputSplitting.BYTE_RANGES);
+                break;
+            case "replacement":
+                builder.runGeneration(SortOptions.RunGeneration.REPLACEMENT_SELECTION);
+                break;
+            case "binary":
+                builder.spillFormat(SpillFormat.BINARY);
+                break;
+            case "lz4":
+                builder.spillFormat(SpillFormat.BINARY).spillCompression(SpillCompression.LZ4);
+                break;
+            case "partitions":
+                builder.outputPartitions(Runtime.getRuntime().availableProcessors());
+                break;
+            default:
+                throw new IllegalArgumentException("unknown mode " + mode);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,65 @@
+package csvsorter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the time it takes to parse the sorting key of a single record - the cost that every record pays once in the map,
+ * and once more in every merge pass of text runs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyExtractionBenchmark {
+
+    private static final int ROWS = 10_000;
+
+    @Param({"100", "1000"})
+    public int rowWidth;
+
+    @Param({"STRING", "DATE"})
+    public CsvGenerator.KeyType keyType;
+
+    private List<String> lines;
+    private MapReduceWorkersBase worker;
+
+    @Setup
+    public void generateLines() {
+        lines = new CsvGenerator(ROWS, rowWidth, ROWS, keyType, 0).lines();
+        worker = new MapReduceWorkersBase();
+        worker.sortingKeyIndex = CsvGenerator.KEY_INDEX;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void getSortingKey(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(worker.getSortingKey(line));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void toKeyedRecord(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(worker.toKeyedRecord(line));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package csvsorter;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * merging sorted runs: a single k-way merge of all the runs (a 2-way merge with 2 runs),
+ * and the whole reduce, with as many passes as the fan-in needs.
+ * the same records are divided into more runs as the number of runs grows, so the results are comparable.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MergeBenchmark {
+
+    @Param({"500000"})
+    public int rows;
+
+    @Param({"2", "16", "64"})
+    public int numberOfRuns;
+
+    @Param({"4"})
+    public int fanIn;
+
+    @Param({"TEXT", "BINARY"})
+    public SpillFormat spillFormat;
+
+    @Param({"NONE", "LZ4"})
+    public SpillCompression spillCompression;
+
+    private SortOptions options;
+    private RunStorage runStorage;
+    private SortScheduler scheduler;
+    private File tempDir;
+    private List<String> runs;
+
+    @Setup
+    public void writeRuns() throws IOException {
+        options = SortOptions.builder(CsvGenerator.KEY_INDEX).fanIn(fanIn)
+                .spillFormat(spillFormat).spillCompression(spillCompression).build();
+        runStorage = new RunStorage(options);
+        scheduler = new SortScheduler(options.getNumberOfWorkers());
+        tempDir = Files.createTempDirectory("csvsorter-merge").toFile();
+        String tempFilesDir = tempDir.getPath() + File.separator;
+
+        List<String> lines = new CsvGenerator(rows, 100, rows, CsvGenerator.KeyType.STRING, 0).lines();
+        runs = new ArrayList<>(numberOfRuns);
+        for (int run = 0; run < numberOfRuns; run++) {
+            String runFile = Mapper.createMapFileName(run + 1, tempFilesDir);
+            List<String> part = new ArrayList<>(lines.subList(run * rows / numberOfRuns, (run + 1) * rows / numberOfRuns));
+            new SplitFileAndSortEachPartMapWorker(runFile, part, runStorage).run();
+            runs.add(runFile);
+        }
+    }
+
+    @TearDown
+    public void deleteTempDir() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Benchmark
+    public void singleMerge() throws IOException {
+        new MergeSortedPartsReduceWorker(runs, new File(tempDir, "merged").getPath(), runStorage, true).merge();
+    }
+
+    @Benchmark
+    public String reduce() throws IOException {
+        return new Reducer(options, runStorage, scheduler).reduceRec(tempDir.getPath() + File.separator,
+                Constants.MAP_SUFFIX, 1);
+    }
+}
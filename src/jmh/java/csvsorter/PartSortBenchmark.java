@@ -0,0 +1,82 @@
+package csvsorter;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the in memory sort of a single part, as done by a map worker - the sort alone, and the whole part:
+ * parsing the keys, sorting and writing the run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartSortBenchmark {
+
+    @Param({"10000", "100000"})
+    public int rows;
+
+    @Param({"0", "0.9"})
+    public double presortedness;
+
+    @Param({"TEXT", "BINARY"})
+    public SpillFormat spillFormat;
+
+    @Param({"RADIX", "PARALLEL_RADIX", "COMPARISON"})
+    public PartSort partSort;
+
+    private List<String> lines;
+    private KeyedRecord[] keyedRecords;
+    private SplitFileAndSortEachPartMapWorker sorter;
+    private RunStorage runStorage;
+    private File tempDir;
+    private String partFile;
+
+    @Setup
+    public void generatePart() throws IOException {
+        lines = new CsvGenerator(rows, 100, rows, CsvGenerator.KeyType.STRING, presortedness).lines();
+        tempDir = Files.createTempDirectory("csvsorter-part-sort").toFile();
+        partFile = new File(tempDir, "part1" + Constants.MAP_SUFFIX).getPath();
+        runStorage = new RunStorage(SortOptions.builder(CsvGenerator.KEY_INDEX).spillFormat(spillFormat)
+                .partSort(partSort).build());
+        sorter = new SplitFileAndSortEachPartMapWorker(partFile, new ArrayList<>(), runStorage);
+        keyedRecords = lines.stream().map(sorter::toKeyedRecord).toArray(KeyedRecord[]::new);
+    }
+
+    @TearDown
+    public void deleteTempDir() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Benchmark
+    public KeyedRecord[] sortKeyedRecords() {
+        KeyedRecord[] part = keyedRecords.clone();
+        partSort.sort(part);
+        return part;
+    }
+
+    @Benchmark
+    public void parseSortAndWritePart() {
+        new SplitFileAndSortEachPartMapWorker(partFile, new ArrayList<>(lines), runStorage).run();
+    }
+}
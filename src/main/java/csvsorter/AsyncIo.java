@@ -0,0 +1,65 @@
+package csvsorter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * the threads that read ahead and write behind the run files, see {@link ReadAheadInputStream} and
+ * {@link WriteBehindOutputStream}. every open run has at most one read or write in flight, so the threads are
+ * not bounded by the pool of the workers - a merge never waits for a slot of its own pool to read its runs.
+ */
+final class AsyncIo {
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    //a pool of daemon threads, idle threads end after a minute so the pool is never shut down
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "csvsorter-io-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private AsyncIo() {
+    }
+
+    /**
+     * @return the io threads of the process, shared by all the sorts and never shut down
+     */
+    static ExecutorService executor() {
+        return executor;
+    }
+
+    /**
+     * @param pending   - a read or a write in flight
+     * @param waitNanos - adds the time that the caller waited for it
+     * @return the result of the read or the write
+     * @throws IOException if it failed
+     */
+    static <T> T await(Future<T> pending, LongAdder waitNanos) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a run file");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException(cause);
+        } finally {
+            waitNanos.add(System.nanoTime() - start);
+        }
+    }
+}
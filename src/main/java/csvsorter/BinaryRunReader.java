@@ -0,0 +1,71 @@
+package csvsorter;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * reads a run that was written by a {@link BinaryRunWriter}. the keys are read as they were encoded,
+ * so records are compared without decoding or tokenizing them.
+ */
+class BinaryRunReader implements RunReader {
+
+    private final InputStream input;
+
+    /**
+     * @param input - the stream of the sorted run
+     */
+    BinaryRunReader(InputStream input) {
+        this.input = new BufferedInputStream(input, Constants.READ_BUFFER_SIZE);
+    }
+
+    @Override
+    public KeyedRecord next() throws IOException {
+        int keyLength = readVarInt(true);
+        if (keyLength < 0) {
+            return null;
+        }
+        byte[] key = readFully(keyLength);
+        byte[] record = readFully(readVarInt(false));
+        return new KeyedRecord(key, record);
+    }
+
+    /**
+     * @param endOfRunAllowed - true if the run may end before this varint, in which case -1 is returned
+     */
+    private int readVarInt(boolean endOfRunAllowed) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = input.read();
+            if (b < 0) {
+                if (endOfRunAllowed && shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("run ended in the middle of a record");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private byte[] readFully(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = input.read(bytes, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("run ended in the middle of a record");
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
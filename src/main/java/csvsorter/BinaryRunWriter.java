@@ -0,0 +1,52 @@
+package csvsorter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * writes a run of length prefixed records: the length of the encoded key, the encoded key,
+ * the length of the record and the utf-8 bytes of the record. the lengths are written as varints (7 bits per byte).
+ * a reader of this format gets the key as is, so it never parses the csv record again.
+ */
+class BinaryRunWriter implements RunWriter {
+
+    private final OutputStream output;
+    private long position;
+
+    /**
+     * @param output - the stream of the run that is being created
+     */
+    BinaryRunWriter(OutputStream output) {
+        this.output = new BufferedOutputStream(output, Constants.WRITE_BUFFER_SIZE);
+    }
+
+    @Override
+    public void write(KeyedRecord record) throws IOException {
+        writeVarInt(record.key.length);
+        output.write(record.key);
+        writeVarInt(record.record.length);
+        output.write(record.record);
+        position += record.key.length + record.record.length;
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+            position++;
+        }
+        output.write(value);
+        position++;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+}
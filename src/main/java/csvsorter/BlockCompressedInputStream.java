@@ -0,0 +1,168 @@
+package csvsorter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * reads a stream that was written by a {@link BlockCompressedOutputStream}, one block at a time.
+ */
+class BlockCompressedInputStream extends InputStream {
+
+    private final InputStream input;
+    private final SpillCompression.BlockCodec codec;
+    private final CompressionStats stats;
+    private byte[] block = new byte[0];
+    private byte[] compressedBlock = new byte[0];
+    private int blockLength;
+    private int position;
+
+    /**
+     * @param input       - the stream of the run file
+     * @param compression - the codec the blocks were compressed with
+     * @param stats       - the statistics of the sort
+     */
+    BlockCompressedInputStream(InputStream input, SpillCompression compression, CompressionStats stats) {
+        this.input = input;
+        if (!compression.compresses()) {
+            throw new IllegalArgumentException(compression + " runs aren't compressed in blocks");
+        }
+        this.codec = compression.newCodec();
+        this.stats = stats;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == blockLength && !readBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == blockLength && !readBlock()) {
+            return -1;
+        }
+        int copied = Math.min(length, blockLength - position);
+        System.arraycopy(block, position, bytes, offset, copied);
+        position += copied;
+        return copied;
+    }
+
+    /**
+     * skip whole blocks by their headers, without reading or decompressing them
+     */
+    @Override
+    public long skip(long length) throws IOException {
+        long skipped = 0;
+        while (skipped < length) {
+            if (position == blockLength) {
+                int uncompressedLength = readInt(true);
+                if (uncompressedLength < 0) {
+                    break;
+                }
+                int storedLength = readInt(false);
+                if (uncompressedLength <= length - skipped) {
+                    skipFully(storedLength);
+                    skipped += uncompressedLength;
+                    continue;
+                }
+                readBlock(uncompressedLength, storedLength);
+            }
+            int skippedInBlock = (int) Math.min(length - skipped, blockLength - position);
+            position += skippedInBlock;
+            skipped += skippedInBlock;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return blockLength - position;
+    }
+
+    /**
+     * @return false if the stream ended
+     */
+    private boolean readBlock() throws IOException {
+        int uncompressedLength = readInt(true);
+        if (uncompressedLength < 0) {
+            return false;
+        }
+        readBlock(uncompressedLength, readInt(false));
+        return true;
+    }
+
+    private void readBlock(int uncompressedLength, int storedLength) throws IOException {
+        long start = System.nanoTime();
+        if (block.length < uncompressedLength) {
+            block = new byte[uncompressedLength];
+        }
+        boolean stored = storedLength == uncompressedLength;
+        if (!stored && compressedBlock.length < storedLength) {
+            compressedBlock = new byte[storedLength];
+        }
+        readFully(stored ? block : compressedBlock, storedLength);
+        long read = System.nanoTime();
+        if (!stored) {
+            codec.decompress(compressedBlock, storedLength, block, uncompressedLength);
+        }
+        stats.readNanos.add(read - start);
+        stats.decompressNanos.add(System.nanoTime() - read);
+
+        blockLength = uncompressedLength;
+        position = 0;
+    }
+
+    /**
+     * @param endOfStreamAllowed - true if the stream may end before this int, in which case -1 is returned
+     */
+    private int readInt(boolean endOfStreamAllowed) throws IOException {
+        int value = 0;
+        for (int i = 0; i < Integer.BYTES; i++) {
+            int b = input.read();
+            if (b < 0) {
+                if (endOfStreamAllowed && i == 0) {
+                    return -1;
+                }
+                throw new EOFException("compressed run ended in the middle of a block header");
+            }
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private void readFully(byte[] bytes, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = input.read(bytes, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("compressed run ended in the middle of a block");
+            }
+            offset += read;
+        }
+    }
+
+    private void skipFully(long length) throws IOException {
+        while (length > 0) {
+            long skipped = input.skip(length);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new EOFException("compressed run ended in the middle of a block");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        codec.close();
+        input.close();
+    }
+}
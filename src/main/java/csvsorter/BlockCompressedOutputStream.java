@@ -0,0 +1,104 @@
+package csvsorter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * compresses a stream in independent blocks. every block is framed by its uncompressed length and its stored length,
+ * followed by the stored bytes. a block that doesn't get smaller is stored as is (stored length = uncompressed length).
+ */
+class BlockCompressedOutputStream extends OutputStream {
+
+    private final OutputStream output;
+    private final SpillCompression.BlockCodec codec;
+    private final CompressionStats stats;
+    private final byte[] block;
+    private final byte[] compressedBlock;
+    private int blockLength;
+
+    /**
+     * @param output      - the stream of the run file
+     * @param compression - the codec to compress the blocks with
+     * @param blockSize   - uncompressed size of every block
+     * @param stats       - the statistics of the sort
+     */
+    BlockCompressedOutputStream(OutputStream output, SpillCompression compression, int blockSize, CompressionStats stats) {
+        this.output = output;
+        if (!compression.compresses()) {
+            throw new IllegalArgumentException(compression + " runs aren't compressed in blocks");
+        }
+        this.codec = compression.newCodec();
+        this.stats = stats;
+        this.block = new byte[blockSize];
+        this.compressedBlock = new byte[codec.maxCompressedLength(blockSize)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == block.length) {
+            writeBlock();
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (blockLength == block.length) {
+                writeBlock();
+            }
+            int copied = Math.min(length, block.length - blockLength);
+            System.arraycopy(bytes, offset, block, blockLength, copied);
+            blockLength += copied;
+            offset += copied;
+            length -= copied;
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (blockLength == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        int compressedLength = codec.compress(block, blockLength, compressedBlock);
+        long compressed = System.nanoTime();
+
+        boolean stored = compressedLength >= blockLength;
+        int storedLength = stored ? blockLength : compressedLength;
+        writeInt(blockLength);
+        writeInt(storedLength);
+        output.write(stored ? block : compressedBlock, 0, storedLength);
+
+        stats.compressNanos.add(compressed - start);
+        stats.writeNanos.add(System.nanoTime() - compressed);
+        stats.uncompressedBytes.add(blockLength);
+        stats.compressedBytes.add(storedLength + 2 * Integer.BYTES);
+        blockLength = 0;
+    }
+
+    private void writeInt(int value) throws IOException {
+        output.write(value >>> 24);
+        output.write(value >>> 16);
+        output.write(value >>> 8);
+        output.write(value);
+    }
+
+    /**
+     * flushing ends the current block, so it should only be called when a run is done
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeBlock();
+        } finally {
+            codec.close();
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package csvsorter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * this class parses a single byte range of the input file, with positional reads of the input that it shares with the
+ * workers of the other ranges. the range starts and ends on record boundaries (see {@link InputRangeSplitter}).
+ * the records of the range are cut into parts of maxRecordsNumber records (or less, by the memory budget of the part),
+ * and every part is sorted and written by this worker's thread, so all the ranges are parsed and sorted concurrently.
+ * a line break inside a quoted field belongs to the record.
+ */
+class ByteRangeMapWorker extends MapReduceWorkersBase {
+    private static final Logger logger = Logger.getLogger(String.valueOf(ByteRangeMapWorker.class));
+
+    FileChannel input;
+    String inputName;
+    long start, end;
+    int rangeNumber;
+    String tempFilesDir;
+    int maxRecordsNumber;
+    long partMemoryBudget;
+    boolean textRuns;
+    byte quote;
+    RunStorage runStorage;
+
+    //the parts of this range, in input order
+    private final List<String> partFiles = new ArrayList<>();
+
+    private List<String> part = new ArrayList<>();
+    //the records of the range before the part, a record is numbered in its range, not in the whole input
+    private long recordsBeforePart;
+    private long partSize;
+    private byte[] recordBuffer = new byte[1024];
+    private int recordLength;
+    private boolean quotedLineBreakReported;
+
+    /**
+     * @param input            - the input file, shared by the workers of all the ranges
+     * @param inputName        - the path of the input file, for the error of a malformed record
+     * @param start            - the position of the first record of the range
+     * @param end              - the position after the last record of the range
+     * @param rangeNumber      - the number of the range, the parts of the range are named after it
+     * @param tempFilesDir     - path to where the sorted parts will be written to
+     * @param options          - the sort options
+     * @param partMemoryBudget - the estimated size of the records of a part, after which the part is cut
+     * @param runStorage       - creates the part files, in the spill format and compression
+     */
+    ByteRangeMapWorker(FileChannel input, String inputName, long start, long end, int rangeNumber, String tempFilesDir,
+                       SortOptions options, long partMemoryBudget, RunStorage runStorage) {
+        this.input = input;
+        this.inputName = inputName;
+        this.start = start;
+        this.end = end;
+        this.rangeNumber = rangeNumber;
+        this.tempFilesDir = tempFilesDir;
+        this.maxRecordsNumber = options.getMaxRecordsNumber();
+        this.partMemoryBudget = partMemoryBudget;
+        this.textRuns = options.getSpillFormat() == SpillFormat.TEXT;
+        this.quote = (byte) options.getQuote();
+        this.runStorage = runStorage;
+    }
+
+    /**
+     * @return the sorted parts that this worker wrote, in input order. valid after the worker is done
+     */
+    List<String> getPartFiles() {
+        return partFiles;
+    }
+
+    public void run() {
+        logger.fine(Thread.currentThread().getName() + " is starting to parse bytes " + start + "-" + end);
+        SortMetrics metrics = runStorage.getMetrics();
+        ByteBuffer buffer = ByteBuffer.allocate(Constants.READ_BUFFER_SIZE);
+        boolean inQuotes = false;
+        long position = start;
+        try {
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                long readStart = System.nanoTime();
+                int read = input.read(buffer, position);
+                metrics.readNanos.add(System.nanoTime() - readStart);
+                if (read <= 0) {
+                    break;
+                }
+                byte[] bytes = buffer.array();
+                int recordStart = 0;
+                for (int i = 0; i < read; i++) {
+                    if (bytes[i] == quote) {
+                        inQuotes = !inQuotes;
+                    } else if (bytes[i] == '\n' && !inQuotes) {
+                        appendToRecord(bytes, recordStart, i);
+                        addRecord();
+                        recordStart = i + 1;
+                    }
+                }
+                appendToRecord(bytes, recordStart, read);
+                position += read;
+                metrics.inputBytes.add(read);
+            }
+            //the last record of the input may have no line break
+            if (recordLength > 0) {
+                addRecord();
+            }
+            if (!part.isEmpty()) {
+                writePart();
+            }
+        } catch (IOException e) {
+            //fails the task, and with it the sort
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void appendToRecord(byte[] bytes, int from, int to) {
+        int length = to - from;
+        if (recordLength + length > recordBuffer.length) {
+            recordBuffer = Arrays.copyOf(recordBuffer, Math.max(recordBuffer.length * 2, recordLength + length));
+        }
+        System.arraycopy(bytes, from, recordBuffer, recordLength, length);
+        recordLength += length;
+    }
+
+    private void addRecord() {
+        //like BufferedReader.readLine, a record ends with \n or \r\n and the line break is not part of it
+        int length = recordLength > 0 && recordBuffer[recordLength - 1] == '\r' ? recordLength - 1 : recordLength;
+        String record = new String(recordBuffer, 0, length, StandardCharsets.UTF_8);
+        recordLength = 0;
+        if (textRuns && !quotedLineBreakReported && record.indexOf('\n') >= 0) {
+            quotedLineBreakReported = true;
+            logger.warning("A record of the input has a line break inside a quoted field, "
+                    + "text runs can't keep it - use the binary spill format");
+        }
+
+        part.add(record);
+        partSize += KeyedRecord.estimateSize(record);
+        if (part.size() == maxRecordsNumber || partSize >= partMemoryBudget) {
+            writePart();
+        }
+    }
+
+    private void writePart() {
+        String partFileName = runStorage.runFile(tempFilesDir,
+                Constants.PART_PREFIX + rangeNumber + "_" + (partFiles.size() + 1) + Constants.RANGE_SUFFIX);
+        partFiles.add(partFileName);
+        new SplitFileAndSortEachPartMapWorker(partFileName, part, runStorage,
+                "the byte range " + start + "-" + end + " of " + inputName, recordsBeforePart + 1).run();
+        recordsBeforePart += part.size();
+        part = new ArrayList<>();
+        partSize = 0;
+    }
+}
@@ -0,0 +1,136 @@
+package csvsorter;
+
+/**
+ * combines the records of the same key while they are written in sorted order - when the parts are written by the
+ * map, and in every merge of the reduce - so duplicates shrink the runs as early as possible and the later merges
+ * move fewer bytes. records have the same key when their encoded keys are equal (so an istring key ignores case).
+ * the combined records are written in the place of the first record of their key.
+ */
+public class Combiner {
+
+    /**
+     * the ways to combine the records of a key
+     */
+    public enum Type {
+        /**
+         * drop a record that is the same as an earlier record of its key, byte for byte. the records of a key are
+         * ordered by their bytes instead of their input order, so the duplicates are next to each other
+         */
+        DISTINCT,
+        /**
+         * keep the first record of every key, in input order
+         */
+        FIRST,
+        /**
+         * keep the last record of every key, in input order
+         */
+        LAST,
+        /**
+         * keep the first record of every key, with the number of records of the key in its column
+         */
+        COUNT,
+        /**
+         * keep the first record of every key, with the sum of the numbers in the column of all the records of the key
+         * in its column. values that are not numbers are left out of the sum
+         */
+        SUM
+    }
+
+    private final Type type;
+    private final int column;
+
+    private Combiner(Type type, int column) {
+        if (column < 0) {
+            throw new IllegalArgumentException("the column of a combiner can't be negative");
+        }
+        this.type = type;
+        this.column = column;
+    }
+
+    public static Combiner distinct() {
+        return new Combiner(Type.DISTINCT, 0);
+    }
+
+    public static Combiner first() {
+        return new Combiner(Type.FIRST, 0);
+    }
+
+    public static Combiner last() {
+        return new Combiner(Type.LAST, 0);
+    }
+
+    /**
+     * @param column - the index of the field that is replaced by the number of records of the key
+     */
+    public static Combiner count(int column) {
+        return new Combiner(Type.COUNT, column);
+    }
+
+    /**
+     * @param column - the index of the field that is summed, and replaced by the sum
+     */
+    public static Combiner sum(int column) {
+        return new Combiner(Type.SUM, column);
+    }
+
+    /**
+     * @param spec - distinct, first, last, count:index or sum:index
+     * @return the combiner
+     * @throws IllegalArgumentException if the spec is not valid
+     */
+    public static Combiner parse(String spec) {
+        String[] parts = spec.trim().toLowerCase().split(":");
+        switch (parts[0]) {
+            case "distinct":
+                return distinct();
+            case "first":
+                return first();
+            case "last":
+                return last();
+            case "count":
+            case "sum":
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("the combiner " + parts[0] + " needs a column, use " + parts[0] + ":index");
+                }
+                int column;
+                try {
+                    column = Integer.parseInt(parts[1].trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid combiner column '" + parts[1] + "'");
+                }
+                return parts[0].equals("count") ? count(column) : sum(column);
+            default:
+                throw new IllegalArgumentException("unknown combiner " + spec + ", use distinct, first, last, count:index or sum:index");
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the index of the field that is counted or summed
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return true if the combiner writes into a column of the records
+     */
+    boolean hasColumn() {
+        return type == Type.COUNT || type == Type.SUM;
+    }
+
+    /**
+     * @return true if records with equal keys are sorted and merged by their bytes, not kept in input order
+     */
+    boolean ordersTiesByRecord() {
+        return type == Type.DISTINCT;
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase() + (hasColumn() ? ":" + column : "");
+    }
+}
@@ -0,0 +1,189 @@
+package csvsorter;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * writes a sorted run with another writer, and combines the records of every key on the way (see {@link Combiner}).
+ * the records of a key are consecutive in a sorted run, so only the records of the current key are kept -
+ * a single record, or the last record of the key for {@link Combiner.Type#DISTINCT}, whose duplicates are next to
+ * each other because the records of a key are ordered by their bytes.
+ * <p>
+ * a count is kept in the column of the combined record, so a run that is merged again sums the counts of its records,
+ * and only the records of the input count as 1 each.
+ */
+class CombiningRunWriter implements RunWriter {
+
+    private final RunWriter writer;
+    private final Combiner.Type type;
+    private final boolean inputRecords;
+    //finds the column of a count or a sum, null for the other combiners
+    private final CsvKeyTokenizer columnTokenizer;
+    private final LongAdder recordsWritten;
+    private final LongAdder combinedRecords;
+
+    private byte[] currentKey;
+    //the record of the current key that is written when the key is done, for last, count and sum
+    private KeyedRecord pending;
+    private BigDecimal total;
+    //the last record that was written, for distinct
+    private byte[] previousRecord;
+
+    /**
+     * @param writer          - the writer of the run, or of the output
+     * @param combiner        - the combiner of the sort
+     * @param inputRecords    - true if the records are records of the input, false if they were already combined
+     *                        by an earlier writer (the records of a merge)
+     * @param delimiter       - the char between the fields, to find the column of a count or a sum
+     * @param quote           - the char around quoted fields
+     * @param recordsWritten  - the count of the records that the caller writes, lowered by every record that is combined
+     * @param combinedRecords - the count of the records that were combined into another record or dropped
+     */
+    CombiningRunWriter(RunWriter writer, Combiner combiner, boolean inputRecords, char delimiter, char quote,
+                       LongAdder recordsWritten, LongAdder combinedRecords) {
+        this.writer = writer;
+        this.type = combiner.getType();
+        this.inputRecords = inputRecords;
+        this.columnTokenizer = combiner.hasColumn() ? new CsvKeyTokenizer(combiner.getColumn(), delimiter, quote) : null;
+        this.recordsWritten = recordsWritten;
+        this.combinedRecords = combinedRecords;
+    }
+
+    /**
+     * combine the records of the input that were sorted in memory
+     *
+     * @param sorted   - sorted records of the input
+     * @param combiner - the combiner of the sort
+     * @param options  - the csv format of the records
+     * @param metrics  - the metrics of the sort, which count the records that were combined
+     * @return the combined records, in order
+     */
+    static KeyedRecord[] combine(KeyedRecord[] sorted, Combiner combiner, SortOptions options, SortMetrics metrics)
+            throws IOException {
+        List<KeyedRecord> combined = new ArrayList<>();
+        RunWriter listWriter = new RunWriter() {
+            @Override
+            public void write(KeyedRecord record) {
+                combined.add(record);
+            }
+
+            @Override
+            public long position() {
+                return combined.size();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try (RunWriter writer = new CombiningRunWriter(listWriter, combiner, true, options.getDelimiter(),
+                options.getQuote(), new LongAdder(), metrics.combinedRecords)) {
+            for (KeyedRecord record : sorted) {
+                writer.write(record);
+            }
+        }
+        return combined.toArray(new KeyedRecord[0]);
+    }
+
+    @Override
+    public void write(KeyedRecord record) throws IOException {
+        if (currentKey != null && Arrays.equals(currentKey, record.key)) {
+            combine(record);
+            return;
+        }
+        writePending();
+        currentKey = record.key;
+        switch (type) {
+            case DISTINCT:
+                previousRecord = record.record;
+                writer.write(record);
+                break;
+            case FIRST:
+                writer.write(record);
+                break;
+            case LAST:
+                pending = record;
+                break;
+            default:
+                pending = record;
+                total = valueOf(record);
+                break;
+        }
+    }
+
+    private void combine(KeyedRecord record) throws IOException {
+        switch (type) {
+            case DISTINCT:
+                if (!Arrays.equals(previousRecord, record.record)) {
+                    previousRecord = record.record;
+                    writer.write(record);
+                    return;
+                }
+                break;
+            case FIRST:
+                break;
+            case LAST:
+                pending = record;
+                break;
+            default:
+                total = total.add(valueOf(record));
+                break;
+        }
+        recordsWritten.decrement();
+        combinedRecords.increment();
+    }
+
+    /**
+     * @return what the record adds to the count or the sum of its key
+     */
+    private BigDecimal valueOf(KeyedRecord record) {
+        if (type == Combiner.Type.COUNT && inputRecords) {
+            return BigDecimal.ONE;
+        }
+        try {
+            return new BigDecimal(columnTokenizer.key(new String(record.record, StandardCharsets.UTF_8)).trim());
+        } catch (IllegalArgumentException e) {
+            //not a number, or no such column
+            return BigDecimal.ZERO;
+        }
+    }
+
+    private void writePending() throws IOException {
+        if (pending == null) {
+            return;
+        }
+        writer.write(type == Combiner.Type.LAST ? pending : withTotal(pending));
+        pending = null;
+    }
+
+    /**
+     * @return the record with the total of its key in the column, the record as is if it has no such column
+     */
+    private KeyedRecord withTotal(KeyedRecord record) {
+        String line = new String(record.record, StandardCharsets.UTF_8);
+        try {
+            columnTokenizer.tokenize(line);
+        } catch (IllegalArgumentException e) {
+            return record;
+        }
+        String combined = line.substring(0, columnTokenizer.fieldStart(0)) + total.toPlainString()
+                + line.substring(columnTokenizer.fieldEnd(0));
+        return new KeyedRecord(record.key, combined.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public long position() {
+        return writer.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writePending();
+        writer.close();
+    }
+}
@@ -0,0 +1,36 @@
+package csvsorter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * statistics of the compressed runs of a single sort, shared by all the workers.
+ * compare the time that was spent compressing and decompressing (cpu) with the time that was spent
+ * writing and reading the compressed blocks (i/o), to decide whether compression pays off for a job.
+ */
+class CompressionStats {
+
+    final LongAdder uncompressedBytes = new LongAdder();
+    final LongAdder compressedBytes = new LongAdder();
+    final LongAdder compressNanos = new LongAdder();
+    final LongAdder decompressNanos = new LongAdder();
+    final LongAdder writeNanos = new LongAdder();
+    final LongAdder readNanos = new LongAdder();
+
+    /**
+     * @return uncompressed bytes divided by compressed bytes of all the blocks that were written, 1 if none were
+     */
+    double compressionRatio() {
+        long compressed = compressedBytes.sum();
+        return compressed == 0 ? 1 : (double) uncompressedBytes.sum() / compressed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compressed %,d bytes of runs to %,d bytes (ratio %.2f). "
+                        + "cpu: compress %d ms, decompress %d ms. i/o: write %d ms, read %d ms",
+                uncompressedBytes.sum(), compressedBytes.sum(), compressionRatio(),
+                TimeUnit.NANOSECONDS.toMillis(compressNanos.sum()), TimeUnit.NANOSECONDS.toMillis(decompressNanos.sum()),
+                TimeUnit.NANOSECONDS.toMillis(writeNanos.sum()), TimeUnit.NANOSECONDS.toMillis(readNanos.sum()));
+    }
+}
@@ -11,5 +11,23 @@ public class Constants {
 
     public static final String REDUCE_SUFFIX = ".reduce_iter";
     public static final String MAP_SUFFIX = ".map";
+    public static final String RANGE_SUFFIX = ".range";
     public static final String PART_PREFIX = "part";
+
+    /**
+     * size in chars (text runs) or bytes (binary runs) of the read buffer of every run that is being merged
+     */
+    public static final int READ_BUFFER_SIZE = 64 * 1024;
+    /**
+     * size in bytes of the write buffer of every run and of the final output
+     */
+    public static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    /**
+     * uncompressed size in bytes of every block of a compressed run
+     */
+    public static final int COMPRESSION_BLOCK_SIZE = 64 * 1024;
+    /**
+     * distance in bytes (before compression) between the records of a run that are kept in its sparse index
+     */
+    public static final int RUN_INDEX_INTERVAL = 64 * 1024;
 }
@@ -0,0 +1,226 @@
+package csvsorter;
+
+import java.io.IOException;
+
+/**
+ * finds the key fields of a csv record without splitting the record into fields.
+ * the record is scanned only up to the end of the last key field, and the key fields are kept as slices of the record
+ * (see {@link #tokenize(CharSequence)}), so nothing is allocated until the key is encoded.
+ * <p>
+ * fields are separated by the delimiter. a field that starts with the quote char is quoted: delimiters and
+ * line breaks inside it are part of the field, and a doubled quote char inside it stands for a single quote char,
+ * as in RFC 4180. a quote char in the middle of a field that is not quoted is an ordinary char,
+ * and so are the chars after the closing quote of a quoted field, up to the next delimiter. there is no escape char,
+ * a backslash is an ordinary char too.
+ * <p>
+ * the key fields are encoded by the columns of the {@link KeySpec} into a single array of bytes,
+ * whose unsigned order is the order of the records. a tokenizer keeps the slices of the last record it scanned,
+ * and reuses its buffers for the next record, so every worker has its own.
+ */
+class CsvKeyTokenizer {
+
+    static final char DEFAULT_DELIMITER = ',';
+    static final char DEFAULT_QUOTE = '"';
+
+    private final KeySpec.Column[] columns;
+    private final int maxIndex;
+    private final char delimiter;
+    private final char quote;
+
+    //the fields of the last record, up to the last key field: the chars [fieldStarts[i], fieldEnds[i]) of the record,
+    //including the quotes of quoted fields
+    private final int[] fieldStarts;
+    private final int[] fieldEnds;
+    private final boolean[] fieldQuoted;
+
+    private final KeyBuffer keyBuffer = new KeyBuffer();
+    private final StringBuilder unquoted = new StringBuilder();
+
+    /**
+     * @param keyIndex - the index of the key field, from 0
+     */
+    CsvKeyTokenizer(int keyIndex) {
+        this(keyIndex, DEFAULT_DELIMITER, DEFAULT_QUOTE);
+    }
+
+    /**
+     * @param keyIndex  - the index of the key field, from 0
+     * @param delimiter - the char between the fields
+     * @param quote     - the char around quoted fields
+     */
+    CsvKeyTokenizer(int keyIndex, char delimiter, char quote) {
+        this(KeySpec.of(keyIndex), delimiter, quote);
+    }
+
+    /**
+     * @param keySpec   - the key columns
+     * @param delimiter - the char between the fields
+     * @param quote     - the char around quoted fields
+     */
+    CsvKeyTokenizer(KeySpec keySpec, char delimiter, char quote) {
+        if (delimiter == quote) {
+            throw new IllegalArgumentException("the delimiter and the quote must be different chars");
+        }
+        this.columns = keySpec.getColumns().toArray(new KeySpec.Column[0]);
+        this.maxIndex = keySpec.getMaxIndex();
+        this.delimiter = delimiter;
+        this.quote = quote;
+        this.fieldStarts = new int[maxIndex + 1];
+        this.fieldEnds = new int[maxIndex + 1];
+        this.fieldQuoted = new boolean[maxIndex + 1];
+    }
+
+    /**
+     * find the key fields of a record, and stop scanning after the last of them.
+     *
+     * @param record - a single csv record
+     * @throws IllegalArgumentException if the record has no field at the index of a key column
+     */
+    void tokenize(CharSequence record) {
+        int position = 0;
+        for (int field = 0; field <= maxIndex; field++) {
+            if (field > 0) {
+                if (position == record.length()) {
+                    throw new IllegalArgumentException("the record has " + field + " fields, there is no key at index "
+                            + maxIndex + ": " + record);
+                }
+                //skip the delimiter
+                position++;
+            }
+            fieldStarts[field] = position;
+            fieldQuoted[field] = position < record.length() && record.charAt(position) == quote;
+            position = fieldQuoted[field] ? skipQuoted(record, position) : skipUnquoted(record, position);
+            fieldEnds[field] = position;
+        }
+    }
+
+    /**
+     * @param column - the position of a column in the key spec
+     * @return the index of the first char of the field of the column in the last record,
+     * its opening quote if it is quoted
+     */
+    int fieldStart(int column) {
+        return fieldStarts[columns[column].getIndex()];
+    }
+
+    /**
+     * @param column - the position of a column in the key spec
+     * @return the index after the last char of the field of the column in the last record
+     */
+    int fieldEnd(int column) {
+        return fieldEnds[columns[column].getIndex()];
+    }
+
+    /**
+     * same as {@link #encodeKey(CharSequence)}, for a record of the input of a sort, which may be malformed
+     *
+     * @param record       - a single csv record of the input
+     * @param input        - the name of the input, for the error, null if the records don't come from a file
+     * @param recordNumber - the number of the record in the input, from 1
+     * @return the encoded key
+     * @throws IOException if the record has no field at the index of a key column, with the input and the record number
+     */
+    byte[] encodeInputKey(CharSequence record, String input, long recordNumber) throws IOException {
+        try {
+            return encodeKey(record);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("record " + recordNumber + " of " + (input == null ? "the input" : input)
+                    + " can't be sorted, " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * tokenize the record, and encode its key columns one after the other, straight from the chars of the record
+     * (quoted fields are unquoted first). a single string column is encoded like {@link KeyedRecord#encodeKey(String)}
+     *
+     * @param record - a single csv record
+     * @return the encoded key
+     */
+    byte[] encodeKey(CharSequence record) {
+        tokenize(record);
+        keyBuffer.reset();
+        for (int i = 0; i < columns.length; i++) {
+            KeySpec.Column column = columns[i];
+            int field = column.getIndex();
+            //a column must not be a prefix of another value of it if another column follows it,
+            //or if it is complemented
+            boolean terminated = i < columns.length - 1 || column.isDescending();
+            int mark = keyBuffer.length();
+            if (fieldQuoted[field]) {
+                unquote(record, fieldStarts[field], fieldEnds[field]);
+                column.getType().encode(unquoted, 0, unquoted.length(), keyBuffer, terminated);
+            } else {
+                column.getType().encode(record, fieldStarts[field], fieldEnds[field], keyBuffer, terminated);
+            }
+            if (column.isDescending()) {
+                keyBuffer.complementFrom(mark);
+            }
+        }
+        return keyBuffer.toByteArray();
+    }
+
+    /**
+     * @param record - a single csv record
+     * @return the field of the first key column of the record, without its quotes
+     */
+    String key(CharSequence record) {
+        tokenize(record);
+        int field = columns[0].getIndex();
+        if (!fieldQuoted[field]) {
+            return record.subSequence(fieldStarts[field], fieldEnds[field]).toString();
+        }
+        unquote(record, fieldStarts[field], fieldEnds[field]);
+        return unquoted.toString();
+    }
+
+    /**
+     * copy the chars of a quoted field without its quotes into the unquoted buffer
+     */
+    private void unquote(CharSequence record, int start, int end) {
+        unquoted.setLength(0);
+        boolean inQuotes = true;
+        for (int i = start + 1; i < end; i++) {
+            char c = record.charAt(i);
+            if (inQuotes && c == quote) {
+                if (i + 1 < end && record.charAt(i + 1) == quote) {
+                    i++;
+                } else {
+                    inQuotes = false;
+                    continue;
+                }
+            }
+            unquoted.append(c);
+        }
+    }
+
+    private int skipUnquoted(CharSequence record, int position) {
+        int length = record.length();
+        while (position < length && record.charAt(position) != delimiter) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * @return the index of the delimiter after the quoted field that starts at the position, or the length of the record
+     */
+    private int skipQuoted(CharSequence record, int position) {
+        int length = record.length();
+        boolean inQuotes = true;
+        position++;
+        while (position < length) {
+            char c = record.charAt(position);
+            if (inQuotes && c == quote) {
+                if (position + 1 < length && record.charAt(position + 1) == quote) {
+                    position++;
+                } else {
+                    inQuotes = false;
+                }
+            } else if (!inQuotes && c == delimiter) {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,371 @@
+package csvsorter;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * sorts csv records from a file, a stream or an iterator, into a file, a stream or a consumer - the entry point for
+ * embedding the sort in another program. the options are given once, with {@link SortOptions#builder(KeySpec)},
+ * and every call to sort is a sort of its own, so a sorter may sort several inputs at the same time.
+ * <p>
+ * the input is read until it is done or until its records fill the memory budget (or maxRecordsNumber).
+ * an input that fits is sorted in memory, on the calling thread, and written straight to the output - no run is
+ * written, and no directory is created. a larger input is sorted with map and reduce, like {@link Main} does, in a new
+ * directory of its own inside every temp directory of the options (the system temp directory by default), which is
+ * deleted when the sort is done.
+ * <p>
+ * with a limit, only the first records are written, and they are selected in a single read of any input (see
+ * {@link TopKSelector}).
+ * <p>
+ * the output is csv lines, each followed by \r\n. the key ranges of a partitioned final merge are always concatenated.
+ * an output file is written with its sparse index when the options have an index interval (see {@link SortedFileIndex}).
+ * an input file may be gzip compressed, and a file or a stream output is written as gzip when the options ask for it.
+ */
+public class CsvSorter {
+    private static final Logger logger = Logger.getLogger(String.valueOf(CsvSorter.class));
+
+    private final SortOptions options;
+
+    /**
+     * @param options - the options of every sort
+     */
+    public CsvSorter(SortOptions options) {
+        if (options == null) {
+            throw new IllegalArgumentException("the sort options are required");
+        }
+        this.options = options;
+    }
+
+    /**
+     * @param input  - a csv file, utf-8
+     * @param output - the sorted file, replaced if it exists
+     * @return the metrics of the sort
+     */
+    public SortMetricsMXBean sort(Path input, Path output) throws IOException {
+        return sort(input, new PathOutput(output, options));
+    }
+
+    /**
+     * @param input  - a csv file, utf-8
+     * @param output - receives the sorted csv lines, utf-8. it is flushed, not closed
+     * @return the metrics of the sort
+     */
+    public SortMetricsMXBean sort(Path input, OutputStream output) throws IOException {
+        return sort(input, new StreamOutput(output, options));
+    }
+
+    /**
+     * @param input  - a csv file, utf-8
+     * @param output - receives the sorted records, one at a time
+     * @return the metrics of the sort
+     */
+    public SortMetricsMXBean sort(Path input, Consumer<String> output) throws IOException {
+        return sort(input, new ConsumerOutput(output));
+    }
+
+    /**
+     * @param input  - csv lines, utf-8. the stream is read to its end, not closed
+     * @param output - receives the sorted csv lines, utf-8. it is flushed, not closed
+     * @return the metrics of the sort
+     */
+    public SortMetricsMXBean sort(InputStream input, OutputStream output) throws IOException {
+        return sort(input, new StreamOutput(output, options));
+    }
+
+    /**
+     * @param input  - csv lines, utf-8. the stream is read to its end, not closed
+     * @param output - receives the sorted records, one at a time
+     * @return the metrics of the sort
+     */
+    public SortMetricsMXBean sort(InputStream input, Consumer<String> output) throws IOException {
+        return sort(input, new ConsumerOutput(output));
+    }
+
+    /**
+     * @param records - csv records, none of them null
+     * @param output  - receives the sorted csv lines, utf-8. it is flushed, not closed
+     * @return the metrics of the sort
+     */
+    public SortMetricsMXBean sort(Iterator<String> records, OutputStream output) throws IOException {
+        return sort(records, new StreamOutput(output, options));
+    }
+
+    /**
+     * @param records - csv records, none of them null
+     * @param output  - receives the sorted records, one at a time
+     * @return the metrics of the sort
+     */
+    public SortMetricsMXBean sort(Iterator<String> records, Consumer<String> output) throws IOException {
+        return sort(records, new ConsumerOutput(output));
+    }
+
+    private SortMetricsMXBean sort(Path input, SortedOutput output) throws IOException {
+        SortMetrics metrics = new SortMetrics();
+        RunStorage inputStorage = new RunStorage(options, metrics, Collections.emptyList());
+        try (BufferedReader reader = inputStorage.openInput(input.toString())) {
+            //a file that is larger than the memory budget can't fit, its records take more memory than its bytes
+            sort(reader::readLine, input, Files.size(input) <= options.getMemoryBudget(), output, metrics);
+        }
+        return metrics;
+    }
+
+    private SortMetricsMXBean sort(InputStream input, SortedOutput output) throws IOException {
+        SortMetrics metrics = new SortMetrics();
+        BufferedReader reader = new RunStorage(options, metrics, Collections.emptyList()).openInput(input);
+        sort(reader::readLine, null, true, output, metrics);
+        return metrics;
+    }
+
+    private SortMetricsMXBean sort(Iterator<String> records, SortedOutput output) throws IOException {
+        SortMetrics metrics = new SortMetrics();
+        RecordSource source = () -> records.hasNext() ? records.next() : null;
+        sort(source, null, true, output, metrics);
+        return metrics;
+    }
+
+    /**
+     * @param records   - the records of the input
+     * @param inputFile - the file of the records, null if they don't come from a file
+     * @param mayFit    - false if the input is known to be larger than the memory budget
+     */
+    private void sort(RecordSource records, Path inputFile, boolean mayFit, SortedOutput output, SortMetrics metrics)
+            throws IOException {
+        if (options.getLimit() > 0) {
+            RunStorage runStorage = new RunStorage(options, metrics, Collections.emptyList());
+            SortScheduler scheduler = new SortScheduler(options.getNumberOfWorkers(), metrics);
+            output.write(new TopKSelector(options, runStorage, scheduler).select(records).toArray(new KeyedRecord[0]), metrics);
+            return;
+        }
+        metrics.startPhase(SortMetrics.Phase.MAP);
+        Deque<String> buffered = new ArrayDeque<>();
+        if (mayFit && readWithinBudget(records, buffered)) {
+            sortInMemory(buffered, inputFile, output, metrics);
+        } else if (inputFile != null && (!mayFit || options.getInputSplitting() == SortOptions.InputSplitting.BYTE_RANGES)) {
+            //the file is mapped from its start, by ranges or by lines, and the records that were already read are let go
+            buffered.clear();
+            sortExternally((mapper, tempFilesDir) -> mapper.map(inputFile.toString(), tempFilesDir), output, metrics);
+        } else {
+            //the records that were read are mapped first, and freed as the parts take them
+            RecordSource all = () -> buffered.isEmpty() ? records.nextRecord() : buffered.poll();
+            sortExternally((mapper, tempFilesDir) -> mapper.map(all, tempFilesDir), output, metrics);
+        }
+        metrics.startPhase(SortMetrics.Phase.DONE);
+    }
+
+    /**
+     * @return true if all the records were read into the buffer, false if the last record that was read
+     * is the first one that doesn't fit in the memory budget of the options
+     */
+    private boolean readWithinBudget(RecordSource records, Deque<String> buffered) throws IOException {
+        long size = 0;
+        String record;
+        while ((record = records.nextRecord()) != null) {
+            buffered.add(record);
+            size += KeyedRecord.estimateSize(record);
+            if (size > options.getMemoryBudget() || buffered.size() > options.getMaxRecordsNumber()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void sortInMemory(Deque<String> records, Path inputFile, SortedOutput output, SortMetrics metrics)
+            throws IOException {
+        CsvKeyTokenizer keyTokenizer = new CsvKeyTokenizer(options.getKeySpec(), options.getDelimiter(), options.getQuote());
+        long start = System.nanoTime();
+        KeyedRecord[] sorted = new KeyedRecord[records.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            String record = records.poll();
+            sorted[i] = new KeyedRecord(keyTokenizer.encodeInputKey(record, inputFile == null ? null : inputFile.toString(), i + 1),
+                    record.getBytes(StandardCharsets.UTF_8));
+        }
+        long parsed = System.nanoTime();
+        options.getPartSort().sort(sorted);
+        if (options.getCombiner() != null && options.getCombiner().ordersTiesByRecord()) {
+            KeyedRecord.sortTiesByRecord(sorted);
+        }
+        metrics.parseNanos.add(parsed - start);
+        metrics.sortNanos.add(System.nanoTime() - parsed);
+        metrics.inputRecords.add(sorted.length);
+        metrics.startPhase(SortMetrics.Phase.REDUCE);
+        if (options.getCombiner() != null) {
+            sorted = CombiningRunWriter.combine(sorted, options.getCombiner(), options, metrics);
+        }
+        output.write(sorted, metrics);
+        metrics.outputRecords.add(sorted.length);
+        logger.fine("Sorted " + sorted.length + " records in memory");
+    }
+
+    private void sortExternally(MapStep map, SortedOutput output, SortMetrics metrics) throws IOException {
+        List<String> parentDirs = options.getTempDirs().isEmpty()
+                ? Collections.singletonList(System.getProperty("java.io.tmpdir")) : options.getTempDirs();
+        List<String> tempDirs = createTempDirs(parentDirs);
+        try {
+            RunStorage runStorage = new RunStorage(options, metrics, tempDirs.size() > 1 ? tempDirs : Collections.emptyList());
+            SortScheduler scheduler = new SortScheduler(options.getNumberOfWorkers(), metrics);
+            int numberOfParts = map.apply(new Mapper(options, runStorage, scheduler), tempDirs.get(0));
+            logger.info("The input was divided to " + numberOfParts + " sorted parts");
+            output.write(new Reducer(options, runStorage, scheduler).reduceRec(tempDirs.get(0), Constants.MAP_SUFFIX, 1));
+        } finally {
+            for (String tempDir : tempDirs) {
+                FileUtils.deleteQuietly(new File(tempDir));
+            }
+        }
+    }
+
+    /**
+     * @param dirs - directories, created if they don't exist
+     * @return a new directory inside every one of them, each ends with a separator
+     */
+    static List<String> createTempDirs(List<String> dirs) throws IOException {
+        List<String> tempDirs = new ArrayList<>(dirs.size());
+        for (String dir : dirs) {
+            Path parent = Files.createDirectories(Paths.get(dir.trim()));
+            tempDirs.add(Files.createTempDirectory(parent, "csvsorter-").toString() + File.separator);
+        }
+        return tempDirs;
+    }
+
+    private interface MapStep {
+        int apply(Mapper mapper, String tempFilesDir) throws IOException;
+    }
+
+    /**
+     * where the sorted records go - either all of them at once from memory, or the sorted file of an external sort
+     */
+    private interface SortedOutput {
+
+        void write(KeyedRecord[] sorted, SortMetrics metrics) throws IOException;
+
+        /**
+         * @param sortedFile - the sorted file, deleted with its temp directory after this
+         */
+        void write(String sortedFile) throws IOException;
+    }
+
+    private static class PathOutput implements SortedOutput {
+        private final Path output;
+        //an indexed output is written with its index and its spec, for lookups with SortedFileIndex
+        private final SortOptions options;
+
+        PathOutput(Path output, SortOptions options) {
+            this.output = output;
+            this.options = options;
+        }
+
+        @Override
+        public void write(KeyedRecord[] sorted, SortMetrics metrics) throws IOException {
+            RunWriter writer = SpillFormat.TEXT.openWriter(compressed(new MeteredOutputStream(Files.newOutputStream(output),
+                    metrics.writeNanos, metrics.outputBytes::add), options, metrics));
+            if (options.getIndexInterval() > 0) {
+                writer = new IndexedOutputWriter(writer, output.toString(), options.getIndexInterval());
+            } else {
+                SortedFileIndex.delete(output.toString());
+            }
+            try (RunWriter sortedWriter = writer) {
+                for (KeyedRecord record : sorted) {
+                    sortedWriter.write(record);
+                }
+            }
+            writeSpec();
+        }
+
+        @Override
+        public void write(String sortedFile) throws IOException {
+            Files.move(Paths.get(sortedFile), output, StandardCopyOption.REPLACE_EXISTING);
+            SortedFileIndex.move(sortedFile, output.toString());
+            writeSpec();
+        }
+
+        private void writeSpec() throws IOException {
+            if (options.getIndexInterval() > 0) {
+                SortSpecFile.write(output.toString(), options);
+            }
+        }
+    }
+
+    /**
+     * @return the output, compressed to gzip in blocks on background threads when the options ask for it
+     */
+    private static OutputStream compressed(OutputStream output, SortOptions options, SortMetrics metrics) {
+        return !options.isCompressOutput() ? output : new ParallelGzipOutputStream(output, AsyncIo.executor(),
+                options.getNumberOfWorkers(), metrics.ioWaitNanos);
+    }
+
+    private static class StreamOutput implements SortedOutput {
+        private final OutputStream output;
+        //a compressed output is written as gzip by the in memory sort, like the final merge writes it
+        private final SortOptions options;
+
+        StreamOutput(OutputStream output, SortOptions options) {
+            this.output = output;
+            this.options = options;
+        }
+
+        @Override
+        public void write(KeyedRecord[] sorted, SortMetrics metrics) throws IOException {
+            //the writer flushes the stream when it is closed, and leaves it open
+            try (RunWriter writer = SpillFormat.TEXT.openWriter(compressed(new MeteredOutputStream(
+                    CloseShieldOutputStream.wrap(output), metrics.writeNanos, metrics.outputBytes::add), options, metrics))) {
+                for (KeyedRecord record : sorted) {
+                    writer.write(record);
+                }
+            }
+        }
+
+        @Override
+        public void write(String sortedFile) throws IOException {
+            Files.copy(Paths.get(sortedFile), output);
+            output.flush();
+        }
+    }
+
+    private static class ConsumerOutput implements SortedOutput {
+        private final Consumer<String> output;
+
+        ConsumerOutput(Consumer<String> output) {
+            this.output = output;
+        }
+
+        @Override
+        public void write(KeyedRecord[] sorted, SortMetrics metrics) {
+            for (KeyedRecord record : sorted) {
+                output.accept(new String(record.record, StandardCharsets.UTF_8));
+            }
+        }
+
+        @Override
+        public void write(String sortedFile) throws IOException {
+            //the records are given as they are, a compressed sorted file is decompressed
+            try (BufferedReader reader = !GzipFiles.isCompressed(sortedFile) ? Files.newBufferedReader(Paths.get(sortedFile))
+                    : new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(Paths.get(sortedFile))),
+                    StandardCharsets.UTF_8))) {
+                String record;
+                while ((record = reader.readLine()) != null) {
+                    output.accept(record);
+                }
+            }
+        }
+    }
+}
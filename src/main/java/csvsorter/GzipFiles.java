@@ -0,0 +1,44 @@
+package csvsorter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * gzip compressed csv files - an input (or a base file) is recognized by the magic bytes at its start, whatever its
+ * name, and an output is compressed when its name ends with .gz.
+ */
+final class GzipFiles {
+
+    static final String SUFFIX = ".gz";
+    //the first two bytes of every gzip member, see RFC 1952
+    private static final int MAGIC_1 = 0x1f;
+    private static final int MAGIC_2 = 0x8b;
+
+    private GzipFiles() {
+    }
+
+    /**
+     * @param file - path to a file
+     * @return true if the file starts with the magic bytes of gzip, false if it doesn't or it doesn't exist
+     */
+    static boolean isCompressed(String file) throws IOException {
+        Path path = Paths.get(file);
+        if (!Files.isRegularFile(path)) {
+            return false;
+        }
+        try (InputStream input = Files.newInputStream(path)) {
+            return input.read() == MAGIC_1 && input.read() == MAGIC_2;
+        }
+    }
+
+    /**
+     * @param file - path of an output
+     * @return true if the output is written compressed, by the extension of its name
+     */
+    static boolean isCompressedName(String file) {
+        return file.endsWith(SUFFIX);
+    }
+}
@@ -0,0 +1,52 @@
+package csvsorter;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * writes a sorted output with another writer, and writes its sparse index to a file next to it on the way
+ * (see {@link SortedFileIndex}) - the key and the offset of the first record, and of a record every interval bytes.
+ * the index is streamed as the records are written, so it takes no memory whatever the size of the output.
+ */
+class IndexedOutputWriter implements RunWriter {
+
+    private final RunWriter writer;
+    private final DataOutputStream index;
+    private final int interval;
+    private long nextIndexedPosition;
+
+    /**
+     * @param writer     - the writer of the csv output
+     * @param outputFile - the path of the output, the index is written to its index file
+     * @param interval   - the distance in bytes between the indexed records
+     */
+    IndexedOutputWriter(RunWriter writer, String outputFile, int interval) throws IOException {
+        this.writer = writer;
+        this.index = SortedFileIndex.createIndex(outputFile);
+        this.interval = interval;
+    }
+
+    @Override
+    public void write(KeyedRecord record) throws IOException {
+        long position = writer.position();
+        if (position >= nextIndexedPosition) {
+            SortedFileIndex.writeEntry(index, record.key, position);
+            nextIndexedPosition = position + interval;
+        }
+        writer.write(record);
+    }
+
+    @Override
+    public long position() {
+        return writer.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.close();
+        } finally {
+            index.close();
+        }
+    }
+}
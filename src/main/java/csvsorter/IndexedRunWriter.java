@@ -0,0 +1,51 @@
+package csvsorter;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * writes a run with another writer, and builds its sparse {@link RunIndex} on the way.
+ * the index is handed over when the run is closed, so it only describes complete runs.
+ */
+class IndexedRunWriter implements RunWriter {
+
+    private final RunWriter writer;
+    private final Consumer<RunIndex> onClose;
+    private final RunIndex index = new RunIndex();
+    private long nextIndexedPosition;
+    private long nextSampledPosition = Constants.RUN_INDEX_INTERVAL / 2;
+
+    /**
+     * @param writer  - the writer of the run, in its spill format
+     * @param onClose - receives the index of the run when the run is closed
+     */
+    IndexedRunWriter(RunWriter writer, Consumer<RunIndex> onClose) {
+        this.writer = writer;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public void write(KeyedRecord record) throws IOException {
+        long position = writer.position();
+        if (position >= nextIndexedPosition) {
+            index.add(record.key, position);
+            nextIndexedPosition = position + Constants.RUN_INDEX_INTERVAL;
+        }
+        if (position >= nextSampledPosition) {
+            index.addSample(record.key);
+            nextSampledPosition = position + Constants.RUN_INDEX_INTERVAL;
+        }
+        writer.write(record);
+    }
+
+    @Override
+    public long position() {
+        return writer.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        onClose.accept(index);
+    }
+}
@@ -0,0 +1,126 @@
+package csvsorter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * this class divides the input file into byte ranges that start and end on record boundaries,
+ * so that every range can be parsed by its own worker, with positional reads and without a shared reader.
+ * a record boundary is a line break that is not inside a quoted field. quotes are counted in every range in parallel,
+ * and the count of quotes before a range tells if it starts inside a quoted field.
+ * a doubled quote inside a quoted field ("") doesn't change the count's parity, as in RFC 4180.
+ */
+class InputRangeSplitter {
+
+    //smaller ranges are not worth a worker and a sorted part of their own
+    static final long MIN_RANGE_SIZE = Constants.READ_BUFFER_SIZE;
+
+    private InputRangeSplitter() {
+    }
+
+    /**
+     * @param input          - the input file
+     * @param numberOfRanges - the number of ranges to divide the input into, less if the input is small
+     * @param minRangeSize   - the input is not divided into ranges smaller than this
+     * @param quote          - the (ascii) char around quoted fields
+     * @param scheduler      - runs the quote counting of the ranges
+     * @return the boundaries of the ranges - range i is [boundaries[i], boundaries[i + 1]).
+     * a range is empty when a single record spans all of it
+     * @throws IOException - in case of any IO error
+     */
+    static long[] alignedBoundaries(FileChannel input, int numberOfRanges, long minRangeSize, char quote,
+                                    SortScheduler scheduler) throws IOException {
+        long size = input.size();
+        int ranges = (int) Math.max(1, Math.min(numberOfRanges, size / minRangeSize));
+        long[] nominalStarts = new long[ranges + 1];
+        for (int i = 0; i <= ranges; i++) {
+            nominalStarts[i] = size * i / ranges;
+        }
+
+        //the quotes of the last range are never needed, no range starts after it
+        List<Future<Long>> quoteCounts = new ArrayList<>(ranges - 1);
+        for (int i = 0; i < ranges - 1; i++) {
+            long from = nominalStarts[i];
+            long to = nominalStarts[i + 1];
+            quoteCounts.add(scheduler.submit(() -> countQuotes(input, from, to, (byte) quote)));
+        }
+
+        long[] boundaries = new long[ranges + 1];
+        boundaries[ranges] = size;
+        long quotesBefore = 0;
+        for (int i = 1; i < ranges; i++) {
+            quotesBefore += awaitQuoteCount(quoteCounts.get(i - 1));
+            boundaries[i] = Math.max(boundaries[i - 1], nextRecordStart(input, nominalStarts[i], quotesBefore % 2 == 1, (byte) quote));
+        }
+        return boundaries;
+    }
+
+    /**
+     * @param input    - the input file
+     * @param position - a position in the input
+     * @param inQuotes - true if the position is inside a quoted field
+     * @param quote    - the char around quoted fields
+     * @return the position of the first record that starts at the given position or after it,
+     * or the size of the input if there is none
+     */
+    private static long nextRecordStart(FileChannel input, long position, boolean inQuotes, byte quote)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Constants.READ_BUFFER_SIZE);
+        //a record starts right at the position if the previous byte ends a record, a line break is not a quote
+        if (!inQuotes && input.read((ByteBuffer) buffer.limit(1), position - 1) == 1 && buffer.get(0) == '\n') {
+            return position;
+        }
+        long offset = position;
+        int read;
+        while ((read = input.read((ByteBuffer) buffer.clear(), offset)) > 0) {
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == quote) {
+                    inQuotes = !inQuotes;
+                } else if (bytes[i] == '\n' && !inQuotes) {
+                    return offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+        return input.size();
+    }
+
+    private static long countQuotes(FileChannel input, long from, long to, byte quote) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Constants.READ_BUFFER_SIZE);
+        long quotes = 0;
+        long offset = from;
+        while (offset < to) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), to - offset));
+            int read = input.read(buffer, offset);
+            if (read <= 0) {
+                break;
+            }
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == quote) {
+                    quotes++;
+                }
+            }
+            offset += read;
+        }
+        return quotes;
+    }
+
+    private static long awaitQuoteCount(Future<Long> quoteCount) throws IOException {
+        try {
+            return quoteCount.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package csvsorter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * merges k sorted runs into one sorted stream of records, using a tournament (loser) tree.
+ * every record that is taken from the merger costs ceil(log2(k)) comparisons - one per level of the tree,
+ * half of what a binary heap needs for a poll and an insert.
+ * on equal keys the record of the run with the lower index wins, so merging runs that are ordered by their
+ * position in the input keeps records with the same key in their input order - unless the ties are ordered by
+ * the records, then the smaller record wins (see {@link Combiner#ordersTiesByRecord()}).
+ */
+class KWayMerger implements Closeable {
+
+    private final List<RunReader> runs;
+    private final KeyedRecord[] heads;
+    //tree[0] holds the index of the current winner, tree[1..k-1] hold the index of the loser of each match
+    private final int[] tree;
+    private final boolean tiesByRecord;
+
+    /**
+     * @param runs - readers of the sorted runs, ordered by their position in the input
+     */
+    KWayMerger(List<RunReader> runs) throws IOException {
+        this(runs, false);
+    }
+
+    /**
+     * @param runs         - readers of the sorted runs, ordered by their position in the input
+     * @param tiesByRecord - true if the records of a key are ordered by their bytes in the runs and in the merge
+     */
+    KWayMerger(List<RunReader> runs, boolean tiesByRecord) throws IOException {
+        this.runs = runs;
+        this.tiesByRecord = tiesByRecord;
+        int k = runs.size();
+        this.heads = new KeyedRecord[k];
+        this.tree = new int[Math.max(k, 1)];
+        for (int i = 0; i < k; i++) {
+            heads[i] = runs.get(i).next();
+        }
+        buildTree();
+    }
+
+    /**
+     * @return the smallest record that wasn't returned yet, or null when all the runs are exhausted
+     */
+    KeyedRecord next() throws IOException {
+        if (heads.length == 0) {
+            return null;
+        }
+        int winner = tree[0];
+        KeyedRecord record = heads[winner];
+        if (record != null) {
+            heads[winner] = runs.get(winner).next();
+            replay(winner);
+        }
+        return record;
+    }
+
+    private void buildTree() {
+        int k = heads.length;
+        if (k <= 1) {
+            return;
+        }
+        //leaves are at k..2k-1 of an implicit winner tree, play all the matches bottom up and keep the losers
+        int[] winners = new int[2 * k];
+        for (int i = 0; i < k; i++) {
+            winners[k + i] = i;
+        }
+        for (int node = k - 1; node >= 1; node--) {
+            int left = winners[2 * node];
+            int right = winners[2 * node + 1];
+            if (beats(left, right)) {
+                winners[node] = left;
+                tree[node] = right;
+            } else {
+                winners[node] = right;
+                tree[node] = left;
+            }
+        }
+        tree[0] = winners[1];
+    }
+
+    /**
+     * the head of run changed, replay its matches on the path from its leaf to the root
+     */
+    private void replay(int run) {
+        int winner = run;
+        for (int node = (run + heads.length) >> 1; node >= 1; node >>= 1) {
+            if (beats(tree[node], winner)) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /**
+     * an exhausted run (null head) loses to every record, equal records are won by the lower run index
+     */
+    private boolean beats(int run, int otherRun) {
+        KeyedRecord record = heads[run];
+        KeyedRecord otherRecord = heads[otherRun];
+        if (record == null || otherRecord == null) {
+            return otherRecord == null && (record != null || run < otherRun);
+        }
+        int comparison = record.compareTo(otherRecord);
+        if (comparison == 0 && tiesByRecord) {
+            comparison = KeyedRecord.compareRecords(record, otherRecord);
+        }
+        return comparison < 0 || (comparison == 0 && run < otherRun);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException closeException = null;
+        for (RunReader run : runs) {
+            try {
+                run.close();
+            } catch (IOException e) {
+                closeException = e;
+            }
+        }
+        if (closeException != null) {
+            throw closeException;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package csvsorter;
+
+import java.util.Arrays;
+
+/**
+ * the bytes of an encoded key while it is built, column by column. a tokenizer reuses a single buffer for all
+ * its records, so encoding a key allocates only the final array.
+ * <p>
+ * strings are encoded as the utf-8 of their chars (every char on its own, surrogates too), which keeps the order of
+ * {@link String#compareTo(String)}. a string that is followed by another column, or that is reversed, is terminated:
+ * every 0 byte in it is escaped as 0 1, and it ends with 0 0, so no string is a prefix of another.
+ */
+class KeyBuffer {
+
+    private byte[] bytes = new byte[64];
+    private int length;
+
+    void reset() {
+        length = 0;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * @param length - the new length of the key, not longer than it is, to drop the bytes after it
+     */
+    void setLength(int length) {
+        this.length = length;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    void put(int b) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) b;
+    }
+
+    /**
+     * @param value - a signed int, written so that the unsigned order of the bytes is the order of the values
+     */
+    void putInt(int value) {
+        ensureCapacity(Integer.BYTES);
+        int flipped = value ^ Integer.MIN_VALUE;
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            bytes[length++] = (byte) (flipped >>> shift);
+        }
+    }
+
+    /**
+     * @param value - a signed long, written so that the unsigned order of the bytes is the order of the values
+     */
+    void putLong(long value) {
+        ensureCapacity(Long.BYTES);
+        long flipped = value ^ Long.MIN_VALUE;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            bytes[length++] = (byte) (flipped >>> shift);
+        }
+    }
+
+    /**
+     * @param value      - chars of a string
+     * @param start      - the index of the first char
+     * @param end        - the index after the last char
+     * @param ignoreCase - true to fold the case of every char, as {@link String#CASE_INSENSITIVE_ORDER} does
+     * @param terminated - true to escape the 0 bytes and end the string with 0 0
+     */
+    void putChars(CharSequence value, int start, int end, boolean ignoreCase, boolean terminated) {
+        ensureCapacity(3 * (end - start) + 2);
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (ignoreCase) {
+                c = Character.toLowerCase(Character.toUpperCase(c));
+            }
+            if (c < 0x80) {
+                if (c == 0 && terminated) {
+                    bytes[length++] = 0;
+                    bytes[length++] = 1;
+                } else {
+                    bytes[length++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                bytes[length++] = (byte) (0xC0 | c >>> 6);
+                bytes[length++] = (byte) (0x80 | c & 0x3F);
+            } else {
+                bytes[length++] = (byte) (0xE0 | c >>> 12);
+                bytes[length++] = (byte) (0x80 | c >>> 6 & 0x3F);
+                bytes[length++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        if (terminated) {
+            bytes[length++] = 0;
+            bytes[length++] = 0;
+        }
+    }
+
+    /**
+     * complement the bytes from the given position to the end, which reverses their order -
+     * as long as they are prefix free, like every terminated column
+     */
+    void complementFrom(int position) {
+        for (int i = position; i < length; i++) {
+            bytes[i] = (byte) ~bytes[i];
+        }
+    }
+
+    private void ensureCapacity(int extraBytes) {
+        if (length + extraBytes > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + extraBytes));
+        }
+    }
+}
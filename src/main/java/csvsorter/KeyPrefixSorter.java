@@ -0,0 +1,204 @@
+package csvsorter;
+
+import java.util.stream.IntStream;
+
+/**
+ * a stable in memory sort of keyed records, that sorts the first 8 bytes of every key as a primitive long
+ * (the key prefix) next to the index of its record, with an msd radix sort - a byte of the prefix at a time.
+ * records whose prefixes are equal are ordered by comparing their whole keys. the records are rearranged in place
+ * once the order is known, so the sort allocates only the prefixes, the indexes and a single scratch copy of both,
+ * 24 bytes per record, whatever the number of records.
+ */
+class KeyPrefixSorter {
+
+    private static final int PREFIX_BYTES = Long.BYTES;
+    //ranges that are smaller than this are sorted by insertion sort, not distributed into 256 buckets
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+    //ranges that are larger than this sort their buckets in parallel, when the sort is parallel
+    static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    private final KeyedRecord[] records;
+    private final boolean parallel;
+    private final long[] prefixes;
+    private final int[] indexes;
+    private final long[] prefixScratch;
+    private final int[] indexScratch;
+
+    private KeyPrefixSorter(KeyedRecord[] records, boolean parallel) {
+        this.records = records;
+        this.parallel = parallel;
+        int size = records.length;
+        prefixes = new long[size];
+        indexes = new int[size];
+        prefixScratch = new long[size];
+        indexScratch = new int[size];
+        for (int i = 0; i < size; i++) {
+            prefixes[i] = prefix(records[i].key);
+            indexes[i] = i;
+        }
+    }
+
+    /**
+     * sort the records by their keys, records with equal keys keep their order
+     *
+     * @param records  - the records to sort, rearranged in place
+     * @param parallel - true to sort the buckets of large ranges in parallel, on the common fork join pool
+     */
+    static void sort(KeyedRecord[] records, boolean parallel) {
+        if (records.length < 2) {
+            return;
+        }
+        KeyPrefixSorter sorter = new KeyPrefixSorter(records, parallel);
+        sorter.sortRange(0, records.length, 0);
+        sorter.permute();
+    }
+
+    /**
+     * @return the first 8 bytes of the key as a big endian long, padded with zeros
+     */
+    static long prefix(byte[] key) {
+        long prefix = 0;
+        int length = Math.min(key.length, PREFIX_BYTES);
+        for (int i = 0; i < length; i++) {
+            prefix |= (key[i] & 0xFFL) << (8 * (PREFIX_BYTES - 1 - i));
+        }
+        return prefix;
+    }
+
+    /**
+     * sort the entries [from, to), whose prefixes are equal before the given byte
+     */
+    private void sortRange(int from, int to, int prefixByte) {
+        while (true) {
+            if (to - from < INSERTION_SORT_THRESHOLD) {
+                insertionSort(from, to);
+                return;
+            }
+            if (prefixByte == PREFIX_BYTES) {
+                mergeSortTies(from, to);
+                return;
+            }
+            int shift = 8 * (PREFIX_BYTES - 1 - prefixByte);
+            int[] bucketStarts = new int[257];
+            for (int i = from; i < to; i++) {
+                bucketStarts[((int) (prefixes[i] >>> shift) & 0xFF) + 1]++;
+            }
+            //all the entries share this byte, move on to the next one without distributing them
+            if (bucketStarts[((int) (prefixes[from] >>> shift) & 0xFF) + 1] == to - from) {
+                prefixByte++;
+                continue;
+            }
+            bucketStarts[0] = from;
+            for (int bucket = 1; bucket < 257; bucket++) {
+                bucketStarts[bucket] += bucketStarts[bucket - 1];
+            }
+            //a stable distribution into the scratch, by the order of the entries
+            int[] next = bucketStarts.clone();
+            for (int i = from; i < to; i++) {
+                int target = next[(int) (prefixes[i] >>> shift) & 0xFF]++;
+                prefixScratch[target] = prefixes[i];
+                indexScratch[target] = indexes[i];
+            }
+            System.arraycopy(prefixScratch, from, prefixes, from, to - from);
+            System.arraycopy(indexScratch, from, indexes, from, to - from);
+
+            int nextByte = prefixByte + 1;
+            if (parallel && to - from >= PARALLEL_THRESHOLD) {
+                //the buckets are disjoint ranges of the arrays and of the scratch
+                IntStream.range(0, 256).parallel()
+                        .filter(bucket -> bucketStarts[bucket + 1] - bucketStarts[bucket] > 1)
+                        .forEach(bucket -> sortRange(bucketStarts[bucket], bucketStarts[bucket + 1], nextByte));
+                return;
+            }
+            for (int bucket = 0; bucket < 256; bucket++) {
+                if (bucketStarts[bucket + 1] - bucketStarts[bucket] > 1) {
+                    sortRange(bucketStarts[bucket], bucketStarts[bucket + 1], nextByte);
+                }
+            }
+            return;
+        }
+    }
+
+    private void insertionSort(int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            long prefix = prefixes[i];
+            int index = indexes[i];
+            int j = i - 1;
+            while (j >= from && compare(prefixes[j], indexes[j], prefix, index) > 0) {
+                prefixes[j + 1] = prefixes[j];
+                indexes[j + 1] = indexes[j];
+                j--;
+            }
+            prefixes[j + 1] = prefix;
+            indexes[j + 1] = index;
+        }
+    }
+
+    /**
+     * a stable bottom up merge sort of entries whose prefixes are all equal, by their whole keys.
+     * only the indexes are moved, through the index scratch
+     */
+    private void mergeSortTies(int from, int to) {
+        for (int runStart = from; runStart < to; runStart += INSERTION_SORT_THRESHOLD) {
+            insertionSort(runStart, Math.min(runStart + INSERTION_SORT_THRESHOLD, to));
+        }
+        int[] source = indexes;
+        int[] target = indexScratch;
+        for (int width = INSERTION_SORT_THRESHOLD; width < to - from; width *= 2) {
+            for (int left = from; left < to; left += 2 * width) {
+                int middle = Math.min(left + width, to);
+                int right = Math.min(left + 2 * width, to);
+                int i = left, j = middle, k = left;
+                while (i < middle && j < right) {
+                    //on equal keys take the left entry first, so the order of equal records is kept
+                    target[k++] = compareKeys(source[i], source[j]) <= 0 ? source[i++] : source[j++];
+                }
+                while (i < middle) {
+                    target[k++] = source[i++];
+                }
+                while (j < right) {
+                    target[k++] = source[j++];
+                }
+            }
+            int[] swap = source;
+            source = target;
+            target = swap;
+        }
+        if (source != indexes) {
+            System.arraycopy(source, from, indexes, from, to - from);
+        }
+    }
+
+    private int compare(long prefix, int index, long otherPrefix, int otherIndex) {
+        int order = Long.compareUnsigned(prefix, otherPrefix);
+        return order != 0 ? order : compareKeys(index, otherIndex);
+    }
+
+    private int compareKeys(int index, int otherIndex) {
+        return KeyedRecord.compareKeys(records[index].key, records[otherIndex].key);
+    }
+
+    /**
+     * move every record to its sorted position, by following the cycles of the permutation in the indexes
+     */
+    private void permute() {
+        for (int start = 0; start < indexes.length; start++) {
+            if (indexes[start] < 0) {
+                continue;
+            }
+            KeyedRecord first = records[start];
+            int position = start;
+            while (true) {
+                int source = indexes[position];
+                //mark the position as done
+                indexes[position] = -1;
+                if (source == start) {
+                    records[position] = first;
+                    break;
+                }
+                records[position] = records[source];
+                position = source;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package csvsorter;
+
+import java.io.IOException;
+
+/**
+ * reads the records of a run that fall in a range of keys - from lowerKey (inclusive) to upperKey (exclusive).
+ * the run may start before the range, the records before it are skipped, and the reading stops at the first record
+ * after it. all the records with the same key are in the same range, so they keep their order.
+ */
+class KeyRangeRunReader implements RunReader {
+
+    private final RunReader run;
+    private final byte[] lowerKey;
+    private final byte[] upperKey;
+    private boolean exhausted;
+
+    /**
+     * @param run      - a reader of a sorted run, at or before the first record of the range
+     * @param lowerKey - the smallest key of the range, null if the range has no lower bound
+     * @param upperKey - the key after the range, null if the range has no upper bound
+     */
+    KeyRangeRunReader(RunReader run, byte[] lowerKey, byte[] upperKey) {
+        this.run = run;
+        this.lowerKey = lowerKey;
+        this.upperKey = upperKey;
+    }
+
+    @Override
+    public KeyedRecord next() throws IOException {
+        while (!exhausted) {
+            KeyedRecord record = run.next();
+            if (record == null || (upperKey != null && KeyedRecord.compareKeys(record.key, upperKey) >= 0)) {
+                exhausted = true;
+            } else if (lowerKey == null || KeyedRecord.compareKeys(record.key, lowerKey) >= 0) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        run.close();
+    }
+}
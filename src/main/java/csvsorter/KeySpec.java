@@ -0,0 +1,151 @@
+package csvsorter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * the sorting key of a sort - one or more columns of the record, each with its type and direction.
+ * records are ordered by the first column, then by the second column, and so on.
+ * the columns are encoded together into a single array of bytes once per record (see {@link KeyType}),
+ * so comparing two keys is a single unsigned comparison of their bytes, whatever the columns are.
+ */
+public class KeySpec {
+
+    private final List<Column> columns;
+    private final int maxIndex;
+
+    /**
+     * a column of the key
+     */
+    public static class Column {
+        private final int index;
+        private final KeyType type;
+        private final boolean descending;
+
+        /**
+         * @param index      - the index of the field in the csv record, from 0
+         * @param type       - the type of the values of the field
+         * @param descending - true to sort the column from the largest value to the smallest
+         */
+        public Column(int index, KeyType type, boolean descending) {
+            if (index < 0) {
+                throw new IllegalArgumentException("sorting key index can't be negative");
+            }
+            this.index = index;
+            this.type = type;
+            this.descending = descending;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public KeyType getType() {
+            return type;
+        }
+
+        public boolean isDescending() {
+            return descending;
+        }
+
+        @Override
+        public String toString() {
+            return index + ":" + type.name().toLowerCase() + (descending ? ":desc" : "");
+        }
+    }
+
+    /**
+     * @param columns - the columns of the key, by their priority
+     */
+    public KeySpec(List<Column> columns) {
+        if (columns.isEmpty()) {
+            throw new IllegalArgumentException("the key must have at least one column");
+        }
+        this.columns = Collections.unmodifiableList(new ArrayList<>(columns));
+        this.maxIndex = columns.stream().mapToInt(Column::getIndex).max().getAsInt();
+    }
+
+    /**
+     * @param index - the index of the field in the csv record
+     * @return a key of a single string column, in ascending order
+     */
+    public static KeySpec of(int index) {
+        return new KeySpec(Collections.singletonList(new Column(index, KeyType.STRING, false)));
+    }
+
+    /**
+     * parse a key from a comma separated list of columns, every column is index[:type][:asc|desc],
+     * for example "7:decimal:desc,0" - by the decimal at index 7 from the largest, then by the string at index 0.
+     * the type is string by default, see {@link KeyType} for the others (in lower case)
+     *
+     * @param spec - the columns of the key
+     * @return the key
+     * @throws IllegalArgumentException if the spec is not valid
+     */
+    public static KeySpec parse(String spec) {
+        List<Column> columns = new ArrayList<>();
+        for (String column : spec.split(",")) {
+            String[] parts = column.trim().split(":");
+            if (parts.length > 3 || parts[0].isEmpty()) {
+                throw new IllegalArgumentException("invalid key column '" + column + "', use index[:type][:asc|desc]");
+            }
+            int index;
+            try {
+                index = Integer.parseInt(parts[0].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid key column index '" + parts[0] + "'");
+            }
+            KeyType type = KeyType.STRING;
+            boolean descending = false;
+            for (int i = 1; i < parts.length; i++) {
+                String part = parts[i].trim().toLowerCase();
+                if (part.equals("asc") || part.equals("desc")) {
+                    descending = part.equals("desc");
+                } else if (i == 1) {
+                    type = parseType(part);
+                } else {
+                    throw new IllegalArgumentException("invalid key column '" + column + "', use index[:type][:asc|desc]");
+                }
+            }
+            columns.add(new Column(index, type, descending));
+        }
+        return new KeySpec(columns);
+    }
+
+    private static KeyType parseType(String type) {
+        for (KeyType keyType : KeyType.values()) {
+            if (keyType.name().equalsIgnoreCase(type)) {
+                return keyType;
+            }
+        }
+        throw new IllegalArgumentException("unknown key type " + type + ", use string, istring, long, decimal, date or timestamp");
+    }
+
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return the largest index of a key column, the fields after it are never scanned
+     */
+    int getMaxIndex() {
+        return maxIndex;
+    }
+
+    /**
+     * @return true if the key is a single string column in ascending order, the key of a plain sort
+     */
+    boolean isSingleString() {
+        return columns.size() == 1 && columns.get(0).type == KeyType.STRING && !columns.get(0).descending;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder spec = new StringBuilder();
+        for (Column column : columns) {
+            spec.append(spec.length() == 0 ? "" : ",").append(column);
+        }
+        return spec.toString();
+    }
+}
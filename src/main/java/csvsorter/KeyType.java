@@ -0,0 +1,340 @@
+package csvsorter;
+
+import java.time.LocalDate;
+
+/**
+ * the types of the key columns. every type encodes its values into bytes whose unsigned order is the order of the
+ * values, so keys of any type (and of any number of columns) are compared as plain bytes.
+ * <p>
+ * a value of a typed column (a number or a date) that doesn't parse - an empty field, a header, a typo -
+ * is kept as a string, and sorts before all the values that parse (after them, in a descending column).
+ */
+public enum KeyType {
+    /**
+     * compared char by char, as {@link String#compareTo(String)}
+     */
+    STRING {
+        @Override
+        void encode(CharSequence value, int start, int end, KeyBuffer key, boolean terminated) {
+            key.putChars(value, start, end, false, terminated);
+        }
+    },
+    /**
+     * compared char by char ignoring case, as {@link String#CASE_INSENSITIVE_ORDER}
+     */
+    ISTRING {
+        @Override
+        void encode(CharSequence value, int start, int end, KeyBuffer key, boolean terminated) {
+            key.putChars(value, start, end, true, terminated);
+        }
+    },
+    /**
+     * signed integers, "-1234"
+     */
+    LONG {
+        @Override
+        void encode(CharSequence value, int start, int end, KeyBuffer key, boolean terminated) {
+            encodeTyped(value, start, end, key, terminated, KeyType::encodeLong);
+        }
+    },
+    /**
+     * signed decimals of any precision, with an optional exponent, "-12.34", "1.5e3"
+     */
+    DECIMAL {
+        @Override
+        void encode(CharSequence value, int start, int end, KeyBuffer key, boolean terminated) {
+            encodeTyped(value, start, end, key, terminated, KeyType::encodeDecimal);
+        }
+    },
+    /**
+     * iso dates, "2001-02-03"
+     */
+    DATE {
+        @Override
+        void encode(CharSequence value, int start, int end, KeyBuffer key, boolean terminated) {
+            encodeTyped(value, start, end, key, terminated, KeyType::encodeDate);
+        }
+    },
+    /**
+     * iso timestamps, "2001-02-03T04:05:06.789", a space instead of the T is allowed, and so are a date alone,
+     * and a "Z" or "+02:00" offset. timestamps without an offset are compared as if they were in utc
+     */
+    TIMESTAMP {
+        @Override
+        void encode(CharSequence value, int start, int end, KeyBuffer key, boolean terminated) {
+            encodeTyped(value, start, end, key, terminated, KeyType::encodeTimestamp);
+        }
+    };
+
+    //the first byte of a typed value: values that don't parse come before the values that do
+    private static final int UNPARSED = 0;
+    private static final int PARSED = 1;
+
+    /**
+     * append the encoded value to the key
+     *
+     * @param value      - the chars of the value, without quotes
+     * @param start      - the index of the first char of the value
+     * @param end        - the index after the last char of the value
+     * @param key        - the key that is built
+     * @param terminated - true if the encoding must not be a prefix of the encoding of another value,
+     *                   because another column follows it or because it is reversed
+     */
+    abstract void encode(CharSequence value, int start, int end, KeyBuffer key, boolean terminated);
+
+    /**
+     * parses the chars of a typed value and appends them to the key
+     */
+    private interface ValueEncoder {
+        /**
+         * @return false if the value doesn't parse, the key may be left with some of the value
+         */
+        boolean encode(CharSequence value, int start, int end, KeyBuffer key);
+    }
+
+    /**
+     * append a typed value, trimmed of spaces, or the string of the value if it doesn't parse
+     */
+    private static void encodeTyped(CharSequence value, int start, int end, KeyBuffer key, boolean terminated,
+                                    ValueEncoder encoder) {
+        while (start < end && value.charAt(start) == ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) == ' ') {
+            end--;
+        }
+        int mark = key.length();
+        key.put(PARSED);
+        if (!encoder.encode(value, start, end, key)) {
+            key.setLength(mark);
+            key.put(UNPARSED);
+            key.putChars(value, start, end, false, terminated);
+        }
+    }
+
+    private static boolean encodeLong(CharSequence value, int start, int end, KeyBuffer key) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            negative = value.charAt(i++) == '-';
+        }
+        if (i == end) {
+            return false;
+        }
+        //accumulated as a negative number, which has the larger range
+        long number = 0;
+        for (; i < end; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || number < (Long.MIN_VALUE + digit) / 10) {
+                return false;
+            }
+            number = number * 10 - digit;
+        }
+        if (!negative && number == Long.MIN_VALUE) {
+            return false;
+        }
+        key.putLong(negative ? number : -number);
+        return true;
+    }
+
+    private static boolean encodeDate(CharSequence value, int start, int end, KeyBuffer key) {
+        if (end - start != 10 || value.charAt(start + 4) != '-' || value.charAt(start + 7) != '-') {
+            return false;
+        }
+        int year = digits(value, start, 4);
+        int month = digits(value, start + 5, 2);
+        int day = digits(value, start + 8, 2);
+        if (!isDate(year, month, day)) {
+            return false;
+        }
+        key.put(year >>> 8);
+        key.put(year);
+        key.put(month);
+        key.put(day);
+        return true;
+    }
+
+    /**
+     * a decimal is encoded by its sign (negative, zero, positive), and for non zero values by its magnitude:
+     * the exponent of its first significant digit, then its significant digits. the magnitude of negative values is
+     * complemented, so that larger magnitudes come first. trailing zeros are dropped, so 1.50 and 1.5 are equal
+     */
+    private static boolean encodeDecimal(CharSequence value, int start, int end, KeyBuffer key) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            negative = value.charAt(i++) == '-';
+        }
+        int mantissaStart = i;
+        int digits = 0;
+        int digitsBeforePoint = -1;
+        int firstSignificant = -1;
+        int lastSignificant = -1;
+        for (; i < end; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (c != '0') {
+                    if (firstSignificant < 0) {
+                        firstSignificant = digits;
+                    }
+                    lastSignificant = digits;
+                }
+                digits++;
+            } else if (c == '.' && digitsBeforePoint < 0) {
+                digitsBeforePoint = digits;
+            } else {
+                break;
+            }
+        }
+        int mantissaEnd = i;
+        if (digits == 0) {
+            return false;
+        }
+        long exponent = 0;
+        if (i < end && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                negativeExponent = value.charAt(i++) == '-';
+            }
+            if (i == end) {
+                return false;
+            }
+            for (; i < end; i++) {
+                int digit = value.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return false;
+                }
+                exponent = Math.min(exponent * 10 + digit, Integer.MAX_VALUE / 2);
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+        if (i != end) {
+            return false;
+        }
+        if (firstSignificant < 0) {
+            key.put(2);
+            return true;
+        }
+        if (digitsBeforePoint < 0) {
+            digitsBeforePoint = digits;
+        }
+        //the value is 0.(significant digits) * 10 ^ magnitude
+        int magnitude = (int) (digitsBeforePoint - firstSignificant + exponent);
+        key.put(negative ? 1 : 3);
+        int magnitudeStart = key.length();
+        key.putInt(magnitude);
+        int digit = 0;
+        for (i = mantissaStart; i < mantissaEnd; i++) {
+            char c = value.charAt(i);
+            if (c != '.') {
+                if (digit >= firstSignificant && digit <= lastSignificant) {
+                    key.put(c - '0' + 1);
+                }
+                digit++;
+            }
+        }
+        key.put(0);
+        if (negative) {
+            key.complementFrom(magnitudeStart);
+        }
+        return true;
+    }
+
+    private static boolean encodeTimestamp(CharSequence value, int start, int end, KeyBuffer key) {
+        if (end - start < 10 || value.charAt(start + 4) != '-' || value.charAt(start + 7) != '-') {
+            return false;
+        }
+        int year = digits(value, start, 4);
+        int month = digits(value, start + 5, 2);
+        int day = digits(value, start + 8, 2);
+        if (!isDate(year, month, day)) {
+            return false;
+        }
+        int hour = 0, minute = 0, second = 0, nanos = 0, offsetSeconds = 0;
+        int i = start + 10;
+        if (i < end && (value.charAt(i) == 'T' || value.charAt(i) == ' ')) {
+            if (end - i < 6 || value.charAt(i + 3) != ':') {
+                return false;
+            }
+            hour = digits(value, i + 1, 2);
+            minute = digits(value, i + 4, 2);
+            i += 6;
+            if (i < end && value.charAt(i) == ':') {
+                if (end - i < 3) {
+                    return false;
+                }
+                second = digits(value, i + 1, 2);
+                i += 3;
+                if (i < end && value.charAt(i) == '.') {
+                    int fractionDigits = 0;
+                    for (i++; i < end && value.charAt(i) >= '0' && value.charAt(i) <= '9'; i++) {
+                        if (fractionDigits++ < 9) {
+                            nanos = nanos * 10 + value.charAt(i) - '0';
+                        }
+                    }
+                    if (fractionDigits == 0) {
+                        return false;
+                    }
+                    for (; fractionDigits < 9; fractionDigits++) {
+                        nanos *= 10;
+                    }
+                }
+            }
+            if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+                return false;
+            }
+        }
+        if (i < end && value.charAt(i) == 'Z') {
+            i++;
+        } else if (i < end && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+            //+hh:mm or +hhmm
+            int sign = value.charAt(i) == '-' ? -1 : 1;
+            boolean colon = end - i == 6 && value.charAt(i + 3) == ':';
+            if (end - i != 5 && !colon) {
+                return false;
+            }
+            int offsetHours = digits(value, i + 1, 2);
+            int offsetMinutes = digits(value, i + (colon ? 4 : 3), 2);
+            if (offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59) {
+                return false;
+            }
+            offsetSeconds = sign * (offsetHours * 3600 + offsetMinutes * 60);
+            i = end;
+        }
+        if (i != end) {
+            return false;
+        }
+        long epochSecond = LocalDate.of(year, month, day).toEpochDay() * 86400 + hour * 3600 + minute * 60 + second
+                - offsetSeconds;
+        key.putLong(epochSecond);
+        key.putInt(nanos);
+        return true;
+    }
+
+    /**
+     * @return the number of the given decimal digits, -1 if any of them is not a digit
+     */
+    private static int digits(CharSequence value, int start, int count) {
+        int number = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            number = number * 10 + digit;
+        }
+        return number;
+    }
+
+    private static boolean isDate(int year, int month, int day) {
+        if (year < 0 || month < 1 || month > 12 || day < 1) {
+            return false;
+        }
+        boolean leapYear = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+        int daysInMonth = month == 2 ? (leapYear ? 29 : 28) : (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+        return day <= daysInMonth;
+    }
+}
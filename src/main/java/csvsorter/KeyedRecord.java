@@ -0,0 +1,118 @@
+package csvsorter;
+
+import com.google.common.primitives.UnsignedBytes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * a single csv record together with its sorting key.
+ * the key is extracted once, when the record is read, so sorting and merging compare the keys
+ * without parsing the record again on every comparison.
+ * both are kept as bytes: the key is encoded so that comparing the bytes (unsigned) gives the order of the keys,
+ * and the record is the utf-8 bytes of the line, so runs can be written and read without any charset conversion.
+ */
+class KeyedRecord implements Comparable<KeyedRecord> {
+
+    //object headers and references of a record while its part is sorted: the KeyedRecord, the two strings and their
+    //arrays, the references to the record in the part and in the keyed part, and its key prefix and index in the
+    //arrays of the radix sort and in their scratch copy
+    private static final int RECORD_OVERHEAD = 16 + 2 * (24 + 16) + 2 * 8 + 2 * (8 + 4);
+    private static final Comparator<byte[]> KEY_COMPARATOR = UnsignedBytes.lexicographicalComparator();
+
+    final byte[] key;
+    final byte[] record;
+
+    /**
+     * @param key    - the encoded key columns of the record, see {@link CsvKeyTokenizer#encodeKey(CharSequence)}
+     * @param record - the utf-8 bytes of the raw csv record, as it was read and as it will be written
+     */
+    KeyedRecord(byte[] key, byte[] record) {
+        this.key = key;
+        this.record = record;
+    }
+
+    /**
+     * encode a key of a single string column as the utf-8 bytes of its chars (see {@link KeyBuffer}),
+     * so that an unsigned comparison of the bytes gives the same order as {@link String#compareTo(String)}
+     *
+     * @param key - the key field of a record, null is treated as an empty key
+     * @return the encoded key
+     */
+    static byte[] encodeKey(String key) {
+        if (key == null) {
+            return new byte[0];
+        }
+        KeyBuffer encodedKey = new KeyBuffer();
+        encodedKey.putChars(key, 0, key.length(), false, false);
+        return encodedKey.toByteArray();
+    }
+
+    /**
+     * @return the raw csv record as a string
+     */
+    String recordAsString() {
+        return new String(record, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * estimate the heap size of a record while its part is held in memory and sorted, without parsing it.
+     * the chars of the line are counted twice - once for the line itself, and once as an upper bound for its key.
+     *
+     * @param line - a single csv record, as it was read
+     * @return the estimated size in bytes
+     */
+    static long estimateSize(String line) {
+        return RECORD_OVERHEAD + 2L * Character.BYTES * line.length();
+    }
+
+    /**
+     * estimate the heap size of a record that is held as it was read from a run, by its arrays
+     *
+     * @param record - a record with its key
+     * @return the estimated size in bytes
+     */
+    static long estimateSize(KeyedRecord record) {
+        return 16 + 2 * 16 + record.key.length + record.record.length;
+    }
+
+    /**
+     * @return the order of two encoded keys - their unsigned lexicographical order
+     */
+    static int compareKeys(byte[] key, byte[] otherKey) {
+        return KEY_COMPARATOR.compare(key, otherKey);
+    }
+
+    /**
+     * @return the order of two records of equal keys when their ties are ordered by the record - the unsigned
+     * lexicographical order of their bytes
+     */
+    static int compareRecords(KeyedRecord record, KeyedRecord other) {
+        return KEY_COMPARATOR.compare(record.record, other.record);
+    }
+
+    /**
+     * order the records of every key of a sorted array by their bytes, see {@link Combiner#ordersTiesByRecord()}
+     *
+     * @param sorted - records sorted by their keys, rearranged in place
+     */
+    static void sortTiesByRecord(KeyedRecord[] sorted) {
+        int from = 0;
+        while (from < sorted.length) {
+            int to = from + 1;
+            while (to < sorted.length && Arrays.equals(sorted[from].key, sorted[to].key)) {
+                to++;
+            }
+            if (to - from > 1) {
+                Arrays.sort(sorted, from, to, KeyedRecord::compareRecords);
+            }
+            from = to;
+        }
+    }
+
+    @Override
+    public int compareTo(KeyedRecord other) {
+        return compareKeys(key, other.key);
+    }
+}
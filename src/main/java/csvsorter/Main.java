@@ -8,6 +8,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
@@ -20,57 +26,373 @@ public class Main {
 
     /**
      * Main method parses cmd args, then starts a timer.
-     * and then creates the Mapper, and call it's map method.
-     * afterwards creates the Reducer and call it's recursive reduce method.
+     * and then creates the Mapper, and call it's map method (or selects the first records, when there is a limit).
+     * afterwards creates the Reducer and call it's recursive reduce method - or with a base file, merges the sorted
+     * input into the base file, which was sorted earlier.
      * then it handles the final output and cleans the temporary files if requested.
      * finally, it stops the timer and logs the time that it took to sort the file.
      *
      * @param args input arguments
      * @throws IOException if there is a problem with interaction with files
      *                     usage: csv-sorter
-     *                     -in,--input arg     input file path
-     *                     -key,--key-ind arg   sorting key index - the index of the field to sort by
-     *                     -max,--max-rec arg   maximum number of records in memory
-     *                     -out,--output arg   output path (optional)
+     *                     -in,--input arg     input file path, plain or gzip compressed
+     *                     -base,--base arg   a file that was sorted by the same key, the sorted input is merged into it (optional)
+     *                     -join,--join arg   a right file to join the input with on the key, instead of sorting it (optional)
+     *                     -joinkey,--joinkey arg   the key of the right file, like -key (optional, default the key)
+     *                     -jointype,--jointype arg   inner or left (optional, default inner)
+     *                     -key,--key-ind arg   sorting key - index[:type][:asc|desc] of every key field, comma separated
+     *                     -max,--max-rec arg   maximum number of records in each part (optional)
+     *                     -mem,--memory arg   memory budget in bytes, e.g. 512m (optional)
+     *                     -out,--output arg   output path, compressed to gzip when it ends with .gz (optional)
+     *                     -fanin,--fanin arg   maximum number of files merged together (optional)
+     *                     -threads,--threads arg   number of worker threads (optional)
+     *                     -rungen,--rungen arg   fixed or replacement - how the sorted parts are generated (optional)
+     *                     -split,--split arg   lines or ranges - how the input is divided between the map workers (optional)
+     *                     -partitions,--partitions arg   number of key ranges of the final merge (optional)
+     *                     -shards,--shards   write every key range to an output file of its own (optional)
+     *                     -combine,--combine arg   distinct, first, last, count:index or sum:index - combine the records of a key (optional)
+     *                     -limit,--limit arg   output only the first records by the key, e.g. 1000 (optional)
+     *                     -index,--index arg   write a sparse index of the output with a key every arg bytes, e.g. 64k (optional)
+     *                     -sort,--sort arg   radix, parallel or comparison - the in memory sort of the parts (optional)
+     *                     -spill,--spill arg   text or binary - the format of the intermediate runs (optional)
+     *                     -compress,--compress arg   none, lz4 or deflate - compression of the intermediate runs (optional)
+     *                     -iobuf,--iobuffer arg   size of each buffer of a run file, e.g. 1m (optional)
+     *                     -syncio,--syncio   no read-ahead and write-behind threads (optional)
+     *                     -tmp,--tempdirs arg   comma separated temp directories to spread the runs over (optional)
+     *                     -placement,--placement arg   roundrobin or space - how the temp directory of a run is chosen (optional)
+     *                     -report,--report arg   path of a json report of the metrics of the sort (optional)
+     *                     -delim,--delimiter arg   the char between the fields, \t for a tab (optional, default ,)
+     *                     -quote,--quote arg   the char around quoted fields (optional, default ")
      */
     public static void main(String[] args) throws IOException {
         //parse cmd args
         CommandLine cmd = getCommandOptions(args);
         String inputCSVFile = cmd.getOptionValue("input");
-        String sortingKeyIndexStr = cmd.getOptionValue("keyind");
-        String maxRecordsNumberStr = cmd.getOptionValue("maxrec");
         Properties appProperties = loadAppProperties();
-        String tempFilesDir = getTempFilesDirFromAppProperties(appProperties);
+        //with several temp directories, the sort gets a new directory in each of them, and the first is its temp directory
+        List<String> tempDirs = cmd.hasOption("tempdirs") ? CsvSorter.createTempDirs(Arrays.asList(cmd.getOptionValue("tempdirs").split(","))) : new ArrayList<>();
+        String tempFilesDir = tempDirs.isEmpty() ? getTempFilesDirFromAppProperties(appProperties) : tempDirs.get(0);
+        SortOptions sortOptions = sortOptionsBuilder(cmd, tempDirs).build();
         String outputFilePathOptionalArgOrDefault = cmd.hasOption("output") ? cmd.getOptionValue("output") : getOutputFilePathFromAppProperties(appProperties);
 
         //start timer to measure the total time it took to sort the input file
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
 
-        //map - divide the input file to smaller files the size of maxRecordsNumber and sort each part
-        Mapper mapper = new Mapper(Integer.parseInt(sortingKeyIndexStr), Integer.parseInt(maxRecordsNumberStr));
-        mapper.map(inputCSVFile, tempFilesDir);
-
-        //reduce - sort the parts using external merge sort
-        Reducer reducer = new Reducer(Integer.parseInt(sortingKeyIndexStr));
-        String sortedOutputFilePath = reducer.reduceRec(tempFilesDir, Constants.MAP_SUFFIX, 1);
+        //the metrics of the sort are exposed through jmx until the sort is done
+        RunStorage runStorage = new RunStorage(sortOptions);
+        SortMetrics metrics = runStorage.getMetrics();
+        metrics.register();
+        try {
+            sort(cmd, sortOptions, runStorage, tempFilesDir, outputFilePathOptionalArgOrDefault);
+        } finally {
+            metrics.unregister();
+        }
 
-        //handle the final output and clean temporary files according to input args or default configuration
-        moveSortedOutputFileToGivenLocation(outputFilePathOptionalArgOrDefault, sortedOutputFilePath);
-        deleteTempDirWhenDone(appProperties, tempFilesDir);
+        //clean temporary files according to input args or default configuration
+        if (tempDirs.isEmpty()) {
+            deleteTempDirWhenDone(appProperties, tempFilesDir);
+        }
+        for (String tempDir : tempDirs) {
+            deleteTempDirWhenDone(appProperties, tempDir);
+        }
 
         //done, stop the timer
         stopWatch.stop();
+        if (sortOptions.getSpillCompression().compresses()) {
+            logger.info("Run compression (" + sortOptions.getSpillCompression() + "): " + runStorage.getCompressionStats());
+        }
+        logger.info("Sort metrics: " + metrics);
+        if (cmd.hasOption("report")) {
+            Files.write(Paths.get(cmd.getOptionValue("report")), metrics.toJson().getBytes(StandardCharsets.UTF_8));
+        }
         logger.info("Sorting was completed for the file " + inputCSVFile +
                 ". Time elapsed in seconds is: " + (double) stopWatch.getTime(TimeUnit.MILLISECONDS) / 1000);
     }
 
+    /**
+     * sort the input of the command line into the output file, see {@link #main(String[])}.
+     * a sort server calls it for every job, with a temp directory and a storage of the job
+     *
+     * @param cmd          - the parsed command line of the sort, with its input and optional base file or join file
+     * @param sortOptions  - the options of the sort
+     * @param runStorage   - the storage of the runs of the sort, with its metrics
+     * @param tempFilesDir - the temp directory of the sort, ends with a separator
+     * @param outputFile   - path of the sorted output
+     */
+    static void sort(CommandLine cmd, SortOptions sortOptions, RunStorage runStorage, String tempFilesDir,
+                     String outputFile) throws IOException {
+        String inputCSVFile = cmd.getOptionValue("input");
+        String baseFile = cmd.getOptionValue("base");
+        if (baseFile != null && (sortOptions.isShardedOutput() || sortOptions.getLimit() > 0)) {
+            throw new IllegalArgumentException("a base file can't be used with sharded output or a limit");
+        }
+        //the spec is asked for, or the output is a base file that new records may be merged into again, or its index
+        //reads the key from it
+        boolean writeSpec = cmd.hasOption("sortspec") || baseFile != null || sortOptions.getIndexInterval() > 0;
+        String joinFile = cmd.getOptionValue("join");
+        if (joinFile != null && (baseFile != null || sortOptions.isShardedOutput() || sortOptions.getOutputPartitions() > 1
+                || sortOptions.getLimit() > 0 || sortOptions.getCombiner() != null)) {
+            throw new IllegalArgumentException("a join can't be used with a base file, partitions, a limit or a combiner");
+        }
+        //map - read the input file once, divide it to smaller files that fit in memory and sort each part
+        //the map and the reduce share the storage of the runs, and the worker threads
+        SortScheduler scheduler = new SortScheduler(sortOptions.getNumberOfWorkers(), runStorage.getMetrics());
+        if (joinFile != null) {
+            //the input is the left file of the join, the output is ordered by its key
+            KeySpec rightKey = cmd.hasOption("joinkey") ? KeySpec.parse(cmd.getOptionValue("joinkey")) : sortOptions.getKeySpec();
+            SortOptions rightOptions = sortOptionsBuilder(cmd, sortOptions.getTempDirs(), rightKey).build();
+            SortMergeJoin join = new SortMergeJoin(sortOptions, rightOptions,
+                    parseJoinType(cmd.getOptionValue("jointype", "inner")), runStorage.getMetrics(), scheduler);
+            long records = join.join(inputCSVFile, joinFile, tempFilesDir, outputFile);
+            logger.info("The file " + inputCSVFile + " was joined with " + joinFile + " into " + records + " records");
+        } else if (sortOptions.getLimit() > 0) {
+            //top k - the first records are selected in a single read of the input, without any runs
+            List<KeyedRecord> firstRecords = new TopKSelector(sortOptions, runStorage, scheduler).select(inputCSVFile);
+            try (RunWriter writer = runStorage.createOutput(outputFile)) {
+                for (KeyedRecord record : firstRecords) {
+                    writer.write(record);
+                }
+            }
+            logger.info("The first " + firstRecords.size() + " records of " + inputCSVFile + " were selected");
+        } else {
+            sortAll(sortOptions, runStorage, scheduler, inputCSVFile, baseFile, tempFilesDir, outputFile, writeSpec);
+        }
+        //a later sort may merge new records into the output, when it was sorted by the same key
+        if (writeSpec && !sortOptions.isShardedOutput()) {
+            SortSpecFile.write(outputFile, sortOptions);
+        }
+    }
+
+    /**
+     * map the input into sorted parts, and reduce them into the sorted output (or its shards).
+     * with a base file, only the input is sorted, and the final merge merges it into the base file
+     */
+    private static void sortAll(SortOptions sortOptions, RunStorage runStorage, SortScheduler scheduler, String inputCSVFile,
+                                String baseFile, String tempFilesDir, String outputFilePathOptionalArgOrDefault,
+                                boolean writeSpec) throws IOException {
+        //the spec of the base file is checked before anything is sorted, without it the order is checked by the merge
+        if (baseFile != null && !SortSpecFile.check(baseFile, sortOptions)) {
+            logger.info("The base file " + baseFile + " has no " + SortSpecFile.SUFFIX
+                    + " file, its order is checked while it is merged");
+        }
+        Mapper mapper = new Mapper(sortOptions, runStorage, scheduler);
+        int numberOfParts = mapper.map(inputCSVFile, tempFilesDir);
+        logger.info("The file " + inputCSVFile + " was divided to " + numberOfParts + " sorted parts, using "
+                + sortOptions.getRunGeneration() + " run generation and " + sortOptions.getInputSplitting() + " input splitting");
+
+        //reduce - sort the parts using external k-way merge sort
+        Reducer reducer = new Reducer(sortOptions, runStorage, scheduler);
+        if (baseFile != null) {
+            String mergedFilePath = reducer.reduceInto(baseFile, tempFilesDir, Constants.MAP_SUFFIX, 1);
+            moveSortedOutputFileToGivenLocation(outputFilePathOptionalArgOrDefault, mergedFilePath);
+            logger.info("The sorted input was merged into the base file " + baseFile);
+        } else if (sortOptions.isShardedOutput()) {
+            List<String> shardFilePaths = reducer.reduceToShards(tempFilesDir, Constants.MAP_SUFFIX, 1);
+            for (int shard = 0; shard < shardFilePaths.size(); shard++) {
+                String shardFilePath = shardFileName(outputFilePathOptionalArgOrDefault, shard + 1);
+                moveSortedOutputFileToGivenLocation(shardFilePath, shardFilePaths.get(shard));
+                if (writeSpec) {
+                    SortSpecFile.write(shardFilePath, sortOptions);
+                }
+            }
+        } else {
+            String sortedOutputFilePath = reducer.reduceRec(tempFilesDir, Constants.MAP_SUFFIX, 1);
+            moveSortedOutputFileToGivenLocation(outputFilePathOptionalArgOrDefault, sortedOutputFilePath);
+        }
+    }
+
+    /**
+     * @param cmd      - the parsed command line
+     * @param tempDirs - the temp directories of the sort, empty for the temp directory of app.properties
+     * @return a builder with the options of the command line
+     */
+    static SortOptions.Builder sortOptionsBuilder(CommandLine cmd, List<String> tempDirs) {
+        return sortOptionsBuilder(cmd, tempDirs, KeySpec.parse(cmd.getOptionValue("keyind")));
+    }
+
+    /**
+     * @param cmd      - the parsed command line
+     * @param tempDirs - the temp directories of the sort, empty for the temp directory of app.properties
+     * @param keySpec  - the key to sort by instead of the key of the command line, like the key of the right file of a join
+     * @return a builder with the options of the command line
+     */
+    private static SortOptions.Builder sortOptionsBuilder(CommandLine cmd, List<String> tempDirs, KeySpec keySpec) {
+        SortOptions.Builder builder = SortOptions.builder(keySpec);
+        if (cmd.hasOption("maxrec")) {
+            builder.maxRecordsNumber(Integer.parseInt(cmd.getOptionValue("maxrec")));
+        }
+        if (cmd.hasOption("memory")) {
+            builder.memoryBudget(parseSize(cmd.getOptionValue("memory")));
+        }
+        if (cmd.hasOption("threads")) {
+            builder.numberOfWorkers(Integer.parseInt(cmd.getOptionValue("threads")));
+        }
+        if (cmd.hasOption("fanin")) {
+            builder.fanIn(Integer.parseInt(cmd.getOptionValue("fanin")));
+        }
+        if (cmd.hasOption("rungen")) {
+            builder.runGeneration(parseRunGeneration(cmd.getOptionValue("rungen")));
+        }
+        if (cmd.hasOption("split")) {
+            builder.inputSplitting(parseInputSplitting(cmd.getOptionValue("split")));
+        }
+        if (cmd.hasOption("partitions")) {
+            builder.outputPartitions(Integer.parseInt(cmd.getOptionValue("partitions")));
+        }
+        builder.shardedOutput(cmd.hasOption("shards"));
+        //an output that is named like a gzip file is compressed, the input is recognized by its first bytes
+        builder.compressOutput(cmd.hasOption("output") && GzipFiles.isCompressedName(cmd.getOptionValue("output")));
+        if (cmd.hasOption("combine")) {
+            builder.combiner(Combiner.parse(cmd.getOptionValue("combine")));
+        }
+        if (cmd.hasOption("limit")) {
+            builder.limit(Integer.parseInt(cmd.getOptionValue("limit")));
+        }
+        if (cmd.hasOption("index")) {
+            builder.indexInterval((int) parseSize(cmd.getOptionValue("index")));
+        }
+        if (cmd.hasOption("sort")) {
+            builder.partSort(parsePartSort(cmd.getOptionValue("sort")));
+        }
+        if (cmd.hasOption("spill")) {
+            builder.spillFormat(SpillFormat.valueOf(cmd.getOptionValue("spill").trim().toUpperCase()));
+        }
+        if (cmd.hasOption("compress")) {
+            builder.spillCompression(SpillCompression.valueOf(cmd.getOptionValue("compress").trim().toUpperCase()));
+        }
+        if (cmd.hasOption("iobuffer")) {
+            builder.ioBufferSize((int) parseSize(cmd.getOptionValue("iobuffer")));
+        }
+        builder.asyncIo(!cmd.hasOption("syncio"));
+        builder.tempDirs(tempDirs);
+        if (cmd.hasOption("placement")) {
+            builder.tempDirPlacement(parseTempDirPlacement(cmd.getOptionValue("placement")));
+        }
+        if (cmd.hasOption("delimiter")) {
+            builder.delimiter(parseChar(cmd.getOptionValue("delimiter"), "delimiter"));
+        }
+        if (cmd.hasOption("quote")) {
+            builder.quote(parseChar(cmd.getOptionValue("quote"), "quote"));
+        }
+        return builder;
+    }
+
+    private static SortOptions.RunGeneration parseRunGeneration(String runGeneration) {
+        switch (runGeneration.trim().toLowerCase()) {
+            case "fixed":
+                return SortOptions.RunGeneration.FIXED;
+            case "replacement":
+                return SortOptions.RunGeneration.REPLACEMENT_SELECTION;
+            default:
+                throw new IllegalArgumentException("unknown run generation " + runGeneration + ", use fixed or replacement");
+        }
+    }
+
+    private static SortOptions.InputSplitting parseInputSplitting(String inputSplitting) {
+        switch (inputSplitting.trim().toLowerCase()) {
+            case "lines":
+                return SortOptions.InputSplitting.LINES;
+            case "ranges":
+                return SortOptions.InputSplitting.BYTE_RANGES;
+            default:
+                throw new IllegalArgumentException("unknown input splitting " + inputSplitting + ", use lines or ranges");
+        }
+    }
+
+    private static PartSort parsePartSort(String partSort) {
+        switch (partSort.trim().toLowerCase()) {
+            case "radix":
+                return PartSort.RADIX;
+            case "parallel":
+                return PartSort.PARALLEL_RADIX;
+            case "comparison":
+                return PartSort.COMPARISON;
+            default:
+                throw new IllegalArgumentException("unknown part sort " + partSort + ", use radix, parallel or comparison");
+        }
+    }
+
+    private static SortMergeJoin.JoinType parseJoinType(String joinType) {
+        switch (joinType.trim().toLowerCase()) {
+            case "inner":
+                return SortMergeJoin.JoinType.INNER;
+            case "left":
+                return SortMergeJoin.JoinType.LEFT;
+            default:
+                throw new IllegalArgumentException("unknown join type " + joinType + ", use inner or left");
+        }
+    }
+
+    private static SortOptions.TempDirPlacement parseTempDirPlacement(String placement) {
+        switch (placement.trim().toLowerCase()) {
+            case "roundrobin":
+                return SortOptions.TempDirPlacement.ROUND_ROBIN;
+            case "space":
+                return SortOptions.TempDirPlacement.FREE_SPACE;
+            default:
+                throw new IllegalArgumentException("unknown temp dir placement " + placement + ", use roundrobin or space");
+        }
+    }
+
+    /**
+     * @param value  - a single char, or \t for a tab
+     * @param option - the name of the option, for the error message
+     * @return the char
+     */
+    static char parseChar(String value, String option) {
+        if (value.equals("\\t")) {
+            return '\t';
+        }
+        if (value.length() != 1) {
+            throw new IllegalArgumentException("the " + option + " must be a single char, or \\t for a tab: " + value);
+        }
+        return value.charAt(0);
+    }
+
+    /**
+     * @param size - number of bytes, optionally followed by k, m or g (case insensitive), for example 512m
+     * @return the number of bytes
+     */
+    static long parseSize(String size) {
+        String trimmedSize = size.trim().toLowerCase();
+        long multiplier = 1;
+        switch (trimmedSize.charAt(trimmedSize.length() - 1)) {
+            case 'k':
+                multiplier = 1024L;
+                break;
+            case 'm':
+                multiplier = 1024L * 1024;
+                break;
+            case 'g':
+                multiplier = 1024L * 1024 * 1024;
+                break;
+            default:
+                return Long.parseLong(trimmedSize);
+        }
+        return Long.parseLong(trimmedSize.substring(0, trimmedSize.length() - 1)) * multiplier;
+    }
+
+    /**
+     * @param outputFilePath - the output path, for example sorted.csv
+     * @param shard          - the number of the shard, from 1
+     * @return the path of the shard, for example sorted-1.csv
+     */
+    static String shardFileName(String outputFilePath, int shard) {
+        int extension = outputFilePath.lastIndexOf('.');
+        if (extension <= Math.max(outputFilePath.lastIndexOf('/'), outputFilePath.lastIndexOf(File.separatorChar))) {
+            return outputFilePath + "-" + shard;
+        }
+        return outputFilePath.substring(0, extension) + "-" + shard + outputFilePath.substring(extension);
+    }
+
     private static void moveSortedOutputFileToGivenLocation(String outputFilePathOptionalArg, String sortedOutputFilePath) throws IOException {
         File outputFile = new File(outputFilePathOptionalArg);
         if (outputFile.exists()) {
             FileUtils.delete(outputFile);
         }
         FileUtils.moveFile(new File(sortedOutputFilePath), new File(outputFilePathOptionalArg));
+        SortedFileIndex.move(sortedOutputFilePath, outputFilePathOptionalArg);
     }
 
     private static void deleteTempDirWhenDone(Properties appProperties, String tempFilesDir) throws IOException {
@@ -87,8 +409,8 @@ public class Main {
     }
 
     private static String getTempFilesDirFromAppProperties(Properties appProperties) throws IOException {
-        String projectBuildDir = appProperties.getProperty(Constants.PROJECT_BUILD_DIR) + "\\";
-        String tempFilesDirPath = projectBuildDir + appProperties.getProperty(Constants.TEMP_FILES_DIR_NAME_PROPERTY) + "\\";
+        String projectBuildDir = appProperties.getProperty(Constants.PROJECT_BUILD_DIR) + File.separator;
+        String tempFilesDirPath = projectBuildDir + appProperties.getProperty(Constants.TEMP_FILES_DIR_NAME_PROPERTY) + File.separator;
         //create the directory if it doesn't exist or clean it
         File tempdir = new File(tempFilesDirPath);
         FileUtils.forceMkdir(tempdir);
@@ -113,35 +435,180 @@ public class Main {
 
 
     private static CommandLine getCommandOptions(String[] args) {
+        CommandLine cmd = null;
+        try {
+            cmd = parseCommandLine(args);
+        } catch (ParseException e) {
+            logger.severe(String.valueOf(e));
+            new HelpFormatter().printHelp("csvsorter", commandOptions());
+            System.exit(1);
+        }
+        return cmd;
+    }
+
+    /**
+     * @param args - the arguments of a sort, as they are given to {@link #main(String[])}
+     * @return the parsed command line
+     * @throws ParseException if an argument is unknown, or a required one is missing
+     */
+    static CommandLine parseCommandLine(String[] args) throws ParseException {
+        return new DefaultParser().parse(commandOptions(), args);
+    }
+
+    private static Options commandOptions() {
         Options options = new Options();
 
-        Option input = new Option("in", "input", true, "input file path");
+        Option input = new Option("in", "input", true, "input file path, plain or gzip compressed");
         input.setRequired(true);
         options.addOption(input);
 
-        Option keyIndex = new Option("key", "keyind", true, "sorting key index - the index of the field to sort by");
+        Option base = new Option("base", "base", true,
+                "a file that was sorted earlier by the same key - only the input is sorted, and it is merged into "
+                        + "a copy of the base file at the output path, which may be the base file itself (optional)");
+        base.setOptionalArg(true);
+        options.addOption(base);
+
+        Option join = new Option("join", "join", true,
+                "a right file to join the input with - both files are sorted by their keys and merged into the output, "
+                        + "every input record followed by the fields of every right record of its key (optional)");
+        join.setOptionalArg(true);
+        options.addOption(join);
+
+        Option joinKey = new Option("joinkey", "joinkey", true,
+                "the key of the right file of a join, like -key, with the same types (optional, default the key)");
+        joinKey.setOptionalArg(true);
+        options.addOption(joinKey);
+
+        Option joinType = new Option("jointype", "jointype", true,
+                "inner (only input records with a right record of their key) or left (every input record, with empty "
+                        + "right fields when there is none), optional, default inner");
+        joinType.setOptionalArg(true);
+        options.addOption(joinType);
+
+        Option keyIndex = new Option("key", "keyind", true, "sorting key - the index of the field to sort by, "
+                + "or a comma separated list of index[:type][:asc|desc], the types are string, istring, long, decimal, "
+                + "date and timestamp. e.g. 7:decimal:desc,0");
         keyIndex.setRequired(true);
         options.addOption(keyIndex);
 
-        Option maxRec = new Option("max", "maxrec", true, "maximum number of records in memory");
-        maxRec.setRequired(true);
+        Option maxRec = new Option("max", "maxrec", true, "maximum number of records in each part that is sorted in memory (optional)");
+        maxRec.setOptionalArg(true);
         options.addOption(maxRec);
 
-        Option output = new Option("out", "output", true, "output path (optional)");
+        Option memory = new Option("mem", "memory", true,
+                "memory budget in bytes, a k/m/g suffix is allowed (optional, default half of the maximum heap size)");
+        memory.setOptionalArg(true);
+        options.addOption(memory);
+
+        Option output = new Option("out", "output", true, "output path, compressed to gzip when it ends with .gz (optional)");
         output.setOptionalArg(true);
         options.addOption(output);
 
-        CommandLineParser parser = new DefaultParser();
-        HelpFormatter formatter = new HelpFormatter();
-        CommandLine cmd = null;
+        Option fanIn = new Option("fanin", "fanin", true,
+                "maximum number of files that are merged together in a single merge (optional, default " + SortOptions.DEFAULT_FAN_IN + ")");
+        fanIn.setOptionalArg(true);
+        options.addOption(fanIn);
 
-        try {
-            cmd = parser.parse(options, args);
-        } catch (ParseException e) {
-            logger.severe(String.valueOf(e));
-            formatter.printHelp("csvsorter", options);
-            System.exit(1);
-        }
-        return cmd;
+        Option threads = new Option("threads", "threads", true,
+                "number of worker threads that sort and merge the parts (optional, default the number of available processors)");
+        threads.setOptionalArg(true);
+        options.addOption(threads);
+
+        Option runGeneration = new Option("rungen", "rungen", true,
+                "how the sorted parts are generated - fixed (slices sorted in parallel) or replacement (replacement selection), optional, default fixed");
+        runGeneration.setOptionalArg(true);
+        options.addOption(runGeneration);
+
+        Option inputSplitting = new Option("split", "split", true,
+                "how the input is divided between the map workers - lines (a single reader) or ranges (a byte range per worker), optional, default lines");
+        inputSplitting.setOptionalArg(true);
+        options.addOption(inputSplitting);
+
+        Option partitions = new Option("partitions", "partitions", true,
+                "number of key ranges that the final merge is divided into and merged in parallel (optional, default 1)");
+        partitions.setOptionalArg(true);
+        options.addOption(partitions);
+
+        Option shards = new Option("shards", "shards", false,
+                "write every key range to an output file of its own - output-1.csv, output-2.csv... (optional)");
+        options.addOption(shards);
+
+        Option combine = new Option("combine", "combine", true,
+                "combine the records of every key while they are sorted and merged - distinct (drop duplicate records), "
+                        + "first, last, count:index or sum:index (the count or the sum in the field at index), optional");
+        combine.setOptionalArg(true);
+        options.addOption(combine);
+
+        Option limit = new Option("limit", "limit", true,
+                "output only the first records by the key - selected in a single read of the input, without temp files (optional)");
+        limit.setOptionalArg(true);
+        options.addOption(limit);
+
+        Option index = new Option("index", "index", true,
+                "write a sparse index of the output next to it (output.idx), with the key of a record every arg bytes, "
+                        + "a k/m suffix is allowed, e.g. 64k - see SortedFileIndex for lookups (optional)");
+        index.setOptionalArg(true);
+        options.addOption(index);
+
+        Option sortSpec = new Option("sortspec", "sortspec", false,
+                "write the key and the csv format of the output next to it (output.sortspec), so that a later sort can "
+                        + "check it before it merges new records into the output with -base - always written with -base "
+                        + "and -index (optional)");
+        options.addOption(sortSpec);
+
+        Option partSort = new Option("sort", "sort", true,
+                "in memory sort of the parts - radix, parallel (radix sort of a part on several threads) or comparison, "
+                        + "optional, default radix");
+        partSort.setOptionalArg(true);
+        options.addOption(partSort);
+
+        Option spillFormat = new Option("spill", "spill", true,
+                "format of the intermediate runs - text (csv lines) or binary (length prefixed records with their key), optional, default text");
+        spillFormat.setOptionalArg(true);
+        options.addOption(spillFormat);
+
+        Option compression = new Option("compress", "compress", true,
+                "block compression of the intermediate runs - none, lz4 or deflate (optional, default none)");
+        compression.setOptionalArg(true);
+        options.addOption(compression);
+
+        Option ioBuffer = new Option("iobuf", "iobuffer", true,
+                "size of each of the two buffers of a run file that is read or written, a k/m suffix is allowed "
+                        + "(optional, default 256k)");
+        ioBuffer.setOptionalArg(true);
+        options.addOption(ioBuffer);
+
+        Option syncIo = new Option("syncio", "syncio", false,
+                "read and write the run files on the threads that merge them, without read-ahead and write-behind (optional)");
+        options.addOption(syncIo);
+
+        Option tempDirs = new Option("tmp", "tempdirs", true,
+                "comma separated temp directories, preferably on different disks, to spread the runs over (optional, "
+                        + "default the temporary directory of app.properties)");
+        tempDirs.setOptionalArg(true);
+        options.addOption(tempDirs);
+
+        Option placement = new Option("placement", "placement", true,
+                "how the temp directory of every run is chosen - roundrobin or space (the most usable space), "
+                        + "optional, default roundrobin");
+        placement.setOptionalArg(true);
+        options.addOption(placement);
+
+        Option report = new Option("report", "report", true,
+                "path of a json report of the metrics of the sort - records, bytes, runs, merges, times and memory (optional)");
+        report.setOptionalArg(true);
+        options.addOption(report);
+
+        Option delimiter = new Option("delim", "delimiter", true,
+                "the char between the fields of a record, \\t for a tab (optional, default ,)");
+        delimiter.setOptionalArg(true);
+        options.addOption(delimiter);
+
+        Option quote = new Option("quote", "quote", true,
+                "the char around quoted fields, doubled inside a quoted field for a single one (optional, default \")");
+        quote.setOptionalArg(true);
+        options.addOption(quote);
+
+        return options;
     }
 }
@@ -1,8 +1,7 @@
 package csvsorter;
 
-import com.opencsv.CSVParser;
-
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * this is a base class for the map and reduce workers, that has the part that both of the workers need
@@ -11,6 +10,10 @@ class MapReduceWorkersBase extends Thread {
 
     int sortingKeyIndex;
 
+    //every worker runs on a single thread, so it can keep one tokenizer instead of creating one per record.
+    //workers of a sort set the tokenizer of its csv format, otherwise the default format is used
+    CsvKeyTokenizer keyTokenizer;
+
     /**
      * this method handles csv parsing for a single record. both mapper and reducer use this while sorting/
      *
@@ -18,14 +21,38 @@ class MapReduceWorkersBase extends Thread {
      * @return the key at sortingKeyIndex from the given record
      */
     public String getSortingKey(String record) {
-        CSVParser parser = new CSVParser();
-        String sortingKey = null;
-        try {
-            String[] fields = parser.parseLine(record);
-            sortingKey = fields[sortingKeyIndex];
-        } catch (IOException e) {
-            e.printStackTrace();
+        return keyTokenizer().key(record);
+    }
+
+    /**
+     * parse the record once and keep its sorting key next to it, for all the comparisons to come.
+     * the record is scanned only up to its key, and the key is encoded straight from the record.
+     *
+     * @param record - a string that represents a single csv record
+     * @return the record decorated with its key, or null if the given record is null (end of input)
+     */
+    KeyedRecord toKeyedRecord(String record) {
+        return record == null ? null
+                : new KeyedRecord(keyTokenizer().encodeKey(record), record.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * same as {@link #toKeyedRecord(String)}, for a record of the input of the sort
+     *
+     * @param record       - a single csv record of the input
+     * @param input        - the name of the input, for the error, null if the records don't come from a file
+     * @param recordNumber - the number of the record in the input, from 1
+     * @throws IOException if the record has no key, with the input and the record number
+     */
+    KeyedRecord toKeyedInputRecord(String record, String input, long recordNumber) throws IOException {
+        return new KeyedRecord(keyTokenizer().encodeInputKey(record, input, recordNumber),
+                record.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private CsvKeyTokenizer keyTokenizer() {
+        if (keyTokenizer == null) {
+            keyTokenizer = new CsvKeyTokenizer(sortingKeyIndex);
         }
-        return sortingKey;
+        return keyTokenizer;
     }
-}
\ No newline at end of file
+}
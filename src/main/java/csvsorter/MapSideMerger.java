@@ -0,0 +1,147 @@
+package csvsorter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * this class merges sorted parts while the map is still writing the next ones, so the merging overlaps with the
+ * sorting, and the reduce doesn't wait for the whole map to start merging.
+ * only when there are more parts than a single merge can take, the first fanIn parts that are not merged yet
+ * are merged as soon as they are all written. the merged run takes the name of the first of its parts,
+ * so the reducer still finds the runs ordered by their position in the input.
+ * merges are scheduled by the thread that submits the parts, never by the workers.
+ */
+class MapSideMerger {
+
+    private static final String MERGE_SUFFIX = ".map_merge";
+
+    private final SortScheduler scheduler;
+    private final RunStorage runStorage;
+    private final int fanIn;
+    private final String tempFilesDir;
+
+    //the parts that were not merged yet, in input order
+    private final Deque<PendingPart> pendingParts = new ArrayDeque<>();
+    private final List<Future<?>> merges = new ArrayList<>();
+    //the number of runs that will be left when the scheduled merges are done
+    private int numberOfRuns;
+
+    /**
+     * @param fanIn           - the number of parts in each merge, more parts than this are never merged in a single pass
+     * @param tempFilesDir    - path to where the merged runs are written to, unless there are several temp directories
+     * @param scheduler       - runs the merges, next to the sorting of the parts
+     * @param runStorage      - opens the parts and creates the merged runs
+     */
+    MapSideMerger(int fanIn, String tempFilesDir, SortScheduler scheduler, RunStorage runStorage) {
+        this.fanIn = fanIn;
+        this.tempFilesDir = tempFilesDir;
+        this.scheduler = scheduler;
+        this.runStorage = runStorage;
+    }
+
+    /**
+     * @param partNumber - the number of a part that was submitted, parts are submitted in input order
+     * @param partFile   - the path of the part
+     * @param written    - the future of the task that sorts and writes the part
+     */
+    void partSubmitted(int partNumber, String partFile, Future<?> written) {
+        pendingParts.add(new PendingPart(partNumber, partFile, written));
+        numberOfRuns++;
+        scheduleMerges();
+    }
+
+    /**
+     * wait until all the scheduled merges are done
+     *
+     * @throws IOException - the error of the first merge that failed
+     */
+    void awaitMerges() throws IOException {
+        SortScheduler.awaitAll(merges);
+    }
+
+    private void scheduleMerges() {
+        while (numberOfRuns > fanIn && pendingParts.size() >= fanIn && firstPartsAreWritten()) {
+            List<PendingPart> parts = new ArrayList<>(fanIn);
+            for (int i = 0; i < fanIn; i++) {
+                parts.add(pendingParts.poll());
+            }
+            numberOfRuns -= fanIn - 1;
+            merges.add(scheduler.submit(() -> mergeParts(parts)));
+        }
+    }
+
+    private boolean firstPartsAreWritten() {
+        int checked = 0;
+        for (PendingPart part : pendingParts) {
+            if (checked++ == fanIn) {
+                return true;
+            }
+            if (!part.written.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * merge the parts into a run that replaces the first of them, then delete the others.
+     * the merged run is written away from the disks of the parts when there are several temp directories,
+     * and takes the name of the first part in its own directory.
+     * if the merge fails, the task fails with its error, and with it the sort.
+     */
+    private void mergeParts(List<PendingPart> parts) {
+        List<String> partFiles = new ArrayList<>(parts.size());
+        parts.forEach(part -> partFiles.add(part.partFile));
+        int firstPartNumber = parts.get(0).partNumber;
+        String mergedFile = runStorage.runFile(tempFilesDir, Constants.PART_PREFIX + firstPartNumber + MERGE_SUFFIX,
+                partFiles);
+        String mergedPartFile = Paths.get(mergedFile).resolveSibling(Mapper.mapFileName(firstPartNumber)).toString();
+        runStorage.getMetrics().mapSideMerges.increment();
+        try {
+            new MergeSortedPartsReduceWorker(partFiles, mergedFile, runStorage, false).merge();
+        } catch (IOException e) {
+            deleteAfterFailure(mergedFile, e);
+            throw new UncheckedIOException(e);
+        }
+        try {
+            for (String partFile : partFiles) {
+                if (!partFile.equals(mergedPartFile)) {
+                    runStorage.deleteRun(partFile);
+                }
+            }
+            runStorage.moveRun(mergedFile, mergedPartFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param failure - the error of the merge, an error of the delete is added to it
+     */
+    private static void deleteAfterFailure(String file, IOException failure) {
+        try {
+            Files.deleteIfExists(Paths.get(file));
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private static class PendingPart {
+        final int partNumber;
+        final String partFile;
+        final Future<?> written;
+
+        PendingPart(int partNumber, String partFile, Future<?> written) {
+            this.partNumber = partNumber;
+            this.partFile = partFile;
+            this.written = written;
+        }
+    }
+}
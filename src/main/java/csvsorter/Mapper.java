@@ -1,22 +1,27 @@
 package csvsorter;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
- * this class will calculate the number of parts that the input file will be divided to,
- * and initiate worker threads to handle(sort) each part
+ * this class reads the input file once, cuts it into parts that fit in memory (by number of records and by size),
+ * and hands each part to a worker thread that sorts it and writes it to a file
  */
 public class Mapper {
     private static final Logger logger = Logger.getLogger(String.valueOf(Mapper.class));
 
-    private final int maxRecordsNumber;
-    private final int sortingKeyIndex;
+    private final SortOptions options;
+    private final RunStorage runStorage;
+    private final SortScheduler scheduler;
+    //every part may be held in memory by a worker, by the queue or by the reader, so each one gets its share of the budget
+    private final long partMemoryBudget;
 
     /**
      * @param sortingKeyIndex  - the index of the key in the csv record, the sorting is done by to this key
@@ -25,45 +30,202 @@ public class Mapper {
      *                         this allows sorting of each part to be done in memory
      */
     public Mapper(int sortingKeyIndex, int maxRecordsNumber) {
-        this.sortingKeyIndex = sortingKeyIndex;
-        this.maxRecordsNumber = maxRecordsNumber;
+        this(SortOptions.builder(sortingKeyIndex).maxRecordsNumber(maxRecordsNumber).build());
     }
 
     /**
-     * calculate the number of parts (by counting total number of lines and dividing by maxRecordsNumber)
-     * then initiating a new thread pool of worker threads to handle the parts, and waiting for them to finish the work.
+     * @param options - the sort options. each part will contain up to maxRecordsNumber records, and will be cut
+     *                earlier if its records fill the part's share of the memory budget.
+     *                numberOfWorkers workers sort the parts, and the same number of parts may wait in the queue,
+     *                so up to (2 * numberOfWorkers + 1) parts are held in memory at a time
+     */
+    public Mapper(SortOptions options) {
+        this(options, new RunStorage(options));
+    }
+
+    /**
+     * @param options    - the sort options
+     * @param runStorage - creates the part files, in the spill format and compression
+     */
+    Mapper(SortOptions options, RunStorage runStorage) {
+        this(options, runStorage, new SortScheduler(options.getNumberOfWorkers(), runStorage.getMetrics()));
+    }
+
+    /**
+     * @param options    - the sort options
+     * @param runStorage - creates the part files, in the spill format and compression
+     * @param scheduler  - runs the sorting of the parts, and the merges that overlap with it
+     */
+    Mapper(SortOptions options, RunStorage runStorage, SortScheduler scheduler) {
+        this.options = options;
+        this.runStorage = runStorage;
+        this.scheduler = scheduler;
+        this.partMemoryBudget = partMemoryBudget(options);
+    }
+
+    /**
+     * @return the estimated size of the records of a part - the share of the memory budget of every part that is
+     * read or sorted, and of the one that is cut from the input
+     */
+    static long partMemoryBudget(SortOptions options) {
+        return options.getMemoryBudget() / (2L * options.getNumberOfWorkers() + 1);
+    }
+
+    /**
+     * read the input file sequentially, line by line, and cut it into parts of maxRecordsNumber records,
+     * or less when the estimated size of the records of the part reaches its share of the memory budget.
+     * each part is handed to a worker thread of the scheduler through its bounded queue. when the queue is full,
+     * reading is paused until a worker takes the next part, so the input is read exactly once and memory stays bounded.
+     * when there are more parts than a single merge can take, the parts that are already written are merged
+     * by the same workers while the next parts are sorted (see {@link MapSideMerger}).
+     * when the options ask for replacement selection, the parts are generated by a ReplacementSelectionMapWorker instead,
+     * and when they ask for byte range splitting, every worker reads its own range of the input (see {@link #mapByteRanges}).
      *
      * @param inputCSVFile - path to input file
      * @param tempFilesDir - path to where all the smaller files (parts) will be written to
+     * @return the number of parts that were written
+     */
+    int map(String inputCSVFile, String tempFilesDir) throws IOException {
+        runStorage.getMetrics().startPhase(SortMetrics.Phase.MAP);
+        if (options.getRunGeneration() == SortOptions.RunGeneration.REPLACEMENT_SELECTION) {
+            return new ReplacementSelectionMapWorker(inputCSVFile, tempFilesDir, options, runStorage).generateParts();
+        }
+        if (options.getInputSplitting() == SortOptions.InputSplitting.BYTE_RANGES) {
+            //a compressed input can only be read from its start, it is read by lines
+            if (!GzipFiles.isCompressed(inputCSVFile)) {
+                return mapByteRanges(inputCSVFile, tempFilesDir, InputRangeSplitter.MIN_RANGE_SIZE);
+            }
+            logger.info("The file " + inputCSVFile + " is compressed, it is read by lines instead of byte ranges");
+        }
+
+        try (BufferedReader reader = runStorage.openInput(inputCSVFile)) {
+            return mapRecords(reader::readLine, tempFilesDir, inputCSVFile);
+        }
+    }
+
+    /**
+     * same as {@link #map(String, String)}, for records that don't come from a file - they are cut into parts by a
+     * single reader (or generated by replacement selection), byte range splitting needs a file and is not used.
+     *
+     * @param records      - the records of the input, in input order
+     * @param tempFilesDir - path to where all the smaller files (parts) will be written to
+     * @return the number of parts that were written
      */
-    void map(String inputCSVFile, String tempFilesDir) throws IOException {
-        long numberOfParts = countIInitialParts(inputCSVFile, maxRecordsNumber);
-        ExecutorService taskExecutor = Executors.newCachedThreadPool();
-
-        for (int i = 1; i <= numberOfParts; i++) {
-            int startLine = i == 1 ? i : (i - 1) * maxRecordsNumber + 1;
-            String partitionFileName = createMapFileName(i, tempFilesDir);
-            SplitFileAndSortEachPartMapWorker mapThread =
-                    new SplitFileAndSortEachPartMapWorker(partitionFileName, startLine, maxRecordsNumber, inputCSVFile, sortingKeyIndex);
-            taskExecutor.execute(mapThread);
+    int map(RecordSource records, String tempFilesDir) throws IOException {
+        runStorage.getMetrics().startPhase(SortMetrics.Phase.MAP);
+        if (options.getRunGeneration() == SortOptions.RunGeneration.REPLACEMENT_SELECTION) {
+            return new ReplacementSelectionMapWorker(null, tempFilesDir, options, runStorage).generateParts(records);
         }
-        taskExecutor.shutdown();
+        return mapRecords(records, tempFilesDir, null);
+    }
+
+    /**
+     * @param input - the name of the input, for the error of a malformed record, null if it is not a file
+     */
+    private int mapRecords(RecordSource records, String tempFilesDir, String input) throws IOException {
+        MapSideMerger mapSideMerger = new MapSideMerger(mapSideMergeFanIn(), tempFilesDir, scheduler, runStorage);
+        List<Future<?>> sortTasks = new ArrayList<>();
+        int numberOfParts = 0;
+        long numberOfRecords = 0;
         try {
-            taskExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);//let's wait till the end of time
-        } catch (InterruptedException e) {
-            logger.severe(String.valueOf(e));
+            List<String> part = new ArrayList<>();
+            long partSize = 0;
+            String line;
+            while ((line = records.nextRecord()) != null) {
+                part.add(line);
+                partSize += KeyedRecord.estimateSize(line);
+                if (part.size() == options.getMaxRecordsNumber() || partSize >= partMemoryBudget) {
+                    submitPart(part, ++numberOfParts, input, numberOfRecords + 1, tempFilesDir, sortTasks, mapSideMerger);
+                    numberOfRecords += part.size();
+                    part = new ArrayList<>();
+                    partSize = 0;
+                }
+            }
+            if (!part.isEmpty()) {
+                submitPart(part, ++numberOfParts, input, numberOfRecords + 1, tempFilesDir, sortTasks, mapSideMerger);
+            }
+        } finally {
+            try {
+                SortScheduler.awaitAll(sortTasks);
+            } finally {
+                mapSideMerger.awaitMerges();
+            }
+        }
+        return numberOfParts;
+    }
+
+    /**
+     * @return the number of parts in a merge that overlaps with the map. a worker that merges doesn't hold a part,
+     * so the read buffers of the merge have to fit in the memory budget of a part. if even 2 don't fit,
+     * the parts are left for the reducer
+     */
+    private int mapSideMergeFanIn() {
+        long fanInByMemory = partMemoryBudget / runStorage.bytesPerOpenRun() - 1;
+        return fanInByMemory < 2 ? Integer.MAX_VALUE : (int) Math.min(options.getFanIn(), fanInByMemory);
+    }
+
+    /**
+     * divide the input file into a byte range per worker, aligned to record boundaries, and let every worker
+     * read, parse and sort the parts of its own range, so no single thread reads or decodes the whole input.
+     * when the workers are done, their parts are numbered by their position in the input (range, then part in range),
+     * so the reducer merges them in input order and records with equal keys keep their order.
+     * every worker holds a single part in memory at a time, so each part gets 1 / numberOfWorkers of the memory budget.
+     *
+     * @param inputCSVFile - path to input file
+     * @param tempFilesDir - path to where all the smaller files (parts) will be written to
+     * @param minRangeSize - the input is not divided into ranges smaller than this
+     * @return the number of parts that were written
+     */
+    int mapByteRanges(String inputCSVFile, String tempFilesDir, long minRangeSize) throws IOException {
+        int numberOfWorkers = options.getNumberOfWorkers();
+        long rangePartMemoryBudget = options.getMemoryBudget() / numberOfWorkers;
+        List<ByteRangeMapWorker> rangeWorkers = new ArrayList<>(numberOfWorkers);
+        List<Future<?>> rangeTasks = new ArrayList<>(numberOfWorkers);
+        try (FileChannel input = FileChannel.open(Paths.get(inputCSVFile), StandardOpenOption.READ)) {
+            try {
+                long[] boundaries = InputRangeSplitter.alignedBoundaries(input, numberOfWorkers, minRangeSize,
+                        options.getQuote(), scheduler);
+                for (int range = 0; range < boundaries.length - 1; range++) {
+                    if (boundaries[range] < boundaries[range + 1]) {
+                        ByteRangeMapWorker rangeWorker = new ByteRangeMapWorker(input, inputCSVFile, boundaries[range],
+                                boundaries[range + 1], range + 1, tempFilesDir, options, rangePartMemoryBudget, runStorage);
+                        rangeWorkers.add(rangeWorker);
+                        rangeTasks.add(scheduler.submit(rangeWorker));
+                    }
+                }
+            } finally {
+                //the input is closed when all the workers are done with it
+                SortScheduler.awaitAll(rangeTasks);
+            }
         }
+
+        //every part is renamed in its own temp directory, never copied to another disk
+        int numberOfParts = 0;
+        for (ByteRangeMapWorker rangeWorker : rangeWorkers) {
+            for (String partFile : rangeWorker.getPartFiles()) {
+                runStorage.moveRun(partFile, Paths.get(partFile).resolveSibling(mapFileName(++numberOfParts)).toString());
+            }
+        }
+        return numberOfParts;
+    }
+
+    private void submitPart(List<String> part, int partNumber, String input, long firstRecordNumber, String tempFilesDir,
+                            List<Future<?>> sortTasks, MapSideMerger mapSideMerger) {
+        String partitionFileName = runStorage.runFile(tempFilesDir, mapFileName(partNumber));
+        Future<?> sortTask = scheduler.submit(new SplitFileAndSortEachPartMapWorker(partitionFileName, part, runStorage,
+                input, firstRecordNumber));
+        sortTasks.add(sortTask);
+        mapSideMerger.partSubmitted(partNumber, partitionFileName, sortTask);
     }
 
-    private long countIInitialParts(String inputCSVFile, int maxRecordsNumber) throws IOException {
-        long inputCSVFileLinesCounter = Files.lines(Paths.get(inputCSVFile)).count();
-        if (inputCSVFileLinesCounter % maxRecordsNumber != 0)
-            return (inputCSVFileLinesCounter / maxRecordsNumber) + 1;
-        else
-            return inputCSVFileLinesCounter / maxRecordsNumber;
+    static String createMapFileName(int partNumber, String tempFilesDir) {
+        return tempFilesDir + mapFileName(partNumber);
     }
 
-    private String createMapFileName(int partNumber, String tempFilesDir) {
-        return tempFilesDir + Constants.PART_PREFIX + partNumber + Constants.MAP_SUFFIX;
+    /**
+     * @return the name of the file of a sorted part, the reducer finds the parts by it in every temp directory
+     */
+    static String mapFileName(int partNumber) {
+        return Constants.PART_PREFIX + partNumber + Constants.MAP_SUFFIX;
     }
 }
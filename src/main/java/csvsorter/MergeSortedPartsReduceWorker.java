@@ -1,20 +1,29 @@
 package csvsorter;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
- * this class will merge 2 input files (inputFile1 and inputFile2) into 1 merged file (mergedFile),
- * according to the sorting key (at sortingKeyIndex).
+ * this class will merge k input files (sorted parts) into 1 merged file (mergedFile),
+ * according to the sorting key.
  * The merge is done by external sorting (without loading the files to memory).
  */
 class MergeSortedPartsReduceWorker extends MapReduceWorkersBase {
     private static final Logger logger = Logger.getLogger(String.valueOf(MergeSortedPartsReduceWorker.class));
 
-    String inputFile1, inputFile2, mergedFile;
+    List<String> inputFiles;
+    String mergedFile;
+    RunStorage runStorage;
+    boolean finalMerge;
+    byte[] lowerKey, upperKey;
+    //true to delete the inputFiles that the runStorage created, as soon as they are merged
+    boolean deleteInputs;
+    //the time spent parsing the lines of text runs, only this worker's thread parses them
+    private long parseNanos;
 
     /**
      * @param inputFile1 - a file that contains a part of the (larger) csv file
@@ -23,45 +32,133 @@ class MergeSortedPartsReduceWorker extends MapReduceWorkersBase {
      * @param sortingKeyIndex - member of MapReduceWorkersBase, the index in the csv record of the key to sort by
      */
     MergeSortedPartsReduceWorker(String inputFile1, String inputFile2, String mergedFile, int sortingKeyIndex) {
-        this.inputFile1 = inputFile1;
-        this.inputFile2 = inputFile2;
+        this(Arrays.asList(inputFile1, inputFile2), mergedFile, new RunStorage(SortOptions.builder(sortingKeyIndex).build()),
+                true);
+    }
+
+    /**
+     * @param inputFiles      - the sorted parts to merge, ordered by their position in the input file
+     * @param mergedFile      - the file that will contain the merged result of all the inputFiles
+     * @param runStorage      - opens the inputFiles and creates the mergedFile, in the spill format and compression
+     * @param finalMerge      - true if the mergedFile is the sorted output, which is written as csv.
+     *                        otherwise it is an intermediate run, in the spill format and compression
+     */
+    MergeSortedPartsReduceWorker(List<String> inputFiles, String mergedFile, RunStorage runStorage, boolean finalMerge) {
+        this(inputFiles, mergedFile, runStorage, finalMerge, null, null);
+    }
+
+    /**
+     * @param inputFiles      - the sorted parts to merge, ordered by their position in the input file
+     * @param mergedFile      - the file that will contain the merged records of all the inputFiles in the key range
+     * @param runStorage      - opens the inputFiles and creates the mergedFile, in the spill format and compression
+     * @param finalMerge      - true if the mergedFile is (a partition of) the sorted output, which is written as csv
+     * @param lowerKey        - the smallest encoded key to merge, null to merge from the first record
+     * @param upperKey        - the encoded key after the last key to merge, null to merge to the last record.
+     *                        the inputFiles are read from their indexed record before lowerKey, when they have an index
+     */
+    MergeSortedPartsReduceWorker(List<String> inputFiles, String mergedFile, RunStorage runStorage, boolean finalMerge,
+                                 byte[] lowerKey, byte[] upperKey) {
+        this.inputFiles = inputFiles;
         this.mergedFile = mergedFile;
-        this.sortingKeyIndex = sortingKeyIndex;
+        this.runStorage = runStorage;
+        this.keyTokenizer = runStorage.newKeyTokenizer();
+        this.finalMerge = finalMerge;
+        this.lowerKey = lowerKey;
+        this.upperKey = upperKey;
     }
 
     /**
-     * open for read the 2 input files, open for write the mergedFile.
-     * read line by line, and compare the lines from each file by the sorting key,
-     * then write the matching line to the mergedFile
+     * merge the input files, see {@link #merge()}. an IO error fails the task, and with it the sort
      */
     public void run() {
         try {
-            logger.fine("Started Merging " + inputFile1 + " with " + inputFile2);
-            FileReader fileReader1 = new FileReader(inputFile1);
-            BufferedReader bufferedReader1 = new BufferedReader(fileReader1);
-            FileReader fileReader2 = new FileReader(inputFile2);
-            BufferedReader bufferedReader2 = new BufferedReader(fileReader2);
+            merge();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-            FileWriter writer = new FileWriter(mergedFile);
+    /**
+     * open for read all the input files, open for write the mergedFile.
+     * read line by line, and pick the smallest line of all the input files by the sorting key (extracted once per line)
+     * using a tournament tree, then write the matching line to the mergedFile.
+     * when deleteInputs is set, the input files are deleted once they are merged
+     *
+     * @throws IOException - in case of any IO error, the mergedFile is not complete and the inputs are kept
+     */
+    void merge() throws IOException {
+        List<RunReader> runs = new ArrayList<>(inputFiles.size());
+        Throwable failure = null;
+        try {
+            logger.fine("Started Merging " + inputFiles);
+            for (String inputFile : inputFiles) {
+                runs.add(openRun(inputFile));
+            }
 
-            String lineFromFirstFile = bufferedReader1.readLine();
-            String lineFromSecondFile = bufferedReader2.readLine();
-            while (lineFromFirstFile != null || lineFromSecondFile != null) {
-                if (lineFromFirstFile == null || (lineFromSecondFile != null
-                        && (getSortingKey(lineFromFirstFile)).compareTo(getSortingKey(lineFromSecondFile)) > 0)) {
-                    writer.write(lineFromSecondFile + "\r\n");
-                    lineFromSecondFile = bufferedReader2.readLine();
-                } else {
-                    writer.write(lineFromFirstFile + "\r\n");
-                    lineFromFirstFile = bufferedReader1.readLine();
+            KWayMerger merger = new KWayMerger(runs, runStorage.ordersTiesByRecord());
+            long records = 0;
+            try (RunWriter writer = finalMerge ? runStorage.createOutput(mergedFile) : runStorage.createRun(mergedFile, true)) {
+                KeyedRecord record;
+                while ((record = merger.next()) != null) {
+                    writer.write(record);
+                    records++;
                 }
             }
-            writer.close();
-            fileReader1.close();
-            fileReader2.close();
-            logger.info("Done Merging " + inputFile1 + " and " + inputFile2);
-        } catch (IOException e) {
-            logger.severe(String.valueOf(e));
+            SortMetrics metrics = runStorage.getMetrics();
+            metrics.merges.increment();
+            metrics.maxFanIn.accumulate(inputFiles.size());
+            metrics.parseNanos.add(parseNanos);
+            (finalMerge ? metrics.outputRecords : metrics.runRecordsWritten).add(records);
+            logger.info("Done Merging " + inputFiles.size() + " files into " + mergedFile);
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            closeAll(runs, failure);
+        }
+        if (deleteInputs) {
+            runStorage.deleteConsumedRuns(inputFiles);
+        }
+    }
+
+    private RunReader openRun(String inputFile) throws IOException {
+        if (lowerKey == null && upperKey == null) {
+            return runStorage.openRun(inputFile, this::parseRunRecord);
+        }
+        RunIndex index = lowerKey == null ? null : runStorage.getRunIndex(inputFile);
+        long offset = index == null ? 0 : index.offsetBefore(lowerKey);
+        return new KeyRangeRunReader(runStorage.openRun(inputFile, this::parseRunRecord, offset), lowerKey, upperKey);
+    }
+
+    /**
+     * parse a line of a text run, and measure the time it took
+     */
+    private KeyedRecord parseRunRecord(String line) {
+        long start = System.nanoTime();
+        KeyedRecord record = toKeyedRecord(line);
+        parseNanos += System.nanoTime() - start;
+        return record;
+    }
+
+    /**
+     * @param failure - the error of the merge, an error of a close is added to it. null if the merge is done,
+     *                and then an error of a close is thrown
+     */
+    private static void closeAll(List<RunReader> runs, Throwable failure) throws IOException {
+        IOException closeFailure = null;
+        for (RunReader run : runs) {
+            try {
+                run.close();
+            } catch (IOException e) {
+                if (failure != null) {
+                    failure.addSuppressed(e);
+                } else if (closeFailure == null) {
+                    closeFailure = e;
+                }
+            }
+        }
+        if (closeFailure != null) {
+            throw closeFailure;
         }
     }
-}
\ No newline at end of file
+}
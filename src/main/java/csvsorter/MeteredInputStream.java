@@ -0,0 +1,57 @@
+package csvsorter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counts the bytes that are read from a file, and the time it takes to read them.
+ * the readers above it buffer, so the time is measured per buffer, not per record.
+ */
+class MeteredInputStream extends FilterInputStream {
+
+    private final LongAdder bytes;
+    private final LongAdder nanos;
+
+    /**
+     * @param input - the stream of the file
+     * @param bytes - adds the bytes that were read
+     * @param nanos - adds the time of the reads
+     */
+    MeteredInputStream(InputStream input, LongAdder bytes, LongAdder nanos) {
+        super(input);
+        this.bytes = bytes;
+        this.nanos = nanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int read = in.read();
+        nanos.add(System.nanoTime() - start);
+        if (read >= 0) {
+            bytes.increment();
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        int read = in.read(buffer, offset, length);
+        nanos.add(System.nanoTime() - start);
+        if (read > 0) {
+            bytes.add(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long length) throws IOException {
+        long start = System.nanoTime();
+        long skipped = in.skip(length);
+        nanos.add(System.nanoTime() - start);
+        return skipped;
+    }
+}
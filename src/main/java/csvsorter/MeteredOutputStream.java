@@ -0,0 +1,68 @@
+package csvsorter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * counts the bytes that are written to a file, and the time it takes to write them.
+ * the writers above it buffer, so the time is measured per buffer, not per record.
+ */
+class MeteredOutputStream extends FilterOutputStream {
+
+    private final LongAdder nanos;
+    private final LongConsumer onClose;
+    private long bytes;
+    private boolean closed;
+
+    /**
+     * @param output  - the stream of the file
+     * @param nanos   - adds the time of the writes
+     * @param onClose - receives the number of bytes of the file when it is closed
+     */
+    MeteredOutputStream(OutputStream output, LongAdder nanos, LongConsumer onClose) {
+        super(output);
+        this.nanos = nanos;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long start = System.nanoTime();
+        out.write(b);
+        nanos.add(System.nanoTime() - start);
+        bytes++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        out.write(buffer, offset, length);
+        nanos.add(System.nanoTime() - start);
+        bytes += length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long start = System.nanoTime();
+        out.flush();
+        nanos.add(System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long start = System.nanoTime();
+        try {
+            out.close();
+        } finally {
+            nanos.add(System.nanoTime() - start);
+            onClose.accept(bytes);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package csvsorter;
+
+import java.io.IOException;
+
+/**
+ * reads a file that is expected to be sorted, like an earlier output that new records are merged into,
+ * and fails at the first record whose key is smaller than the key of the record before it.
+ * the keys are parsed for the merge anyway, so the check costs a single comparison per record.
+ */
+class OrderCheckingRunReader implements RunReader {
+
+    private final RunReader run;
+    private final String file;
+    private byte[] previousKey;
+    private long records;
+
+    /**
+     * @param run  - a reader of the file, from its first record
+     * @param file - the path of the file, for the error message
+     */
+    OrderCheckingRunReader(RunReader run, String file) {
+        this.run = run;
+        this.file = file;
+    }
+
+    @Override
+    public KeyedRecord next() throws IOException {
+        KeyedRecord record = run.next();
+        if (record == null) {
+            return null;
+        }
+        records++;
+        if (previousKey != null && KeyedRecord.compareKeys(record.key, previousKey) < 0) {
+            throw new IOException("the file " + file + " is not sorted by the key, record " + records
+                    + " is smaller than the record before it");
+        }
+        previousKey = record.key;
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        run.close();
+    }
+}
@@ -0,0 +1,127 @@
+package csvsorter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * compresses a stream to gzip on several threads, like pigz: the bytes are cut into blocks, and every block is
+ * compressed by a background thread into a gzip member of its own while the writer fills the next blocks.
+ * the members are written in order, and a sequence of gzip members is a gzip file (RFC 1952) that gzip, zcat and
+ * {@link java.util.zip.GZIPInputStream} read as one stream - so the final merge doesn't wait for the compression,
+ * and compressed key ranges of a partitioned merge are concatenated like plain ones.
+ * the blocks don't share a dictionary, which costs a little of the compression ratio.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int maxPendingBlocks;
+    private final LongAdder waitNanos;
+    //the compressed members in flight, in the order of their blocks
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int length;
+    private boolean empty = true;
+    private boolean closed;
+
+    /**
+     * @param out              - the stream of the compressed file, it is closed when this stream is closed
+     * @param executor         - compresses the blocks
+     * @param maxPendingBlocks - the number of blocks that are compressed at the same time, before the writer waits
+     * @param waitNanos        - adds the time the writer waited for a block to be compressed
+     */
+    ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int maxPendingBlocks, LongAdder waitNanos) {
+        this.out = out;
+        this.executor = executor;
+        this.maxPendingBlocks = maxPendingBlocks;
+        this.waitNanos = waitNanos;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (length == block.length) {
+            submitBlock();
+        }
+        block[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (length == block.length) {
+                submitBlock();
+            }
+            int copied = Math.min(len, block.length - length);
+            System.arraycopy(b, off, block, length, copied);
+            length += copied;
+            off += copied;
+            len -= copied;
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] data = block;
+        int dataLength = length;
+        pending.add(executor.submit(() -> compress(data, dataLength)));
+        empty = false;
+        block = new byte[BLOCK_SIZE];
+        length = 0;
+        while (pending.size() > maxPendingBlocks) {
+            out.write(AsyncIo.await(pending.poll(), waitNanos));
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(member)) {
+            gzip.write(data, 0, length);
+        }
+        return member.toByteArray();
+    }
+
+    /**
+     * writes the members that are compressed, the block that is being filled is compressed when it is full
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            out.write(AsyncIo.await(pending.poll(), waitNanos));
+        }
+        out.flush();
+    }
+
+    /**
+     * compresses the last block and writes all the members. an empty stream is written as an empty gzip member,
+     * so the file is still a gzip file
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (length > 0 || empty) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                out.write(AsyncIo.await(pending.poll(), waitNanos));
+            }
+        } finally {
+            for (Future<byte[]> member : pending) {
+                member.cancel(false);
+            }
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package csvsorter;
+
+import java.util.Arrays;
+
+/**
+ * the in memory sort of the parts during the map. every sort is stable, so records with equal keys keep
+ * their input order.
+ */
+public enum PartSort {
+    /**
+     * msd radix sort of the first 8 bytes of the keys, that compares whole keys only when those bytes are equal,
+     * see {@link KeyPrefixSorter}
+     */
+    RADIX {
+        @Override
+        void sort(KeyedRecord[] part) {
+            KeyPrefixSorter.sort(part, false);
+        }
+    },
+    /**
+     * the radix sort, where the buckets of a large part are sorted in parallel on the common fork join pool.
+     * useful when there are fewer parts than processors, like with a single large part
+     */
+    PARALLEL_RADIX {
+        @Override
+        void sort(KeyedRecord[] part) {
+            KeyPrefixSorter.sort(part, true);
+        }
+    },
+    /**
+     * the merge sort of the jdk (timsort) that compares whole keys, fast on input that is mostly sorted
+     */
+    COMPARISON {
+        @Override
+        void sort(KeyedRecord[] part) {
+            Arrays.sort(part);
+        }
+    };
+
+    /**
+     * @param part - the records of a part, sorted in place
+     */
+    abstract void sort(KeyedRecord[] part);
+}
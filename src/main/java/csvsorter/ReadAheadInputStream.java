@@ -0,0 +1,116 @@
+package csvsorter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * reads a file ahead of its reader with two buffers: while the reader consumes one buffer, a background thread
+ * fills the other one, so the merge compares records while the next block of every run is read from the disk.
+ */
+class ReadAheadInputStream extends InputStream {
+
+    private final InputStream in;
+    private final ExecutorService executor;
+    private final LongAdder waitNanos;
+
+    private byte[] buffer;
+    private byte[] spare;
+    private int position;
+    private int limit;
+    //the fill of the spare buffer that is in flight, null once the file ended
+    private Future<Integer> pending;
+
+    /**
+     * @param in         - the stream of the file
+     * @param bufferSize - the size of each of the two buffers
+     * @param executor   - runs the reads
+     * @param waitNanos  - adds the time the reader waited for a buffer that was not read yet
+     */
+    ReadAheadInputStream(InputStream in, int bufferSize, ExecutorService executor, LongAdder waitNanos) {
+        this.in = in;
+        this.executor = executor;
+        this.waitNanos = waitNanos;
+        this.buffer = new byte[bufferSize];
+        this.spare = new byte[bufferSize];
+        fillSpare();
+    }
+
+    private void fillSpare() {
+        byte[] target = spare;
+        pending = executor.submit(() -> {
+            int length = 0;
+            while (length < target.length) {
+                int read = in.read(target, length, target.length - length);
+                if (read < 0) {
+                    break;
+                }
+                length += read;
+            }
+            return length;
+        });
+    }
+
+    /**
+     * @return false if the file ended
+     */
+    private boolean nextBuffer() throws IOException {
+        if (pending == null) {
+            return false;
+        }
+        int length = AsyncIo.await(pending, waitNanos);
+        pending = null;
+        byte[] filled = spare;
+        spare = buffer;
+        buffer = filled;
+        position = 0;
+        limit = length;
+        //a buffer that was not filled to the end is the last one
+        if (length == buffer.length) {
+            fillSpare();
+        }
+        return length > 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !nextBuffer()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == limit && !nextBuffer()) {
+            return -1;
+        }
+        int read = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, target, offset, read);
+        position += read;
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            //the file is closed only after the read in flight is done with it
+            if (pending != null) {
+                AsyncIo.await(pending, waitNanos);
+                pending = null;
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package csvsorter;
+
+import java.io.IOException;
+
+/**
+ * the csv records of the input of a sort, one at a time. {@link java.io.BufferedReader#readLine()} is a source of
+ * the lines of a file, and any iterator of records can be adapted to it.
+ */
+interface RecordSource {
+
+    /**
+     * @return the next record, or null at the end of the input
+     */
+    String nextRecord() throws IOException;
+}
@@ -1,93 +1,424 @@
 package csvsorter;
 
-import org.apache.commons.io.FileUtils;
+import com.sun.management.UnixOperatingSystemMXBean;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * this class scans the "tempFilesDir" to find the files that will be merged in this merge iteration,
- * initiates worker threads to handle the merge, and then calls recursively until there is only 1 file left in the iteration
+ * this class scans the "tempFilesDir" (and the other temp directories of the sort) once to find the sorted parts
+ * that were written by the mapper, and merges them with k-way merges (up to fanIn files in each merge) until there
+ * is only 1 file left. when the number of parts is not larger than the fan-in, this is done in a single pass over the data.
+ * every merge deletes its input files as soon as it is done with them.
  */
 public class Reducer {
 
     private static final Logger logger = Logger.getLogger(String.valueOf(Reducer.class));
 
-    private final int sortingKeyIndex;
+    //file descriptors that are left for the rest of the process (jars, logs, the input and output files)
+    private static final long RESERVED_FILE_DESCRIPTORS = 64;
+
+    private final int fanIn;
+    private final long memoryBudget;
+    private final int numberOfWorkers;
+    private final int outputPartitions;
+    private final boolean indexOutput;
+    private final RunStorage runStorage;
+    private final SortScheduler scheduler;
 
     /**
      * @param sortingKeyIndex - the index of the key in the csv record, the sorting is done by to this key
      */
     public Reducer(int sortingKeyIndex) {
-        this.sortingKeyIndex = sortingKeyIndex;
+        this(SortOptions.builder(sortingKeyIndex).build());
+    }
+
+    /**
+     * @param sortingKeyIndex - the index of the key in the csv record, the sorting is done by to this key
+     * @param fanIn           - maximum number of files that are merged together by a single merge worker
+     * @param memoryBudget    - memory in bytes that all the concurrent merges may use for their buffers.
+     *                        the fan-in is lowered if the buffers of fanIn files don't fit in it,
+     *                        or if there are not enough free file descriptors to open them all.
+     */
+    public Reducer(int sortingKeyIndex, int fanIn, long memoryBudget) {
+        this(SortOptions.builder(sortingKeyIndex).fanIn(fanIn).memoryBudget(memoryBudget).build());
+    }
+
+    /**
+     * @param options - the sort options, the reducer uses the sorting key index, the fan-in, the number of workers
+     *                and the memory budget, which is shared by all the merges that run at the same time
+     */
+    public Reducer(SortOptions options) {
+        this(options, new RunStorage(options));
+    }
+
+    /**
+     * @param options    - the sort options
+     * @param runStorage - opens the runs that the mapper created, and creates the runs of the merge passes
+     */
+    Reducer(SortOptions options, RunStorage runStorage) {
+        this(options, runStorage, new SortScheduler(options.getNumberOfWorkers(), runStorage.getMetrics()));
+    }
+
+    /**
+     * @param options    - the sort options
+     * @param runStorage - opens the runs that the mapper created, and creates the runs of the merge passes
+     * @param scheduler  - runs the merges of every pass
+     */
+    Reducer(SortOptions options, RunStorage runStorage, SortScheduler scheduler) {
+        this.fanIn = options.getFanIn();
+        this.memoryBudget = options.getMemoryBudget();
+        this.numberOfWorkers = options.getNumberOfWorkers();
+        this.outputPartitions = options.getOutputPartitions();
+        this.indexOutput = options.getIndexInterval() > 0;
+        this.runStorage = runStorage;
+        this.scheduler = scheduler;
     }
 
     /**
      * this method will scan the tempFilesDir and find all the files with filename that end with fileSuffix.
-     * these are the files that will be handled in the current iteration.
-     * then initiating a new thread pool of worker threads to handle the merges, and waiting for them to finish the work.
-     * the workers will merge each 2 files to 1 file, and in case of odd number of files, the last file will be renamed,
-     * to be merged in the next iteration.
+     * these are the sorted parts that will be merged, ordered by their part number.
+     * then it plans the merge passes: when all the parts fit in a single merge, they are merged in one pass,
+     * otherwise every pass merges only as many parts as needed so that the remaining passes can finish with full merges.
+     * the merges of each pass run on the workers of the scheduler, and the next pass starts when they are all done.
+     * when the options ask for output partitions, the final merge is divided into key ranges that are merged in parallel,
+     * and concatenated into the sorted file.
      *
      * @param tempFilesDir - the path on the disc to all the parts of the file that were created by the mapper,
-     *                     and also where this method will create the files during the recursive merge iterations.
-     * @param fileSuffix   - the suffix that is concatenated to the name of the file that is created in each merger of 2 files
-     * @param reduceDepth  - indicates the number of iteration in the recursion,
-     *                     effects the naming of the files that are created in each iteration,
-     *                     so that when the next iteration will scan the folder it'll find the relevant files.
+     *                     and also where this method will create the files during the merge passes.
+     * @param fileSuffix   - the suffix of the files that were created by the mapper
+     * @param reduceDepth  - the number of the first merge pass,
+     *                     effects the naming of the files that are created in each pass
      * @return - the path to the final sorted file
      * @throws IOException - in case of any IO error
      */
     String reduceRec(String tempFilesDir, String fileSuffix, int reduceDepth) throws IOException {
+        return reduce(tempFilesDir, fileSuffix, reduceDepth, false).get(0);
+    }
+
+    /**
+     * same as {@link #reduceRec(String, String, int)}, but every key range of the final merge is left
+     * as a sorted file of its own (a shard), instead of being concatenated.
+     *
+     * @return - the paths to the shards, ordered by their keys. there are exactly outputPartitions shards,
+     * a shard is empty if the sample of the keys was too small to give it a range
+     * @throws IOException - in case of any IO error
+     */
+    List<String> reduceToShards(String tempFilesDir, String fileSuffix, int reduceDepth) throws IOException {
+        return reduce(tempFilesDir, fileSuffix, reduceDepth, true);
+    }
 
-        List<File> files = findFilesForThisIteration(tempFilesDir, fileSuffix);
-        if (files.size() == 1) {
-            return files.get(0).getPath();
+    /**
+     * incremental sort - merge the sorted parts into an existing sorted file (an earlier output), instead of sorting
+     * all the records again. the parts are merged in passes as usual, and the sorted file is only read once,
+     * by the final merge, which keeps a place for it. its records come before the records of the parts that have
+     * equal keys, as if the parts were appended to it. the order of the sorted file is checked while it is merged.
+     *
+     * @param sortedFile - path to a csv file that is sorted by the key of the sort, it is not changed
+     * @return - the path to the final sorted file, with the records of the sorted file and of the parts
+     * @throws IOException - in case of any IO error, or if the sorted file is not sorted by the key
+     */
+    String reduceInto(String sortedFile, String tempFilesDir, String fileSuffix, int reduceDepth) throws IOException {
+        runStorage.addSortedFile(sortedFile);
+        runStorage.getMetrics().startPhase(SortMetrics.Phase.REDUCE);
+        String output = mergeAll(tempFilesDir, fileSuffix, reduceDepth, false, sortedFile).get(0);
+        runStorage.getMetrics().startPhase(SortMetrics.Phase.DONE);
+        return output;
+    }
+
+    /**
+     * merge passes only - the parts are merged until they fit in a single merge next to reservedInputs other inputs,
+     * and the remaining files are left for a final merge that the caller runs (like the streaming merge of a join).
+     * the runs are left in the spill format and compression, and they are not deleted.
+     *
+     * @param reservedInputs - the number of other inputs that the final merge of the caller reads,
+     *                       less than {@link #finalMergeFanIn()}
+     * @return - the paths to the remaining files, ordered by their position in the input
+     * @throws IOException - in case of any IO error
+     */
+    List<String> reduceToFinalRuns(String tempFilesDir, String fileSuffix, int reduceDepth, int reservedInputs)
+            throws IOException {
+        List<String> files = findFilesForThisIteration(tempFilesDir, fileSuffix);
+        //a pass of a single merge is still a pass when only one input is left for the files of the final merge
+        while (files.size() > finalMergeFanIn() - reservedInputs) {
+            files = mergePass(planMergePass(files, reservedInputs), tempFilesDir, reduceDepth++);
         }
+        return files;
+    }
 
-        ExecutorService taskExecutor = Executors.newCachedThreadPool();
+    /**
+     * @return the number of files that a single final merge reads, within the memory budget and the free file descriptors
+     */
+    int finalMergeFanIn() {
+        return effectiveFanIn(Math.min(outputPartitions, numberOfWorkers));
+    }
 
-        for (int i = 0, j = 1; i < files.size(); i += 2, j++) {
-            String mergeResultFileName = createMergeResultFileName(tempFilesDir, reduceDepth, j);
-            String tempFileName1 = files.get(i).getPath();
-            //if tempFileName1 is the last file in this reduce iteration, then rename it so that it will be merged in the next iteration
-            if (i + 1 == files.size()) {
-                File mergeResultFile = new File(mergeResultFileName);
-                FileUtils.moveFile(files.get(i), mergeResultFile);
-                break;
+    private List<String> reduce(String tempFilesDir, String fileSuffix, int reduceDepth, boolean sharded) throws IOException {
+        runStorage.getMetrics().startPhase(SortMetrics.Phase.REDUCE);
+        List<String> outputs = mergeAll(tempFilesDir, fileSuffix, reduceDepth, sharded, null);
+        runStorage.getMetrics().startPhase(SortMetrics.Phase.DONE);
+        return outputs;
+    }
+
+    /**
+     * @param sortedFile - a sorted file that the final merge reads before all the files, null if there is none
+     */
+    private List<String> mergeAll(String tempFilesDir, String fileSuffix, int reduceDepth, boolean sharded,
+                                  String sortedFile) throws IOException {
+        List<String> files = findFilesForThisIteration(tempFilesDir, fileSuffix);
+        //the runs are in the spill format and compression, and the final merge writes csv.
+        //a single run that isn't plain csv is still "merged" alone, to convert it, and so is a run that is sharded
+        //or indexed
+        if (files.size() == 1 && runStorage.runsAreCsv() && !sharded && !indexOutput && sortedFile == null) {
+            return files;
+        }
+        int reservedInputs = sortedFile == null ? 0 : 1;
+        while (true) {
+            List<List<String>> mergeGroups = planMergePass(files, reservedInputs);
+            if (mergeGroups.size() == 1) {
+                if (sortedFile != null) {
+                    List<String> finalFiles = new ArrayList<>(files.size() + 1);
+                    finalFiles.add(sortedFile);
+                    finalFiles.addAll(files);
+                    files = finalFiles;
+                }
+                return finalMerge(files, tempFilesDir, reduceDepth, sharded);
             }
-            String tempFileName2 = files.get(i + 1).getPath();
+            files = mergePass(mergeGroups, tempFilesDir, reduceDepth++);
+        }
+    }
+
+    /**
+     * @param reservedInputs - the number of inputs of the final merge that are not among the files
+     */
+    private List<List<String>> planMergePass(List<String> files, int reservedInputs) {
+        //the key ranges of the final merge run at the same time
+        int finalMergeFanIn = finalMergeFanIn() - reservedInputs;
+        int passFanIn = effectiveFanIn((int) Math.min(numberOfWorkers, ceilDiv(files.size(), finalMergeFanIn)));
+        List<List<String>> mergeGroups = planMergePass(files, passFanIn, finalMergeFanIn);
+        logger.info("Merging " + files.size() + " files into " + mergeGroups.size()
+                + " files, with a fan-in of up to " + (mergeGroups.size() == 1 ? finalMergeFanIn : passFanIn));
+        return mergeGroups;
+    }
 
+    private List<String> mergePass(List<List<String>> mergeGroups, String tempFilesDir, int reduceDepth) throws IOException {
+        //intermediate runs are written in the spill format and compression
+        runStorage.getMetrics().mergePasses.increment();
+        List<Future<?>> merges = new ArrayList<>(mergeGroups.size());
+        List<String> mergeResults = new ArrayList<>(mergeGroups.size());
+        for (int j = 0; j < mergeGroups.size(); j++) {
+            List<String> mergeGroup = mergeGroups.get(j);
+            //a file that isn't merged in this pass is kept as is, for the next pass
+            if (mergeGroup.size() == 1) {
+                mergeResults.add(mergeGroup.get(0));
+                continue;
+            }
+            //written away from the disks of the merged files, when there are several temp directories
+            String mergeResultFileName = runStorage.runFile(tempFilesDir,
+                    createMergeResultFileName("", reduceDepth, j + 1), mergeGroup);
+            mergeResults.add(mergeResultFileName);
             MergeSortedPartsReduceWorker reduceThread =
-                    new MergeSortedPartsReduceWorker(tempFileName1, tempFileName2, mergeResultFileName, sortingKeyIndex);
-            taskExecutor.execute(reduceThread);
+                    new MergeSortedPartsReduceWorker(mergeGroup, mergeResultFileName, runStorage, false);
+            reduceThread.deleteInputs = true;
+            merges.add(scheduler.submit(reduceThread));
         }
-        taskExecutor.shutdown();
-        try {
-            taskExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);//let's wait till the end of time
-        } catch (InterruptedException e) {
-            logger.severe(String.valueOf(e));
+        SortScheduler.awaitAll(merges);
+        return mergeResults;
+    }
+
+    /**
+     * merge the files into the sorted output, which is always csv. when the options ask for output partitions,
+     * splitter keys are chosen from the sample of keys that was taken while the files were written (see {@link RunIndex}),
+     * and every key range between two splitters is merged by its own worker, reading every file from its indexed record
+     * before the range. all the records with the same key are in the same range, so the sort stays stable.
+     *
+     * @return the merged key ranges, ordered by their keys. a single file unless sharded
+     */
+    private List<String> finalMerge(List<String> files, String tempFilesDir, int reduceDepth, boolean sharded)
+            throws IOException {
+        runStorage.getMetrics().mergePasses.increment();
+        List<byte[]> splitters = chooseSplitters(sampledKeys(files), outputPartitions);
+        int partitions = sharded ? outputPartitions : splitters.size() + 1;
+        if (partitions > 1) {
+            logger.info("Merging " + files.size() + " files in " + partitions + " key ranges");
+        }
+        List<Future<?>> merges = new ArrayList<>(partitions);
+        List<String> outputs = new ArrayList<>(partitions);
+        for (int partition = 0; partition < partitions; partition++) {
+            String output = createMergeResultFileName(tempFilesDir, reduceDepth, partition + 1);
+            outputs.add(output);
+            if (files.isEmpty() || partition > splitters.size()) {
+                //empty input, or no key range is left for this shard - an empty output, with an empty index if indexed
+                runStorage.createOutput(output).close();
+                continue;
+            }
+            byte[] lowerKey = partition == 0 ? null : splitters.get(partition - 1);
+            byte[] upperKey = partition == splitters.size() ? null : splitters.get(partition);
+            MergeSortedPartsReduceWorker worker = new MergeSortedPartsReduceWorker(files, output, runStorage, true,
+                    lowerKey, upperKey);
+            merges.add(scheduler.submit(worker));
+        }
+        //a key range that failed fails the merge, the runs are kept and an incomplete output never replaces a sorted file
+        SortScheduler.awaitAll(merges);
+        //every key range reads all the files, so they are deleted when all the ranges are merged
+        runStorage.deleteConsumedRuns(files);
+        return sharded ? outputs : concatenate(outputs);
+    }
+
+    private List<byte[]> sampledKeys(List<String> files) {
+        List<byte[]> keys = new ArrayList<>();
+        for (String file : files) {
+            RunIndex index = runStorage.getRunIndex(file);
+            if (index != null) {
+                keys.addAll(index.getSample());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @param sample     - a sample of the encoded keys
+     * @param partitions - the number of key ranges
+     * @return partitions - 1 keys that divide the sample into equal ranges, in order.
+     * no keys if the sample is empty or there is a single range
+     */
+    static List<byte[]> chooseSplitters(List<byte[]> sample, int partitions) {
+        List<byte[]> splitters = new ArrayList<>(partitions - 1);
+        if (sample.isEmpty()) {
+            return splitters;
+        }
+        List<byte[]> sortedSample = new ArrayList<>(sample);
+        sortedSample.sort(KeyedRecord::compareKeys);
+        for (int partition = 1; partition < partitions; partition++) {
+            splitters.add(sortedSample.get((int) ((long) partition * sortedSample.size() / partitions)));
+        }
+        return splitters;
+    }
+
+    /**
+     * append the key ranges to the first one, with a copy that the operating system does between the files.
+     * the indexes of the ranges are appended to the index of the first one, at the offsets of their ranges
+     */
+    private static List<String> concatenate(List<String> outputs) throws IOException {
+        try (FileChannel target = FileChannel.open(Paths.get(outputs.get(0)), StandardOpenOption.APPEND)) {
+            for (String output : outputs.subList(1, outputs.size())) {
+                SortedFileIndex.append(outputs.get(0), output, target.size());
+                try (FileChannel source = FileChannel.open(Paths.get(output), StandardOpenOption.READ)) {
+                    long size = source.size();
+                    for (long position = 0; position < size; ) {
+                        position += source.transferTo(position, size - position, target);
+                    }
+                }
+                Files.delete(Paths.get(output));
+            }
+        }
+        return Collections.singletonList(outputs.get(0));
+    }
+
+    /**
+     * group consecutive files into merges of this pass. when the files fit in one final merge, they are all merged.
+     * otherwise the pass only merges enough files so that the following passes can finish the job with full merges,
+     * and the rest of the files are left as single file groups - they are not read or written in this pass.
+     *
+     * @param files           - the files of this pass, ordered by their position in the input
+     * @param passFanIn       - maximum number of files in a merge of this pass
+     * @param finalMergeFanIn - maximum number of files in the final merge, which runs alone
+     * @return the groups of files to merge, in order. every group becomes a single file for the next pass
+     */
+    static List<List<String>> planMergePass(List<String> files, int passFanIn, int finalMergeFanIn) {
+        List<List<String>> mergeGroups = new ArrayList<>();
+        if (files.size() <= finalMergeFanIn) {
+            mergeGroups.add(files);
+            return mergeGroups;
+        }
+
+        //the number of files that the remaining passes (after this one) are able to merge
+        long filesLeftForNextPasses = finalMergeFanIn;
+        while (filesLeftForNextPasses * passFanIn < files.size()) {
+            filesLeftForNextPasses *= passFanIn;
         }
+        //every merge of n files reduces the number of files by n - 1
+        long filesToReduce = files.size() - filesLeftForNextPasses;
 
-        return reduceRec(tempFilesDir, Constants.REDUCE_SUFFIX + reduceDepth, reduceDepth + 1);
+        int fileIndex = 0;
+        while (filesToReduce > 0) {
+            int mergeSize = (int) Math.min(passFanIn, filesToReduce + 1);
+            mergeGroups.add(files.subList(fileIndex, fileIndex + mergeSize));
+            fileIndex += mergeSize;
+            filesToReduce -= mergeSize - 1;
+        }
+        for (; fileIndex < files.size(); fileIndex++) {
+            mergeGroups.add(files.subList(fileIndex, fileIndex + 1));
+        }
+        return mergeGroups;
+    }
+
+    /**
+     * @param concurrentMerges - number of merges that run at the same time and share the memory and file descriptors
+     * @return the fan-in of each merge - the configured fan-in, lowered to fit in the memory budget and in the number
+     * of free file descriptors. never lower than 2
+     */
+    private int effectiveFanIn(int concurrentMerges) {
+        long filesByMemory = memoryBudget / concurrentMerges / runStorage.bytesPerOpenRun() - 1;
+        long filesByDescriptors = freeFileDescriptors() / concurrentMerges - 1;
+        return (int) Math.max(2, Math.min(fanIn, Math.min(filesByMemory, filesByDescriptors)));
     }
 
-    private List<File> findFilesForThisIteration(String tempFilesDir, String fileSuffix) throws IOException {
-        return Files.list(Paths.get(tempFilesDir))
-                .map(Path::toFile)
+    private static long freeFileDescriptors() {
+        OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+        if (operatingSystem instanceof UnixOperatingSystemMXBean) {
+            UnixOperatingSystemMXBean unix = (UnixOperatingSystemMXBean) operatingSystem;
+            return unix.getMaxFileDescriptorCount() - unix.getOpenFileDescriptorCount() - RESERVED_FILE_DESCRIPTORS;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    private List<String> findFilesForThisIteration(String tempFilesDir, String fileSuffix) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (String dir : runStorage.runDirs(tempFilesDir)) {
+            try (Stream<Path> dirFiles = Files.list(Paths.get(dir))) {
+                dirFiles.map(Path::toFile).forEach(files::add);
+            }
+        }
+        return files.stream()
                 .filter(file -> file.getName().endsWith(fileSuffix))
+                .sorted(Comparator.comparingLong(file -> partNumber(file, fileSuffix)))
+                .map(File::getPath)
                 .collect(Collectors.toList());
     }
 
+    private static long partNumber(File file, String fileSuffix) {
+        String name = file.getName();
+        if (!name.startsWith(Constants.PART_PREFIX)) {
+            return Long.MAX_VALUE;
+        }
+        String number = name.substring(Constants.PART_PREFIX.length(), name.length() - fileSuffix.length());
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
     private String createMergeResultFileName(String tempFilesDir, int reduceDepth, int partNumber) {
         return tempFilesDir + Constants.PART_PREFIX + partNumber + Constants.REDUCE_SUFFIX + reduceDepth;
     }
@@ -0,0 +1,169 @@
+package csvsorter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+/**
+ * this class generates the sorted parts with replacement selection, instead of sorting fixed slices of the input.
+ * it keeps a heap of up to maxRecordsNumber records (and within the memory budget), always writes the smallest record
+ * that still belongs to the current part, and replaces it with the next record of the input.
+ * a record that is smaller than the last written record can't join the current part, so it waits for the next one.
+ * on random input the parts are about twice the size of the heap, and an input that is already (nearly) sorted
+ * becomes a single part, so the reducer has little or nothing to merge.
+ */
+class ReplacementSelectionMapWorker extends MapReduceWorkersBase {
+    private static final Logger logger = Logger.getLogger(String.valueOf(ReplacementSelectionMapWorker.class));
+
+    String inputCSVFile, tempFilesDir;
+    int maxRecordsNumber;
+    long memoryBudget;
+    RunStorage runStorage;
+
+    /**
+     * @param inputCSVFile - path to input file, or null if the records are given to {@link #generateParts(RecordSource)}
+     * @param tempFilesDir - path to where the sorted parts will be written to
+     * @param options      - the sort options, the heap holds up to maxRecordsNumber records and up to memoryBudget bytes
+     * @param runStorage   - creates the part files, in the spill format and compression
+     */
+    ReplacementSelectionMapWorker(String inputCSVFile, String tempFilesDir, SortOptions options, RunStorage runStorage) {
+        this.inputCSVFile = inputCSVFile;
+        this.tempFilesDir = tempFilesDir;
+        this.maxRecordsNumber = options.getMaxRecordsNumber();
+        this.memoryBudget = options.getMemoryBudget();
+        this.runStorage = runStorage;
+        this.keyTokenizer = runStorage.newKeyTokenizer();
+    }
+
+    public void run() {
+        try {
+            generateParts();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * read the input file once, and write the sorted parts with replacement selection.
+     *
+     * @return the number of parts that were written
+     */
+    int generateParts() throws IOException {
+        try (BufferedReader reader = runStorage.openInput(inputCSVFile)) {
+            return generateParts(reader::readLine);
+        }
+    }
+
+    /**
+     * read the records once, and write the sorted parts with replacement selection.
+     *
+     * @param records - the records of the input, in input order
+     * @return the number of parts that were written
+     */
+    int generateParts(RecordSource records) throws IOException {
+        boolean tiesByRecord = runStorage.ordersTiesByRecord();
+        PriorityQueue<HeapEntry> heap = new PriorityQueue<>(tiesByRecord
+                ? HeapEntry::compareTiesByRecord : Comparator.naturalOrder());
+        long heapSize = 0;
+        long sequence = 0;
+        int partNumber = 0;
+        KeyedRecord lastWritten = null;
+        RunWriter writer = null;
+        long parseNanos = 0;
+
+        try {
+            String line = records.nextRecord();
+            while (line != null || !heap.isEmpty()) {
+                //fill the heap, a record joins the current part only if it doesn't come before the last written record
+                while (line != null && (heap.isEmpty() || (heap.size() < maxRecordsNumber && heapSize < memoryBudget))) {
+                    long start = System.nanoTime();
+                    KeyedRecord record = toKeyedInputRecord(line, inputCSVFile, sequence + 1);
+                    parseNanos += System.nanoTime() - start;
+                    long recordSize = KeyedRecord.estimateSize(line);
+                    int recordPart = lastWritten != null && comesBefore(record, lastWritten, tiesByRecord)
+                            ? partNumber + 1 : Math.max(partNumber, 1);
+                    heap.add(new HeapEntry(recordPart, sequence++, record, recordSize));
+                    heapSize += recordSize;
+                    line = records.nextRecord();
+                }
+
+                HeapEntry smallest = heap.poll();
+                heapSize -= smallest.size;
+                if (smallest.part != partNumber) {
+                    closePart(writer, partNumber);
+                    partNumber = smallest.part;
+                    writer = runStorage.createRun(runStorage.runFile(tempFilesDir, Mapper.mapFileName(partNumber)));
+                    logger.fine(Thread.currentThread().getName() + " is starting to write part " + partNumber);
+                }
+                writer.write(smallest.record);
+                lastWritten = smallest.record;
+            }
+        } finally {
+            closePart(writer, partNumber);
+            SortMetrics metrics = runStorage.getMetrics();
+            metrics.parseNanos.add(parseNanos);
+            metrics.inputRecords.add(sequence);
+            metrics.runRecordsWritten.add(sequence);
+        }
+        return partNumber;
+    }
+
+    private void closePart(RunWriter writer, int partNumber) throws IOException {
+        if (writer != null) {
+            writer.close();
+            logger.info(Thread.currentThread().getName() + " finished writing part " + partNumber);
+        }
+    }
+
+    private static boolean comesBefore(KeyedRecord record, KeyedRecord lastWritten, boolean tiesByRecord) {
+        int comparison = record.compareTo(lastWritten);
+        if (comparison == 0 && tiesByRecord) {
+            comparison = KeyedRecord.compareRecords(record, lastWritten);
+        }
+        return comparison < 0;
+    }
+
+    /**
+     * a record in the heap, ordered by the part it belongs to, then by its key, then by its position in the input
+     * so that records with the same key keep their input order
+     */
+    private static class HeapEntry implements Comparable<HeapEntry> {
+        final int part;
+        final long sequence;
+        final KeyedRecord record;
+        final long size;
+
+        HeapEntry(int part, long sequence, KeyedRecord record, long size) {
+            this.part = part;
+            this.sequence = sequence;
+            this.record = record;
+            this.size = size;
+        }
+
+        @Override
+        public int compareTo(HeapEntry other) {
+            if (part != other.part) {
+                return Integer.compare(part, other.part);
+            }
+            int comparison = record.compareTo(other.record);
+            return comparison != 0 ? comparison : Long.compare(sequence, other.sequence);
+        }
+
+        /**
+         * the order of the entries when the records of a key are ordered by their bytes, then by their input order
+         */
+        int compareTiesByRecord(HeapEntry other) {
+            if (part != other.part) {
+                return Integer.compare(part, other.part);
+            }
+            int comparison = record.compareTo(other.record);
+            if (comparison == 0) {
+                comparison = KeyedRecord.compareRecords(record, other.record);
+            }
+            return comparison != 0 ? comparison : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package csvsorter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * a sparse index of a single run - the key and the offset (before compression) of a record every
+ * {@link Constants#RUN_INDEX_INTERVAL} bytes, and of the first record. the offsets let a reader start near a given key.
+ * next to the index, it keeps a sample of the keys that is spread by size - the key in the middle of every interval,
+ * so every sampled key stands for the records around it (the indexed keys would stand for the records after them).
+ */
+class RunIndex {
+
+    private final List<byte[]> keys = new ArrayList<>();
+    private final List<Long> offsets = new ArrayList<>();
+    private final List<byte[]> sample = new ArrayList<>();
+
+    /**
+     * @param key    - the encoded key of a record, records are added in sorted order
+     * @param offset - the offset of the record in the run
+     */
+    void add(byte[] key, long offset) {
+        keys.add(key);
+        offsets.add(offset);
+    }
+
+    /**
+     * @param key - the encoded key of a record in the middle of an interval
+     */
+    void addSample(byte[] key) {
+        sample.add(key);
+    }
+
+    /**
+     * @return the sampled keys, in sorted order. a run that is shorter than half an interval has no sample
+     */
+    List<byte[]> getSample() {
+        return Collections.unmodifiableList(sample);
+    }
+
+    /**
+     * @param key - an encoded key
+     * @return the offset of the last indexed record with a key smaller than the given key, or 0 if there is none.
+     * all the records of the run with the given key (or larger) are at this offset or after it
+     */
+    long offsetBefore(byte[] key) {
+        int low = 0;
+        int high = keys.size() - 1;
+        long offset = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (KeyedRecord.compareKeys(keys.get(middle), key) < 0) {
+                offset = offsets.get(middle);
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,16 @@
+package csvsorter;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * a reader over a single sorted run (a file that was written by a map or reduce worker).
+ * the format of the run is decided by the {@link SpillFormat} that opened it.
+ */
+interface RunReader extends Closeable {
+
+    /**
+     * @return the next record of the run, or null when the run is exhausted
+     */
+    KeyedRecord next() throws IOException;
+}
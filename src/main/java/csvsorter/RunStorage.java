@@ -0,0 +1,406 @@
+package csvsorter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * creates and opens the run files of a single sort, in its spill format and spill compression.
+ * the map and reduce workers of the sort share it, and with it the metrics of the sort, which count the bytes
+ * and the time of every read and write of a run.
+ * when the final merge is partitioned, every run is written with a sparse index (see {@link RunIndex}),
+ * so the runs are moved and deleted through the storage, which keeps their indexes.
+ * <p>
+ * run files are read and written through large buffers. by default they are read ahead and written behind on
+ * background threads (see {@link ReadAheadInputStream} and {@link WriteBehindOutputStream}), so every merge reads its
+ * runs, merges and writes its output at the same time. the buffers are counted in {@link #bytesPerOpenRun()}.
+ * <p>
+ * when the options give several temp directories, the storage chooses the directory of every run (see {@link TempDirs}),
+ * and it deletes the runs that a merge consumed as soon as the merge is done, so the runs of the sort take a little
+ * more than the size of the input on the disks, instead of a copy for every merge pass.
+ * <p>
+ * a gzip input is decompressed on a background thread ahead of the reader of the map, and a compressed output is
+ * compressed in blocks by several background threads (see {@link ParallelGzipOutputStream}), so neither the map nor
+ * the final merge waits for the compression.
+ */
+class RunStorage {
+
+    private final SpillFormat spillFormat;
+    private final SpillCompression compression;
+    private final SortMetrics metrics;
+    private final boolean indexRuns;
+    private final KeySpec keySpec;
+    private final PartSort partSort;
+    private final int ioBufferSize;
+    //runs the reads ahead and the writes behind, null when the run files are read and written synchronously
+    private final ExecutorService ioExecutor;
+    private final char delimiter;
+    private final char quote;
+    //combines the records of a key when they are written, null if they are all written
+    private final Combiner combiner;
+    //the distance in bytes between the indexed records of the output, 0 if it is not indexed
+    private final int outputIndexInterval;
+    //compresses the blocks of a compressed output, null if the output is plain csv
+    private final ExecutorService outputCompressionExecutor;
+    private final int outputCompressionThreads;
+    private final Map<String, RunIndex> runIndexes = new ConcurrentHashMap<>();
+    //the directories the runs are spread over, null when they are all written to the temp directory of the sort
+    private final TempDirs tempDirs;
+    //the runs that this storage created and that still exist, only they are deleted when they are consumed
+    private final Set<String> createdRuns = ConcurrentHashMap.newKeySet();
+    //sorted csv files that are merged like runs, such as an earlier output that new records are merged into
+    private final Set<String> sortedFiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param options - the sort options, the storage uses the spill format and the spill compression,
+     *                and indexes the runs if the final merge is partitioned
+     */
+    RunStorage(SortOptions options) {
+        this(options, new SortMetrics());
+    }
+
+    /**
+     * @param options - the sort options
+     * @param metrics - the metrics of the sort
+     */
+    RunStorage(SortOptions options, SortMetrics metrics) {
+        this(options, metrics, options.getTempDirs());
+    }
+
+    /**
+     * @param options  - the sort options
+     * @param metrics  - the metrics of the sort
+     * @param tempDirs - the directories to spread the runs over instead of the temp directories of the options,
+     *                 empty to write them all to the temp directory of the sort
+     */
+    RunStorage(SortOptions options, SortMetrics metrics, List<String> tempDirs) {
+        this.metrics = metrics;
+        this.spillFormat = options.getSpillFormat();
+        this.compression = options.getSpillCompression();
+        this.indexRuns = options.getOutputPartitions() > 1;
+        this.keySpec = options.getKeySpec();
+        this.partSort = options.getPartSort();
+        this.ioBufferSize = options.getIoBufferSize();
+        this.ioExecutor = options.isAsyncIo() ? AsyncIo.executor() : null;
+        this.delimiter = options.getDelimiter();
+        this.quote = options.getQuote();
+        this.combiner = options.getCombiner();
+        this.outputIndexInterval = options.getIndexInterval();
+        this.outputCompressionExecutor = options.isCompressOutput() ? AsyncIo.executor() : null;
+        this.outputCompressionThreads = options.getNumberOfWorkers();
+        this.tempDirs = tempDirs.isEmpty() ? null : new TempDirs(tempDirs, options.getTempDirPlacement());
+    }
+
+    SortMetrics getMetrics() {
+        return metrics;
+    }
+
+    CompressionStats getCompressionStats() {
+        return metrics.compressionStats;
+    }
+
+    /**
+     * @return a tokenizer of the key and the csv format of the sort, for a worker that parses the input or text runs
+     */
+    CsvKeyTokenizer newKeyTokenizer() {
+        return new CsvKeyTokenizer(keySpec, delimiter, quote);
+    }
+
+    /**
+     * @return the in memory sort of the parts, for the workers that sort them
+     */
+    PartSort getPartSort() {
+        return partSort;
+    }
+
+    /**
+     * @return true if the records of a key are sorted and merged by their bytes, for a combiner of distinct records
+     */
+    boolean ordersTiesByRecord() {
+        return combiner != null && combiner.ordersTiesByRecord();
+    }
+
+    /**
+     * @return true if the runs are written as plain csv, like the final output - false when the output is compressed
+     */
+    boolean runsAreCsv() {
+        return spillFormat == SpillFormat.TEXT && !compression.compresses() && outputCompressionExecutor == null;
+    }
+
+    /**
+     * @param tempFilesDir - the temp directory of the sort, ends with a separator
+     * @param name         - the name of a new run
+     * @return the path of the new run, in one of the temp directories
+     */
+    String runFile(String tempFilesDir, String name) {
+        return runFile(tempFilesDir, name, Collections.emptyList());
+    }
+
+    /**
+     * @param tempFilesDir - the temp directory of the sort, ends with a separator
+     * @param name         - the name of a new run
+     * @param inputs       - the runs that the new run is merged from
+     * @return the path of the new run, in one of the temp directories - away from the disks of its inputs when possible
+     */
+    String runFile(String tempFilesDir, String name, Collection<String> inputs) {
+        return tempDirs == null ? tempFilesDir + name : tempDirs.place(name, inputs);
+    }
+
+    /**
+     * @param tempFilesDir - the temp directory of the sort
+     * @return all the directories that hold runs of the sort, the temp directory first
+     */
+    List<String> runDirs(String tempFilesDir) {
+        List<String> dirs = new ArrayList<>();
+        dirs.add(tempFilesDir);
+        if (tempDirs != null) {
+            for (String dir : tempDirs.getDirs()) {
+                if (!Paths.get(dir).equals(Paths.get(tempFilesDir))) {
+                    dirs.add(dir);
+                }
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * @param runFile - path to the run that will be created from records of the input
+     * @return a writer of the run, in the spill format and compression
+     */
+    RunWriter createRun(String runFile) throws IOException {
+        return createRun(runFile, false);
+    }
+
+    /**
+     * @param runFile - path to the run that will be created
+     * @param merged  - true if the records of the run are merged from other runs, false if they are records of the input
+     * @return a writer of the run, in the spill format and compression, which combines the records of every key
+     * when the options have a combiner
+     */
+    RunWriter createRun(String runFile, boolean merged) throws IOException {
+        OutputStream output = buffered(new MeteredOutputStream(Files.newOutputStream(Paths.get(runFile)),
+                metrics.writeNanos, bytes -> {
+                    metrics.runsWritten.increment();
+                    metrics.runBytesWritten.add(bytes);
+                    metrics.largestRunBytes.accumulate(bytes);
+                    metrics.sampleHeap();
+                }));
+        createdRuns.add(runFile);
+        if (compression.compresses()) {
+            output = new BlockCompressedOutputStream(output, compression, Constants.COMPRESSION_BLOCK_SIZE,
+                    metrics.compressionStats);
+        }
+        RunWriter writer = spillFormat.openWriter(output);
+        if (indexRuns) {
+            writer = new IndexedRunWriter(writer, index -> runIndexes.put(runFile, index));
+        }
+        return combined(writer, !merged, metrics.runRecordsWritten);
+    }
+
+    private RunWriter combined(RunWriter writer, boolean inputRecords, LongAdder recordsWritten) {
+        return combiner == null ? writer : new CombiningRunWriter(writer, combiner, inputRecords, delimiter, quote,
+                recordsWritten, metrics.combinedRecords);
+    }
+
+    /**
+     * @param runFile - path to a run
+     * @return the sparse index of the run, or null if the run was not indexed
+     */
+    RunIndex getRunIndex(String runFile) {
+        return runIndexes.get(runFile);
+    }
+
+    /**
+     * @param runFile    - path to a run
+     * @param targetFile - the new path of the run, replaced if it exists
+     */
+    void moveRun(String runFile, String targetFile) throws IOException {
+        Files.move(Paths.get(runFile), Paths.get(targetFile), StandardCopyOption.REPLACE_EXISTING);
+        RunIndex index = runIndexes.remove(runFile);
+        if (index != null) {
+            runIndexes.put(targetFile, index);
+        }
+        if (createdRuns.remove(runFile)) {
+            createdRuns.add(targetFile);
+        }
+    }
+
+    /**
+     * @param runFile - path to a run that is no longer needed
+     */
+    void deleteRun(String runFile) throws IOException {
+        Files.delete(Paths.get(runFile));
+        runIndexes.remove(runFile);
+        createdRuns.remove(runFile);
+    }
+
+    /**
+     * delete the runs that a merge consumed, as soon as it is done with them.
+     * runs that were not created by this storage (like the runs of an earlier sort) are left as they are
+     *
+     * @param runFiles - paths to the inputs of a merge that is done
+     */
+    void deleteConsumedRuns(Collection<String> runFiles) throws IOException {
+        for (String runFile : runFiles) {
+            if (createdRuns.contains(runFile)) {
+                deleteRun(runFile);
+            }
+        }
+    }
+
+    /**
+     * @param sortedFile - path to a csv file that is sorted by the key of the sort, which is merged with the runs.
+     *                   it is read as csv whatever the spill format is, its order is checked while it is read,
+     *                   and it is never deleted
+     */
+    void addSortedFile(String sortedFile) {
+        sortedFiles.add(sortedFile);
+    }
+
+    /**
+     * @return true if the file was added by {@link #addSortedFile(String)}
+     */
+    boolean isSortedFile(String file) {
+        return sortedFiles.contains(file);
+    }
+
+    /**
+     * @param runFile      - path to a run that was created by {@link #createRun(String)}
+     * @param keyExtractor - parses a csv line into a keyed record, for formats that don't store the key
+     * @return a reader of the run
+     */
+    RunReader openRun(String runFile, Function<String, KeyedRecord> keyExtractor) throws IOException {
+        return openRun(runFile, keyExtractor, 0);
+    }
+
+    /**
+     * @param runFile      - path to a run that was created by {@link #createRun(String)}
+     * @param keyExtractor - parses a csv line into a keyed record, for formats that don't store the key
+     * @param offset       - the offset (before compression) of the record to start reading from,
+     *                     usually taken from the index of the run
+     * @return a reader of the run, from the given record
+     */
+    RunReader openRun(String runFile, Function<String, KeyedRecord> keyExtractor, long offset) throws IOException {
+        InputStream input = new MeteredInputStream(Files.newInputStream(Paths.get(runFile)), metrics.runBytesRead,
+                metrics.readNanos);
+        //a sorted file has no index, so it is always read from its first record
+        if (sortedFiles.contains(runFile)) {
+            input = buffered(input);
+            if (GzipFiles.isCompressed(runFile)) {
+                input = new GZIPInputStream(input, ioBufferSize);
+            }
+            return new OrderCheckingRunReader(SpillFormat.TEXT.openReader(input, keyExtractor), runFile);
+        }
+        try {
+            //an uncompressed run is skipped by its file, before anything is read ahead
+            if (!compression.compresses()) {
+                skipFully(input, offset);
+                input = buffered(input);
+            } else {
+                input = new BlockCompressedInputStream(buffered(input), compression, metrics.compressionStats);
+                skipFully(input, offset);
+            }
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+        return spillFormat.openReader(input, keyExtractor);
+    }
+
+    private InputStream buffered(InputStream input) {
+        return ioExecutor == null ? new BufferedInputStream(input, ioBufferSize)
+                : new ReadAheadInputStream(input, ioBufferSize, ioExecutor, metrics.ioWaitNanos);
+    }
+
+    private OutputStream buffered(OutputStream output) {
+        return ioExecutor == null ? new BufferedOutputStream(output, ioBufferSize)
+                : new WriteBehindOutputStream(output, ioBufferSize, ioExecutor, metrics.ioWaitNanos);
+    }
+
+    private static void skipFully(InputStream input, long length) throws IOException {
+        while (length > 0) {
+            long skipped = input.skip(length);
+            if (skipped <= 0) {
+                throw new IOException("run ended before the offset to start reading from");
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * @param inputFile - path to the csv input of the sort, plain or gzip compressed (recognized by its first bytes)
+     * @return a reader of the lines of the input, utf-8 like {@link Files#newBufferedReader(java.nio.file.Path)}.
+     * a compressed input is decompressed ahead of the reader on a background thread, unless the io is synchronous,
+     * and its input bytes are the compressed bytes that were read
+     */
+    BufferedReader openInput(String inputFile) throws IOException {
+        if (!GzipFiles.isCompressed(inputFile)) {
+            return openInput(Files.newInputStream(Paths.get(inputFile)));
+        }
+        InputStream input = new GZIPInputStream(new MeteredInputStream(Files.newInputStream(Paths.get(inputFile)),
+                metrics.inputBytes, metrics.readNanos), ioBufferSize);
+        if (ioExecutor != null) {
+            input = new ReadAheadInputStream(input, ioBufferSize, ioExecutor, metrics.ioWaitNanos);
+        }
+        return new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8.newDecoder()));
+    }
+
+    /**
+     * @param inputStream - the csv input of the sort, utf-8
+     * @return a reader of the lines of the input, which closes the stream when it is closed
+     */
+    BufferedReader openInput(InputStream inputStream) {
+        InputStream input = new MeteredInputStream(inputStream, metrics.inputBytes, metrics.readNanos);
+        return new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8.newDecoder()));
+    }
+
+    /**
+     * @param outputFile - path to the final sorted output, merged from runs
+     * @return a writer of csv lines, plain or gzip when the options ask for a compressed output, which combines
+     * the records of every key when the options have a combiner, and writes the sparse index of the output when
+     * the options ask for it
+     */
+    RunWriter createOutput(String outputFile) throws IOException {
+        OutputStream output = new MeteredOutputStream(Files.newOutputStream(Paths.get(outputFile)),
+                metrics.writeNanos, metrics.outputBytes::add);
+        //the blocks are compressed while the next ones are merged, their compressed members are written in order
+        RunWriter writer = SpillFormat.TEXT.openWriter(outputCompressionExecutor == null ? buffered(output)
+                : new ParallelGzipOutputStream(output, outputCompressionExecutor, outputCompressionThreads,
+                metrics.ioWaitNanos));
+        if (outputIndexInterval > 0) {
+            writer = new IndexedOutputWriter(writer, outputFile, outputIndexInterval);
+        } else {
+            SortedFileIndex.delete(outputFile);
+        }
+        return combined(writer, false, metrics.outputRecords);
+    }
+
+    /**
+     * @return the estimated memory in bytes of a run that is open for reading or writing:
+     * the read buffer and the decoder buffers, the io buffers of the file (two when they are read ahead or written
+     * behind), plus the compression blocks
+     */
+    long bytesPerOpenRun() {
+        long bufferBytes = 2L * Constants.READ_BUFFER_SIZE + 8 * 1024 + (ioExecutor == null ? 1L : 2L) * ioBufferSize;
+        return !compression.compresses() ? bufferBytes : bufferBytes + 2L * Constants.COMPRESSION_BLOCK_SIZE;
+    }
+}
@@ -0,0 +1,21 @@
+package csvsorter;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * a writer of a single sorted run, or of the final sorted output.
+ * the format of the run is decided by the {@link SpillFormat} that opened it.
+ */
+interface RunWriter extends Closeable {
+
+    /**
+     * @param record - the next record of the run, records are written in sorted order
+     */
+    void write(KeyedRecord record) throws IOException;
+
+    /**
+     * @return the number of bytes that were written so far, before compression - the offset of the next record
+     */
+    long position();
+}
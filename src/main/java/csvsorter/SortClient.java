@@ -0,0 +1,132 @@
+package csvsorter;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * a small client of a {@link SortServer} - submits a sort as a job, and polls its status until it is finished.
+ */
+public class SortClient {
+
+    private static final Pattern ID = Pattern.compile("\"id\": (\\d+)");
+    private static final Pattern STATE = Pattern.compile("\"state\": \"(\\w+)\"");
+    private static final long POLL_MILLIS = 50;
+
+    private final String serverUrl;
+
+    /**
+     * @param serverUrl - the url of the server, for example http://localhost:8765
+     */
+    public SortClient(String serverUrl) {
+        this.serverUrl = serverUrl.endsWith("/") ? serverUrl.substring(0, serverUrl.length() - 1) : serverUrl;
+    }
+
+    /**
+     * @param args - the command line of the sort, as it is given to {@link Main}, with an output path
+     * @return the id of the new job
+     * @throws IOException if the server rejected the job, with the reason
+     */
+    public long submit(String... args) throws IOException {
+        String status = request("POST", "/jobs", String.join("\n", args));
+        Matcher id = ID.matcher(status);
+        if (!id.find()) {
+            throw new IOException("unexpected response of the sort server: " + status);
+        }
+        return Long.parseLong(id.group(1));
+    }
+
+    /**
+     * @param id - the id of a job
+     * @return the status of the job, as json
+     */
+    public String status(long id) throws IOException {
+        return request("GET", "/jobs/" + id, null);
+    }
+
+    /**
+     * @param id            - the id of a job
+     * @param timeoutMillis - how long to wait for the job to finish
+     * @return the status of the finished job, as json - DONE or FAILED
+     * @throws IOException if the job didn't finish in time
+     */
+    public String awaitFinished(long id, long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            String status = status(id);
+            String state = state(status);
+            if (state.equals("DONE") || state.equals("FAILED")) {
+                return status;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("job " + id + " is still " + state + " after " + timeoutMillis + " ms");
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for job " + id);
+            }
+        }
+    }
+
+    /**
+     * @param status - the status of a job, as json
+     * @return the state of the job - QUEUED, RUNNING, DONE or FAILED
+     */
+    public static String state(String status) {
+        Matcher state = STATE.matcher(status);
+        return state.find() ? state.group(1) : "";
+    }
+
+    private String request(String method, String path, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl + path).openConnection();
+        try {
+            connection.setRequestMethod(method);
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+                try (OutputStream output = connection.getOutputStream()) {
+                    output.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            int code = connection.getResponseCode();
+            try (InputStream input = code < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                String response = input == null ? "" : new String(IOUtils.toByteArray(input), StandardCharsets.UTF_8);
+                if (code >= 400) {
+                    throw new IOException("the sort server answered " + code + ": " + response.trim());
+                }
+                return response;
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * submit a sort to a server and wait for it, the exit code is 1 if the sort failed
+     *
+     * @param args - the url of the server, followed by the command line of the sort
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: csvsorter-client <server url> -in <input> -key <key> -out <output> [sort options]");
+            System.exit(1);
+        }
+        SortClient client = new SortClient(args[0]);
+        String status = client.awaitFinished(client.submit(Arrays.copyOfRange(args, 1, args.length)), Long.MAX_VALUE / 2);
+        System.out.println(status);
+        if (!state(status).equals("DONE")) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package csvsorter;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * a sort that was submitted to a {@link SortServer} - the command line of the sort, its share of the memory and the
+ * threads of the server (leased when it starts, and given back when it ends), its state and its metrics. the job runs like {@link Main} runs a sort, in new temp
+ * directories of its own, which are deleted when it is done.
+ */
+class SortJob implements Runnable {
+    private static final Logger logger = Logger.getLogger(String.valueOf(SortJob.class));
+
+    enum State {QUEUED, RUNNING, DONE, FAILED}
+
+    private final long id;
+    private final CommandLine cmd;
+    private final Supplier<SortOptions> leaseOptions;
+    private final Consumer<SortOptions> releaseOptions;
+    private final String outputFile;
+    //the directories that the temp directories of the job are created in
+    private final List<String> parentTempDirs;
+    //the size of the input file when the job was submitted, to report the progress of the map
+    private final long inputFileBytes;
+    private final SortMetrics metrics = new SortMetrics();
+    private final long submittedNanos = System.nanoTime();
+    private volatile long startedNanos;
+    private volatile long doneNanos;
+    private volatile State state = State.QUEUED;
+    //the options with the share of the job, null until it starts
+    private volatile SortOptions options;
+    private volatile String error;
+
+    /**
+     * @param id             - the number of the job in its server
+     * @param cmd            - the parsed command line of the sort, with an output path
+     * @param parentTempDirs - the directories to create the temp directories of the job in
+     * @param leaseOptions   - leases the share of the job when it starts, and gives the options of the sort with it
+     * @param releaseOptions - gives the share back when the job ends
+     */
+    SortJob(long id, CommandLine cmd, List<String> parentTempDirs, Supplier<SortOptions> leaseOptions,
+            Consumer<SortOptions> releaseOptions) {
+        this.id = id;
+        this.cmd = cmd;
+        this.leaseOptions = leaseOptions;
+        this.releaseOptions = releaseOptions;
+        this.outputFile = cmd.getOptionValue("output");
+        this.parentTempDirs = parentTempDirs;
+        this.inputFileBytes = new File(cmd.getOptionValue("input")).length();
+    }
+
+    long getId() {
+        return id;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if the job is done or failed
+     */
+    boolean isFinished() {
+        return state == State.DONE || state == State.FAILED;
+    }
+
+    @Override
+    public void run() {
+        startedNanos = System.nanoTime();
+        state = State.RUNNING;
+        List<String> tempDirs = Collections.emptyList();
+        SortOptions options = null;
+        metrics.register();
+        try {
+            options = leaseOptions.get();
+            this.options = options;
+            tempDirs = CsvSorter.createTempDirs(parentTempDirs);
+            RunStorage runStorage = new RunStorage(options, metrics, tempDirs.size() > 1 ? tempDirs : Collections.emptyList());
+            Main.sort(cmd, options, runStorage, tempDirs.get(0), outputFile);
+            if (cmd.hasOption("report")) {
+                Files.write(Paths.get(cmd.getOptionValue("report")), metrics.toJson().getBytes(StandardCharsets.UTF_8));
+            }
+            state = State.DONE;
+            logger.info("Job " + id + " sorted " + cmd.getOptionValue("input") + " into " + outputFile);
+        } catch (IOException | RuntimeException e) {
+            error = String.valueOf(e);
+            state = State.FAILED;
+            logger.severe("Job " + id + " failed: " + e);
+        } finally {
+            if (options != null) {
+                releaseOptions.accept(options);
+            }
+            metrics.unregister();
+            for (String tempDir : tempDirs) {
+                FileUtils.deleteQuietly(new File(tempDir));
+            }
+            doneNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return the status of the job as json - its state, the times it waited in the queue and ran,
+     * the progress of the map (the share of the input that was read) and the metrics of the sort
+     */
+    String toJson() {
+        long started = startedNanos;
+        long done = doneNanos;
+        long queuedNanos = (started == 0 ? System.nanoTime() : started) - submittedNanos;
+        long runNanos = started == 0 ? 0 : (done == 0 ? System.nanoTime() : done) - started;
+        SortOptions leased = options;
+        double mapProgress = state == State.DONE ? 1
+                : inputFileBytes == 0 ? 0 : Math.min(1, (double) metrics.getInputBytes() / inputFileBytes);
+        return "{\"id\": " + id
+                + ", \"state\": \"" + state + "\""
+                + ", \"input\": " + jsonString(cmd.getOptionValue("input"))
+                + ", \"output\": " + jsonString(outputFile)
+                + ", \"memoryBudget\": " + (leased == null ? "null" : leased.getMemoryBudget())
+                + ", \"threads\": " + (leased == null ? "null" : leased.getNumberOfWorkers())
+                + ", \"queuedMillis\": " + TimeUnit.NANOSECONDS.toMillis(queuedNanos)
+                + ", \"runMillis\": " + TimeUnit.NANOSECONDS.toMillis(runNanos)
+                + ", \"mapProgress\": " + String.format(Locale.ROOT, "%.3f", mapProgress)
+                + ", \"error\": " + (error == null ? "null" : jsonString(error))
+                + ", \"metrics\": " + metrics.toJson().trim() + "}";
+    }
+
+    /**
+     * @return the value as a quoted json string
+     */
+    static String jsonString(String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < ' ') {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+}
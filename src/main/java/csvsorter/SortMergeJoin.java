@@ -0,0 +1,331 @@
+package csvsorter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * external sort-merge join of two csv files on a key - every file is mapped into sorted parts and merged in passes
+ * like a sort, until the runs of both files fit in a single merge. then the two final merges are read side by side,
+ * and every left record is written with every right record of its key, so neither file is written sorted on its own.
+ * the right records of a single key are held in memory up to the memory budget of a part, and spilled to a run of
+ * their own beyond it, which is read again for every left record of the key - the rest of the join is streamed.
+ * <p>
+ * the output is a csv file of the left fields followed by the right fields, ordered by the key of the left file
+ * (records of the same key in their input order), which is what a sort of the left file by its key would give.
+ */
+class SortMergeJoin {
+    private static final Logger logger = Logger.getLogger(String.valueOf(SortMergeJoin.class));
+
+    enum JoinType {
+        //only left records that have right records of their key
+        INNER,
+        //every left record, with empty right fields when there is no right record of its key
+        LEFT
+    }
+
+    private final SortOptions leftOptions;
+    private final SortOptions rightOptions;
+    private final JoinType joinType;
+    private final SortMetrics metrics;
+    private final SortScheduler scheduler;
+
+    /**
+     * @param leftOptions  - the options of the sort of the left file, with its key
+     * @param rightOptions - the options of the sort of the right file, with its key, which must have the same number
+     *                     of columns as the left key, of the same types and directions
+     * @param joinType     - inner or left
+     * @param metrics      - the metrics of the join, both files are counted in them
+     * @param scheduler    - runs the map and the merges of both files
+     */
+    SortMergeJoin(SortOptions leftOptions, SortOptions rightOptions, JoinType joinType, SortMetrics metrics,
+                  SortScheduler scheduler) {
+        List<KeySpec.Column> leftColumns = leftOptions.getKeySpec().getColumns();
+        List<KeySpec.Column> rightColumns = rightOptions.getKeySpec().getColumns();
+        if (leftColumns.size() != rightColumns.size()) {
+            throw new IllegalArgumentException("the join keys " + leftOptions.getKeySpec() + " and "
+                    + rightOptions.getKeySpec() + " have a different number of columns");
+        }
+        for (int i = 0; i < leftColumns.size(); i++) {
+            if (leftColumns.get(i).getType() != rightColumns.get(i).getType()
+                    || leftColumns.get(i).isDescending() != rightColumns.get(i).isDescending()) {
+                throw new IllegalArgumentException("the join keys " + leftOptions.getKeySpec() + " and "
+                        + rightOptions.getKeySpec() + " differ in the type or the order of column " + (i + 1));
+            }
+        }
+        this.leftOptions = leftOptions;
+        this.rightOptions = rightOptions;
+        this.joinType = joinType;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param leftFile     - path to the left csv file
+     * @param rightFile    - path to the right csv file
+     * @param tempFilesDir - the temp directory of the join, ends with a separator. every file is sorted in a directory
+     *                     of its own in it, and in every other temp directory of the options
+     * @param outputFile   - path of the joined output
+     * @return the number of joined records
+     * @throws IOException - in case of any IO error
+     */
+    long join(String leftFile, String rightFile, String tempFilesDir, String outputFile) throws IOException {
+        List<String> leftDirs = sideDirs(tempFilesDir, "left");
+        List<String> rightDirs = sideDirs(tempFilesDir, "right");
+        RunStorage leftStorage = new RunStorage(leftOptions, metrics, leftOptions.getTempDirs().isEmpty()
+                ? Collections.emptyList() : leftDirs);
+        RunStorage rightStorage = new RunStorage(rightOptions, metrics, rightOptions.getTempDirs().isEmpty()
+                ? Collections.emptyList() : rightDirs);
+
+        //map - both files are divided to sorted parts, by the workers of the same scheduler
+        int leftParts = new Mapper(leftOptions, leftStorage, scheduler).map(leftFile, leftDirs.get(0));
+        int rightParts = new Mapper(rightOptions, rightStorage, scheduler).map(rightFile, rightDirs.get(0));
+        logger.info("The files " + leftFile + " and " + rightFile + " were divided to " + leftParts + " and "
+                + rightParts + " sorted parts");
+
+        //reduce - the final merges of both files are read together, so they share a single fan-in
+        metrics.startPhase(SortMetrics.Phase.REDUCE);
+        Reducer leftReducer = new Reducer(leftOptions, leftStorage, scheduler);
+        List<String> leftRuns = leftReducer.reduceToFinalRuns(leftDirs.get(0), Constants.MAP_SUFFIX, 1,
+                leftReducer.finalMergeFanIn() / 2);
+        List<String> rightRuns = new Reducer(rightOptions, rightStorage, scheduler)
+                .reduceToFinalRuns(rightDirs.get(0), Constants.MAP_SUFFIX, 1, leftRuns.size());
+        long records = merge(leftStorage, leftRuns, rightStorage, rightRuns, rightDirs.get(0), outputFile);
+        leftStorage.deleteConsumedRuns(leftRuns);
+        rightStorage.deleteConsumedRuns(rightRuns);
+        metrics.startPhase(SortMetrics.Phase.DONE);
+        logger.info("Done joining " + leftRuns.size() + " and " + rightRuns.size() + " runs into " + records
+                + " records of " + outputFile);
+        return records;
+    }
+
+    private List<String> sideDirs(String tempFilesDir, String side) throws IOException {
+        List<String> tempDirs = leftOptions.getTempDirs().isEmpty() ? Collections.singletonList(tempFilesDir)
+                : leftOptions.getTempDirs();
+        List<String> sideDirs = new ArrayList<>(tempDirs.size());
+        for (String tempDir : tempDirs) {
+            String sideDir = tempDir + side + File.separator;
+            Files.createDirectories(Paths.get(sideDir));
+            sideDirs.add(sideDir);
+        }
+        return sideDirs;
+    }
+
+    private long merge(RunStorage leftStorage, List<String> leftRuns, RunStorage rightStorage, List<String> rightRuns,
+                       String rightDir, String outputFile) throws IOException {
+        metrics.mergePasses.increment();
+        byte[] delimiter = String.valueOf(leftOptions.getDelimiter()).getBytes(StandardCharsets.UTF_8);
+        long records = 0;
+        try (KWayMerger left = openMerger(leftStorage, leftRuns);
+             KWayMerger right = openMerger(rightStorage, rightRuns);
+             RunWriter writer = leftStorage.createOutput(outputFile);
+             RightGroup rightGroup = new RightGroup(rightStorage, rightStorage.runFile(rightDir, "group" + Constants.REDUCE_SUFFIX),
+                     Mapper.partMemoryBudget(rightOptions))) {
+            KeyedRecord rightRecord = right.next();
+            //an unmatched left record gets as many empty fields as the first right record has
+            byte[] emptyRightFields = new byte[0];
+            if (rightRecord != null) {
+                emptyRightFields = new byte[countFields(rightRecord.recordAsString()) * delimiter.length];
+                for (int i = 0; i < emptyRightFields.length; i += delimiter.length) {
+                    System.arraycopy(delimiter, 0, emptyRightFields, i, delimiter.length);
+                }
+            }
+            KeyedRecord leftRecord;
+            while ((leftRecord = left.next()) != null) {
+                if (rightGroup.isEmpty() || !Arrays.equals(rightGroup.key, leftRecord.key)) {
+                    //skip the right keys that are smaller than the left key, and hold the right records of its key
+                    rightGroup.clear();
+                    while (rightRecord != null && KeyedRecord.compareKeys(rightRecord.key, leftRecord.key) < 0) {
+                        rightRecord = right.next();
+                    }
+                    while (rightRecord != null && Arrays.equals(rightRecord.key, leftRecord.key)) {
+                        rightGroup.add(rightRecord);
+                        rightRecord = right.next();
+                    }
+                    rightGroup.finish();
+                }
+                try (RunReader matchingRecords = rightGroup.read()) {
+                    KeyedRecord matchingRecord;
+                    while ((matchingRecord = matchingRecords.next()) != null) {
+                        writer.write(new KeyedRecord(leftRecord.key, concat(leftRecord.record, delimiter,
+                                matchingRecord.record)));
+                        records++;
+                    }
+                }
+                if (rightGroup.isEmpty() && joinType == JoinType.LEFT) {
+                    writer.write(new KeyedRecord(leftRecord.key, concat(leftRecord.record, emptyRightFields)));
+                    records++;
+                }
+            }
+        }
+        metrics.merges.increment();
+        metrics.maxFanIn.accumulate(leftRuns.size() + rightRuns.size());
+        metrics.outputRecords.add(records);
+        return records;
+    }
+
+    /**
+     * the right records of a single key, in their order. they are held in memory until their estimated size reaches
+     * the memory budget, then they are written to a run that is read again for every left record of the key
+     */
+    private static class RightGroup implements Closeable {
+        private final RunStorage runStorage;
+        private final String spillFile;
+        private final long memoryBudget;
+        private final CsvKeyTokenizer keyTokenizer;
+        private final List<KeyedRecord> records = new ArrayList<>();
+        private long size;
+        private RunWriter spill;
+        private boolean spilled;
+        byte[] key;
+
+        RightGroup(RunStorage runStorage, String spillFile, long memoryBudget) {
+            this.runStorage = runStorage;
+            this.spillFile = spillFile;
+            this.memoryBudget = memoryBudget;
+            this.keyTokenizer = runStorage.newKeyTokenizer();
+        }
+
+        boolean isEmpty() {
+            return key == null;
+        }
+
+        void add(KeyedRecord record) throws IOException {
+            key = record.key;
+            if (spill != null) {
+                spill.write(record);
+                return;
+            }
+            records.add(record);
+            size += KeyedRecord.estimateSize(record);
+            if (size > memoryBudget) {
+                logger.fine("The right records of a key passed " + memoryBudget + " bytes, spilling them to " + spillFile);
+                spill = runStorage.createRun(spillFile, true);
+                spilled = true;
+                for (KeyedRecord held : records) {
+                    spill.write(held);
+                }
+                records.clear();
+            }
+        }
+
+        /**
+         * all the records of the key were added
+         */
+        void finish() throws IOException {
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+        }
+
+        /**
+         * @return a reader of the records of the key, in their order
+         */
+        RunReader read() throws IOException {
+            if (spilled) {
+                return runStorage.openRun(spillFile, line -> line == null ? null
+                        : new KeyedRecord(keyTokenizer.encodeKey(line), line.getBytes(StandardCharsets.UTF_8)));
+            }
+            Iterator<KeyedRecord> iterator = records.iterator();
+            return new RunReader() {
+                @Override
+                public KeyedRecord next() {
+                    return iterator.hasNext() ? iterator.next() : null;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        void clear() throws IOException {
+            close();
+            records.clear();
+            size = 0;
+            key = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            if (spilled) {
+                spilled = false;
+                runStorage.deleteRun(spillFile);
+            }
+        }
+    }
+
+    private static KWayMerger openMerger(RunStorage runStorage, List<String> runFiles) throws IOException {
+        CsvKeyTokenizer keyTokenizer = runStorage.newKeyTokenizer();
+        List<RunReader> runs = new ArrayList<>(runFiles.size());
+        try {
+            for (String runFile : runFiles) {
+                runs.add(runStorage.openRun(runFile, line -> line == null ? null
+                        : new KeyedRecord(keyTokenizer.encodeKey(line), line.getBytes(StandardCharsets.UTF_8))));
+            }
+            return new KWayMerger(runs);
+        } catch (IOException e) {
+            for (RunReader run : runs) {
+                run.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of fields of a csv record of the right file, a delimiter inside quotes doesn't count
+     */
+    private int countFields(String record) {
+        char delimiter = rightOptions.getDelimiter();
+        char quote = rightOptions.getQuote();
+        int fields = 1;
+        boolean fieldStart = true;
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (quoted) {
+                if (c == quote) {
+                    //a doubled quote is an escaped quote
+                    if (i + 1 < record.length() && record.charAt(i + 1) == quote) {
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                }
+            } else if (c == delimiter) {
+                fields++;
+                fieldStart = true;
+                continue;
+            } else if (c == quote && fieldStart) {
+                quoted = true;
+            }
+            fieldStart = false;
+        }
+        return fields;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] joined = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, joined, position, part.length);
+            position += part.length;
+        }
+        return joined;
+    }
+}
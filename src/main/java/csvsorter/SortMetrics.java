@@ -0,0 +1,349 @@
+package csvsorter;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * metrics of a single sort, shared by all the workers, like the {@link CompressionStats} that they include.
+ * what was read and written, how many runs and merges there were, and where the time went:
+ * parsing keys, sorting parts in memory, reading and writing files, and waiting for a free slot in the queue of the workers.
+ * with the worker utilisation, the gc time and the peak heap, they tell if a sort is cpu-, disk- or gc-bound.
+ * <p>
+ * the metrics are exposed through jmx while the sort runs (see {@link #register()}),
+ * and are written as a json report when it is done (see {@link #toJson()}).
+ */
+class SortMetrics implements SortMetricsMXBean {
+    private static final Logger logger = Logger.getLogger(String.valueOf(SortMetrics.class));
+
+    private static final AtomicInteger sortNumber = new AtomicInteger();
+
+    enum Phase {NOT_STARTED, MAP, REDUCE, DONE}
+
+    final CompressionStats compressionStats = new CompressionStats();
+
+    //bytes are counted as they are read from and written to the files - after compression
+    final LongAdder inputRecords = new LongAdder();
+    final LongAdder inputBytes = new LongAdder();
+    final LongAdder runsWritten = new LongAdder();
+    final LongAdder runRecordsWritten = new LongAdder();
+    final LongAdder runBytesWritten = new LongAdder();
+    final LongAccumulator largestRunBytes = new LongAccumulator(Math::max, 0);
+    final LongAdder runBytesRead = new LongAdder();
+    final LongAdder outputRecords = new LongAdder();
+    final LongAdder outputBytes = new LongAdder();
+    //records that a combiner folded into another record of their key, or dropped
+    final LongAdder combinedRecords = new LongAdder();
+
+    final LongAdder merges = new LongAdder();
+    final LongAdder mapSideMerges = new LongAdder();
+    final LongAdder mergePasses = new LongAdder();
+    final LongAccumulator maxFanIn = new LongAccumulator(Math::max, 0);
+
+    final LongAdder parseNanos = new LongAdder();
+    final LongAdder sortNanos = new LongAdder();
+    final LongAdder readNanos = new LongAdder();
+    final LongAdder writeNanos = new LongAdder();
+    final LongAdder queueWaitNanos = new LongAdder();
+    final LongAdder ioWaitNanos = new LongAdder();
+    final LongAdder busyNanos = new LongAdder();
+    //the largest heap usage that was sampled while the sort ran
+    private final LongAccumulator peakHeapBytes = new LongAccumulator(Math::max, 0);
+
+    private volatile int workerThreads = 1;
+    private volatile Phase phase = Phase.NOT_STARTED;
+    private volatile long mapStartNanos, reduceStartNanos, doneNanos;
+    private volatile long gcMillisAtStart;
+    private ObjectName objectName;
+
+    /**
+     * @param workerThreads - the number of threads of the scheduler that runs the tasks of the sort
+     */
+    void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * mark the start of a phase of the sort. the gc time is measured from the start of the map, and the heap is
+     * sampled at the start of every phase.
+     * a phase that is already running is not started again, so a sort that maps several inputs has a single map
+     */
+    void startPhase(Phase phase) {
+        if (this.phase == phase) {
+            return;
+        }
+        long now = System.nanoTime();
+        switch (phase) {
+            case MAP:
+                mapStartNanos = now;
+                gcMillisAtStart = totalGcMillis();
+                break;
+            case REDUCE:
+                reduceStartNanos = now;
+                break;
+            case DONE:
+                doneNanos = now;
+                break;
+            default:
+                break;
+        }
+        sampleHeap();
+        this.phase = phase;
+    }
+
+    /**
+     * sample the heap usage of the jvm into the peak heap of this sort, at the start of every phase and whenever a run
+     * was written. the peak usage of the memory pools is global to the jvm, so it is never reset by a sort - that would
+     * reset it under the other sorts that run in the same jvm
+     */
+    void sampleHeap() {
+        peakHeapBytes.accumulate(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    }
+
+    /**
+     * expose the metrics as an mbean of the platform mbean server, until {@link #unregister()} is called.
+     * a failure to register is only logged, the sort doesn't depend on it
+     */
+    void register() {
+        try {
+            objectName = new ObjectName("csvsorter:type=SortMetrics,sort=" + sortNumber.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            logger.warning("The sort metrics are not exposed through jmx: " + e);
+            objectName = null;
+        }
+    }
+
+    void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warning(String.valueOf(e));
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getPhase() {
+        return phase.name();
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos());
+    }
+
+    private long elapsedNanos() {
+        if (phase == Phase.NOT_STARTED) {
+            return 0;
+        }
+        return (phase == Phase.DONE ? doneNanos : System.nanoTime()) - mapStartNanos;
+    }
+
+    private long phaseMillis(Phase of) {
+        Phase current = phase;
+        if (current.ordinal() < of.ordinal()) {
+            return 0;
+        }
+        long start = of == Phase.MAP ? mapStartNanos : reduceStartNanos;
+        long end;
+        if (of == Phase.MAP && current != Phase.MAP) {
+            end = reduceStartNanos;
+        } else {
+            end = current == Phase.DONE ? doneNanos : System.nanoTime();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(end - start);
+    }
+
+    @Override
+    public long getInputRecords() {
+        return inputRecords.sum();
+    }
+
+    @Override
+    public long getInputBytes() {
+        return inputBytes.sum();
+    }
+
+    @Override
+    public long getRunsWritten() {
+        return runsWritten.sum();
+    }
+
+    @Override
+    public long getRunRecordsWritten() {
+        return runRecordsWritten.sum();
+    }
+
+    @Override
+    public long getRunBytesWritten() {
+        return runBytesWritten.sum();
+    }
+
+    @Override
+    public long getLargestRunBytes() {
+        return largestRunBytes.get();
+    }
+
+    @Override
+    public long getRunBytesRead() {
+        return runBytesRead.sum();
+    }
+
+    @Override
+    public long getOutputRecords() {
+        return outputRecords.sum();
+    }
+
+    @Override
+    public long getOutputBytes() {
+        return outputBytes.sum();
+    }
+
+    @Override
+    public long getCombinedRecords() {
+        return combinedRecords.sum();
+    }
+
+    @Override
+    public long getMerges() {
+        return merges.sum();
+    }
+
+    @Override
+    public long getMapSideMerges() {
+        return mapSideMerges.sum();
+    }
+
+    @Override
+    public long getMergePasses() {
+        return mergePasses.sum();
+    }
+
+    @Override
+    public long getMaxFanIn() {
+        return maxFanIn.get();
+    }
+
+    @Override
+    public long getParseMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(parseNanos.sum());
+    }
+
+    @Override
+    public long getSortMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(sortNanos.sum());
+    }
+
+    @Override
+    public long getReadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(readNanos.sum());
+    }
+
+    @Override
+    public long getWriteMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(writeNanos.sum());
+    }
+
+    @Override
+    public long getQueueWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(queueWaitNanos.sum());
+    }
+
+    @Override
+    public long getIoWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ioWaitNanos.sum());
+    }
+
+    @Override
+    public long getCompressMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(compressionStats.compressNanos.sum());
+    }
+
+    @Override
+    public long getDecompressMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(compressionStats.decompressNanos.sum());
+    }
+
+    @Override
+    public long getGcMillis() {
+        return phase == Phase.NOT_STARTED ? 0 : totalGcMillis() - gcMillisAtStart;
+    }
+
+    private static long totalGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    @Override
+    public double getWorkerUtilisation() {
+        long available = elapsedNanos() * workerThreads;
+        return available == 0 ? 0 : Math.min(1, (double) busyNanos.sum() / available);
+    }
+
+    /**
+     * @return the largest heap usage that was sampled while the sort ran (see {@link #sampleHeap()}). it is the heap
+     * of the whole jvm, so it includes the other sorts that ran at the same time, and it misses a peak between samples
+     */
+    @Override
+    public long getPeakHeapBytes() {
+        return peakHeapBytes.get();
+    }
+
+    @Override
+    public String getReport() {
+        return toJson();
+    }
+
+    /**
+     * @return the metrics as a json document, with times in milliseconds and sizes in bytes
+     */
+    String toJson() {
+        return "{\n"
+                + "  \"phase\": \"" + getPhase() + "\",\n"
+                + "  \"elapsedMillis\": " + getElapsedMillis() + ",\n"
+                + "  \"mapMillis\": " + phaseMillis(Phase.MAP) + ",\n"
+                + "  \"reduceMillis\": " + phaseMillis(Phase.REDUCE) + ",\n"
+                + "  \"input\": {\"records\": " + getInputRecords() + ", \"bytes\": " + getInputBytes() + "},\n"
+                + "  \"runs\": {\"written\": " + getRunsWritten() + ", \"records\": " + getRunRecordsWritten()
+                + ", \"bytesWritten\": " + getRunBytesWritten() + ", \"largestBytes\": " + getLargestRunBytes()
+                + ", \"bytesRead\": " + getRunBytesRead() + "},\n"
+                + "  \"output\": {\"records\": " + getOutputRecords() + ", \"bytes\": " + getOutputBytes() + "},\n"
+                + "  \"merges\": {\"merges\": " + getMerges() + ", \"mapSide\": " + getMapSideMerges()
+                + ", \"passes\": " + getMergePasses() + ", \"maxFanIn\": " + getMaxFanIn()
+                + ", \"combinedRecords\": " + getCombinedRecords() + "},\n"
+                + "  \"timeMillis\": {\"parse\": " + getParseMillis() + ", \"sort\": " + getSortMillis()
+                + ", \"read\": " + getReadMillis() + ", \"write\": " + getWriteMillis()
+                + ", \"queueWait\": " + getQueueWaitMillis() + ", \"ioWait\": " + getIoWaitMillis()
+                + ", \"compress\": " + getCompressMillis() + ", \"decompress\": " + getDecompressMillis()
+                + ", \"gc\": " + getGcMillis() + "},\n"
+                + "  \"workers\": {\"threads\": " + workerThreads
+                + ", \"busyMillis\": " + TimeUnit.NANOSECONDS.toMillis(busyNanos.sum())
+                + ", \"utilisation\": " + String.format(Locale.ROOT, "%.3f", getWorkerUtilisation()) + "},\n"
+                + "  \"memory\": {\"peakHeapBytes\": " + getPeakHeapBytes()
+                + ", \"maxHeapBytes\": " + Runtime.getRuntime().maxMemory() + "}\n"
+                + "}\n";
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%,d records, %,d bytes in %d ms (map %d ms, reduce %d ms). %d runs, %d merges in %d passes. "
+                        + "parse %d ms, sort %d ms, read %d ms, write %d ms, queue wait %d ms, io wait %d ms, gc %d ms. "
+                        + "worker utilisation %.0f%%, peak heap %,d bytes",
+                getInputRecords(), getInputBytes(), getElapsedMillis(), phaseMillis(Phase.MAP), phaseMillis(Phase.REDUCE),
+                getRunsWritten(), getMerges(), getMergePasses(), getParseMillis(), getSortMillis(), getReadMillis(),
+                getWriteMillis(), getQueueWaitMillis(), getIoWaitMillis(), getGcMillis(), 100 * getWorkerUtilisation(), getPeakHeapBytes());
+    }
+}
@@ -0,0 +1,76 @@
+package csvsorter;
+
+/**
+ * the live metrics of a sort, as they are seen through jmx while the sort runs (see {@link SortMetrics}).
+ * times are the sum over all the threads, so they may be longer than the elapsed time.
+ */
+public interface SortMetricsMXBean {
+
+    /**
+     * @return NOT_STARTED, MAP, REDUCE or DONE
+     */
+    String getPhase();
+
+    long getElapsedMillis();
+
+    long getInputRecords();
+
+    long getInputBytes();
+
+    long getRunsWritten();
+
+    long getRunRecordsWritten();
+
+    long getRunBytesWritten();
+
+    long getLargestRunBytes();
+
+    long getRunBytesRead();
+
+    long getOutputRecords();
+
+    long getOutputBytes();
+
+    /**
+     * @return the records that the combiner folded into another record of their key, or dropped, in all the runs
+     */
+    long getCombinedRecords();
+
+    long getMerges();
+
+    long getMapSideMerges();
+
+    long getMergePasses();
+
+    long getMaxFanIn();
+
+    long getParseMillis();
+
+    long getSortMillis();
+
+    long getReadMillis();
+
+    long getWriteMillis();
+
+    long getQueueWaitMillis();
+
+    long getIoWaitMillis();
+
+    long getCompressMillis();
+
+    long getDecompressMillis();
+
+    long getGcMillis();
+
+    /**
+     * @return the time the workers were busy, divided by the time all the worker threads could have been busy
+     */
+    double getWorkerUtilisation();
+
+    long getPeakHeapBytes();
+
+    /**
+     * @return all the metrics as a json document, the same as the report that is written at the end of the sort
+     */
+    String getReport();
+}
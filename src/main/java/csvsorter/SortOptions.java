@@ -0,0 +1,564 @@
+package csvsorter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * the options of a single sort, shared by the Mapper and the Reducer.
+ * use {@link #builder(int)} or {@link #builder(KeySpec)} to create it, every option except the sorting key has a default.
+ */
+public class SortOptions {
+
+    /**
+     * default maximum number of files that are merged together by a single merge worker
+     */
+    public static final int DEFAULT_FAN_IN = 64;
+
+    /**
+     * default size in bytes of each of the buffers that a run file is read or written through
+     */
+    public static final int DEFAULT_IO_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * the ways to generate the sorted parts during the map
+     */
+    public enum RunGeneration {
+        /**
+         * cut the input into slices that fit in memory, and sort each slice by a worker thread
+         */
+        FIXED,
+        /**
+         * a single heap, that writes longer parts - about twice its size on random input,
+         * and a single part on sorted input
+         */
+        REPLACEMENT_SELECTION
+    }
+
+    /**
+     * the ways to divide the input between the map workers, when the parts are generated by {@link RunGeneration#FIXED}
+     */
+    public enum InputSplitting {
+        /**
+         * a single reader reads the input line by line, and hands the parts to the workers
+         */
+        LINES,
+        /**
+         * the input is divided into byte ranges that are aligned to record boundaries, and every worker reads,
+         * parses and sorts its own range with positional reads. a line break inside a quoted field belongs to the record
+         */
+        BYTE_RANGES
+    }
+
+    /**
+     * the ways to choose the temp directory of a new run, when the runs are spread over several temp directories
+     */
+    public enum TempDirPlacement {
+        /**
+         * the directories take turns
+         */
+        ROUND_ROBIN,
+        /**
+         * the directory with the most usable space on its disk
+         */
+        FREE_SPACE
+    }
+
+    private final KeySpec keySpec;
+    private final int maxRecordsNumber;
+    private final long memoryBudget;
+    private final int numberOfWorkers;
+    private final int fanIn;
+    private final RunGeneration runGeneration;
+    private final InputSplitting inputSplitting;
+    private final PartSort partSort;
+    private final SpillFormat spillFormat;
+    private final SpillCompression spillCompression;
+    private final int ioBufferSize;
+    private final boolean asyncIo;
+    private final int outputPartitions;
+    private final boolean shardedOutput;
+    private final int limit;
+    private final Combiner combiner;
+    private final int indexInterval;
+    private final boolean compressOutput;
+    private final List<String> tempDirs;
+    private final TempDirPlacement tempDirPlacement;
+    private final char delimiter;
+    private final char quote;
+
+    private SortOptions(Builder builder) {
+        this.keySpec = builder.keySpec;
+        this.maxRecordsNumber = builder.maxRecordsNumber;
+        this.memoryBudget = builder.memoryBudget;
+        this.numberOfWorkers = builder.numberOfWorkers;
+        this.fanIn = builder.fanIn;
+        this.runGeneration = builder.runGeneration;
+        this.inputSplitting = builder.inputSplitting;
+        this.partSort = builder.partSort;
+        this.spillFormat = builder.spillFormat;
+        this.spillCompression = builder.spillCompression;
+        this.ioBufferSize = builder.ioBufferSize;
+        this.asyncIo = builder.asyncIo;
+        this.outputPartitions = builder.outputPartitions;
+        this.shardedOutput = builder.shardedOutput;
+        this.limit = builder.limit;
+        this.combiner = builder.combiner;
+        this.indexInterval = builder.indexInterval;
+        this.compressOutput = builder.compressOutput;
+        this.tempDirs = Collections.unmodifiableList(new ArrayList<>(builder.tempDirs));
+        this.tempDirPlacement = builder.tempDirPlacement;
+        this.delimiter = builder.delimiter;
+        this.quote = builder.quote;
+    }
+
+    /**
+     * @param sortingKeyIndex - the index of the key in the csv record, the sorting is done by to this key
+     * @return a builder with the default options
+     */
+    public static Builder builder(int sortingKeyIndex) {
+        return new Builder(KeySpec.of(sortingKeyIndex));
+    }
+
+    /**
+     * @param keySpec - the key columns of the csv record, the sorting is done by them
+     * @return a builder with the default options
+     */
+    public static Builder builder(KeySpec keySpec) {
+        return new Builder(keySpec);
+    }
+
+    /**
+     * @return the index of the first key column in the csv record
+     */
+    public int getSortingKeyIndex() {
+        return keySpec.getColumns().get(0).getIndex();
+    }
+
+    /**
+     * @return the key columns, the sorting is done by them
+     */
+    public KeySpec getKeySpec() {
+        return keySpec;
+    }
+
+    /**
+     * @return maximum number of records in each part that is sorted in memory
+     */
+    public int getMaxRecordsNumber() {
+        return maxRecordsNumber;
+    }
+
+    /**
+     * @return memory in bytes that the sort may use - for the parts that are sorted in memory during the map,
+     * and for the read buffers of the merges during the reduce
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return number of worker threads that sort parts or merge files at the same time
+     */
+    public int getNumberOfWorkers() {
+        return numberOfWorkers;
+    }
+
+    /**
+     * @return maximum number of files that are merged together by a single merge worker
+     */
+    public int getFanIn() {
+        return fanIn;
+    }
+
+    /**
+     * @return the way the sorted parts are generated during the map
+     */
+    public RunGeneration getRunGeneration() {
+        return runGeneration;
+    }
+
+    /**
+     * @return the way the input is divided between the map workers
+     */
+    public InputSplitting getInputSplitting() {
+        return inputSplitting;
+    }
+
+    /**
+     * @return the in memory sort of the parts
+     */
+    public PartSort getPartSort() {
+        return partSort;
+    }
+
+    /**
+     * @return the format of the intermediate runs
+     */
+    public SpillFormat getSpillFormat() {
+        return spillFormat;
+    }
+
+    /**
+     * @return the block compression of the intermediate runs
+     */
+    public SpillCompression getSpillCompression() {
+        return spillCompression;
+    }
+
+    /**
+     * @return the size in bytes of each of the buffers that a run file is read or written through
+     */
+    public int getIoBufferSize() {
+        return ioBufferSize;
+    }
+
+    /**
+     * @return true if the run files are read ahead and written behind on background threads, with two buffers each
+     */
+    public boolean isAsyncIo() {
+        return asyncIo;
+    }
+
+    /**
+     * @return the number of key ranges that the final merge is divided into, each range is merged by its own worker
+     */
+    public int getOutputPartitions() {
+        return outputPartitions;
+    }
+
+    /**
+     * @return true if every key range of the final merge is a sorted output file of its own (a shard),
+     * false if the ranges are concatenated into a single output file
+     */
+    public boolean isShardedOutput() {
+        return shardedOutput;
+    }
+
+    /**
+     * @return the number of records to output - the first ones by their keys, 0 to output all the records
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the combiner of the records of the same key, null if all the records are written
+     */
+    public Combiner getCombiner() {
+        return combiner;
+    }
+
+    /**
+     * @return the distance in bytes between the records of the sorted output that are kept in its sparse index
+     * (see {@link SortedFileIndex}), 0 if the output is not indexed
+     */
+    public int getIndexInterval() {
+        return indexInterval;
+    }
+
+    /**
+     * @return true if the sorted output is written as gzip, compressed in blocks on several threads
+     */
+    public boolean isCompressOutput() {
+        return compressOutput;
+    }
+
+    /**
+     * @return the directories that the runs are spread over, empty if all of them are written to the temp directory
+     * that is given to the map and the reduce
+     */
+    public List<String> getTempDirs() {
+        return tempDirs;
+    }
+
+    /**
+     * @return the way the temp directory of every run is chosen, when there are several
+     */
+    public TempDirPlacement getTempDirPlacement() {
+        return tempDirPlacement;
+    }
+
+    /**
+     * @return the char between the fields of a csv record
+     */
+    public char getDelimiter() {
+        return delimiter;
+    }
+
+    /**
+     * @return the char around quoted fields of a csv record
+     */
+    public char getQuote() {
+        return quote;
+    }
+
+    public static class Builder {
+        private final KeySpec keySpec;
+        private int maxRecordsNumber = Integer.MAX_VALUE;
+        private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+        private int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+        private int fanIn = DEFAULT_FAN_IN;
+        private RunGeneration runGeneration = RunGeneration.FIXED;
+        private InputSplitting inputSplitting = InputSplitting.LINES;
+        private PartSort partSort = PartSort.RADIX;
+        private SpillFormat spillFormat = SpillFormat.TEXT;
+        private SpillCompression spillCompression = SpillCompression.NONE;
+        private int ioBufferSize = DEFAULT_IO_BUFFER_SIZE;
+        private boolean asyncIo = true;
+        private int outputPartitions = 1;
+        private boolean shardedOutput;
+        private int limit;
+        private Combiner combiner;
+        private int indexInterval;
+        private boolean compressOutput;
+        private List<String> tempDirs = Collections.emptyList();
+        private TempDirPlacement tempDirPlacement = TempDirPlacement.ROUND_ROBIN;
+        private char delimiter = CsvKeyTokenizer.DEFAULT_DELIMITER;
+        private char quote = CsvKeyTokenizer.DEFAULT_QUOTE;
+
+        private Builder(KeySpec keySpec) {
+            this.keySpec = keySpec;
+        }
+
+        /**
+         * @param maxRecordsNumber - maximum number of records in each part that is sorted in memory.
+         *                         by default the parts are limited only by the memory budget
+         */
+        public Builder maxRecordsNumber(int maxRecordsNumber) {
+            this.maxRecordsNumber = maxRecordsNumber;
+            return this;
+        }
+
+        /**
+         * @param memoryBudget - memory in bytes that the sort may use, by default half of the maximum heap size
+         */
+        public Builder memoryBudget(long memoryBudget) {
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+        /**
+         * @param numberOfWorkers - number of worker threads, by default the number of available processors
+         */
+        public Builder numberOfWorkers(int numberOfWorkers) {
+            this.numberOfWorkers = numberOfWorkers;
+            return this;
+        }
+
+        /**
+         * @param fanIn - maximum number of files that are merged together, by default {@link #DEFAULT_FAN_IN}
+         */
+        public Builder fanIn(int fanIn) {
+            this.fanIn = fanIn;
+            return this;
+        }
+
+        /**
+         * @param runGeneration - the way the sorted parts are generated, by default {@link RunGeneration#FIXED}
+         */
+        public Builder runGeneration(RunGeneration runGeneration) {
+            this.runGeneration = runGeneration;
+            return this;
+        }
+
+        /**
+         * @param inputSplitting - the way the input is divided between the map workers, by default {@link InputSplitting#LINES}
+         */
+        public Builder inputSplitting(InputSplitting inputSplitting) {
+            this.inputSplitting = inputSplitting;
+            return this;
+        }
+
+        /**
+         * @param partSort - the in memory sort of the parts, by default {@link PartSort#RADIX}
+         */
+        public Builder partSort(PartSort partSort) {
+            this.partSort = partSort;
+            return this;
+        }
+
+        /**
+         * @param spillFormat - the format of the intermediate runs, by default {@link SpillFormat#TEXT}
+         */
+        public Builder spillFormat(SpillFormat spillFormat) {
+            this.spillFormat = spillFormat;
+            return this;
+        }
+
+        /**
+         * @param spillCompression - the block compression of the intermediate runs, by default {@link SpillCompression#NONE}
+         */
+        public Builder spillCompression(SpillCompression spillCompression) {
+            this.spillCompression = spillCompression;
+            return this;
+        }
+
+        /**
+         * @param ioBufferSize - the size in bytes of each of the buffers that a run file is read or written through,
+         *                     by default {@link #DEFAULT_IO_BUFFER_SIZE}. the buffers are part of the memory budget,
+         *                     so larger buffers lower the fan-in of the merges
+         */
+        public Builder ioBufferSize(int ioBufferSize) {
+            this.ioBufferSize = ioBufferSize;
+            return this;
+        }
+
+        /**
+         * @param asyncIo - true to read the run files ahead and write them behind on background threads, with two
+         *                buffers each, so reading, merging and writing overlap. by default true
+         */
+        public Builder asyncIo(boolean asyncIo) {
+            this.asyncIo = asyncIo;
+            return this;
+        }
+
+        /**
+         * @param outputPartitions - the number of key ranges that the final merge is divided into, by default 1.
+         *                         the ranges are chosen by a sample of the keys, taken while the runs are written
+         */
+        public Builder outputPartitions(int outputPartitions) {
+            this.outputPartitions = outputPartitions;
+            return this;
+        }
+
+        /**
+         * @param shardedOutput - true to write every key range of the final merge to an output file of its own,
+         *                      by default the ranges are concatenated into a single output file
+         */
+        public Builder shardedOutput(boolean shardedOutput) {
+            this.shardedOutput = shardedOutput;
+            return this;
+        }
+
+        /**
+         * @param limit - the number of records to output, the first ones by their keys. they are selected in a single
+         *              read of the input, with bounded heaps instead of runs. by default 0, all the records are sorted
+         */
+        public Builder limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * @param combiner - combines the records of the same key whenever sorted records are written (see {@link Combiner}),
+         *                 by default null - all the records are written
+         */
+        public Builder combiner(Combiner combiner) {
+            this.combiner = combiner;
+            return this;
+        }
+
+        /**
+         * @param indexInterval - write a sparse index next to a sorted output file (sorted.csv.idx), with the key and
+         *                      the offset of a record every indexInterval bytes, so {@link SortedFileIndex} finds
+         *                      keys with a few reads. by default 0, no index
+         */
+        public Builder indexInterval(int indexInterval) {
+            this.indexInterval = indexInterval;
+            return this;
+        }
+
+        /**
+         * @param compressOutput - true to write the sorted output as gzip, in blocks that are compressed on background
+         *                       threads while the final merge goes on (see {@link ParallelGzipOutputStream}).
+         *                       by default the output is plain csv. a compressed input is always recognized on its own
+         */
+        public Builder compressOutput(boolean compressOutput) {
+            this.compressOutput = compressOutput;
+            return this;
+        }
+
+        /**
+         * @param tempDirs - existing directories to spread the runs over, preferably on different disks.
+         *                 a merge writes its run away from the disks of its inputs when it can.
+         *                 by default every run is written to the temp directory that is given to the map and the reduce
+         */
+        public Builder tempDirs(List<String> tempDirs) {
+            this.tempDirs = tempDirs;
+            return this;
+        }
+
+        /**
+         * @param tempDirPlacement - the way the temp directory of every run is chosen, by default
+         *                         {@link TempDirPlacement#ROUND_ROBIN}
+         */
+        public Builder tempDirPlacement(TempDirPlacement tempDirPlacement) {
+            this.tempDirPlacement = tempDirPlacement;
+            return this;
+        }
+
+        /**
+         * @param delimiter - the char between the fields of a csv record, by default a comma
+         */
+        public Builder delimiter(char delimiter) {
+            this.delimiter = delimiter;
+            return this;
+        }
+
+        /**
+         * @param quote - the char around quoted fields of a csv record, by default a double quote.
+         *              a doubled quote char inside a quoted field stands for a single one
+         */
+        public Builder quote(char quote) {
+            this.quote = quote;
+            return this;
+        }
+
+        /**
+         * @return the options
+         * @throws IllegalArgumentException if any of the options is out of range
+         */
+        public SortOptions build() {
+            requirePositive(maxRecordsNumber, "maximum number of records must be positive");
+            requirePositive(memoryBudget, "memory budget must be positive");
+            requirePositive(numberOfWorkers, "number of workers must be positive");
+            requirePositive(outputPartitions, "number of output partitions must be positive");
+            requirePositive(ioBufferSize, "io buffer size must be positive");
+            if (limit < 0) {
+                throw new IllegalArgumentException("limit can't be negative");
+            }
+            if (limit > 0 && shardedOutput) {
+                throw new IllegalArgumentException("the first records by a limit are a single output, they can't be sharded");
+            }
+            if (indexInterval < 0) {
+                throw new IllegalArgumentException("index interval can't be negative");
+            }
+            if (indexInterval > 0 && compressOutput) {
+                throw new IllegalArgumentException("an index holds offsets in the output, it can't be compressed");
+            }
+            if (combiner != null && limit > 0) {
+                throw new IllegalArgumentException("a limit selects records of the input, it can't be combined with a combiner");
+            }
+            if (combiner != null && combiner.hasColumn()
+                    && keySpec.getColumns().stream().anyMatch(column -> column.getIndex() == combiner.getColumn())) {
+                throw new IllegalArgumentException("the column of the combiner " + combiner + " can't be a key column");
+            }
+            if (fanIn < 2) {
+                throw new IllegalArgumentException("fan-in must be at least 2");
+            }
+            if (delimiter == quote || isLineBreak(delimiter) || isLineBreak(quote)) {
+                throw new IllegalArgumentException("the delimiter and the quote must be different chars, and not line breaks");
+            }
+            //the byte range splitting finds the quotes in the bytes of the input
+            if (quote >= 0x80) {
+                throw new IllegalArgumentException("the quote must be an ascii char");
+            }
+            if (inputSplitting == InputSplitting.BYTE_RANGES && runGeneration == RunGeneration.REPLACEMENT_SELECTION) {
+                throw new IllegalArgumentException("replacement selection reads the input with a single reader, "
+                        + "it can't be combined with byte range splitting");
+            }
+            return new SortOptions(this);
+        }
+
+        private static boolean isLineBreak(char c) {
+            return c == '\n' || c == '\r';
+        }
+
+        private static void requirePositive(long value, String message) {
+            if (value <= 0) {
+                throw new IllegalArgumentException(message);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package csvsorter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the worker threads of a single sort, shared by the map and the reduce, so the sort never runs more than
+ * numberOfWorkers tasks at a time, whatever the number of parts.
+ * the queue of waiting tasks is bounded as well - when it is full, the submitting thread waits for a free slot,
+ * so a fast producer (the reader of the input) is slowed down to the pace of the workers.
+ * tasks are submitted only by the thread that drives the sort, never by the tasks themselves,
+ * so a task never waits for a slot that only the tasks can free.
+ * the time the tasks run and the time the submitting thread waits for a slot are added to the metrics of the sort.
+ */
+class SortScheduler {
+    //idle threads are let go, so a scheduler that is no longer used doesn't need to be shut down
+    private static final long KEEP_ALIVE_SECONDS = 1;
+
+    private final ThreadPoolExecutor taskExecutor;
+    private final SortMetrics metrics;
+
+    /**
+     * @param numberOfWorkers - the number of worker threads, and the number of tasks that may wait for them
+     */
+    SortScheduler(int numberOfWorkers) {
+        this(numberOfWorkers, new SortMetrics());
+    }
+
+    /**
+     * @param numberOfWorkers - the number of worker threads, and the number of tasks that may wait for them
+     * @param metrics         - the metrics of the sort, which measure the utilisation of the workers
+     */
+    SortScheduler(int numberOfWorkers, SortMetrics metrics) {
+        this.metrics = metrics;
+        this.metrics.setWorkerThreads(numberOfWorkers);
+        this.taskExecutor = new ThreadPoolExecutor(numberOfWorkers, numberOfWorkers,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(numberOfWorkers),
+                new WorkerThreadFactory(), this::waitForFreeSlot);
+        this.taskExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param task - a task of the sort, waits for a free slot in the queue if all the workers are busy
+     * @return the future of the task
+     */
+    Future<?> submit(Runnable task) {
+        return taskExecutor.submit(() -> {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                metrics.busyNanos.add(System.nanoTime() - start);
+            }
+        });
+    }
+
+    /**
+     * @param task - a task of the sort, waits for a free slot in the queue if all the workers are busy
+     * @return the future of the task's result
+     */
+    <T> Future<T> submit(Callable<T> task) {
+        return taskExecutor.submit(() -> {
+            long start = System.nanoTime();
+            try {
+                return task.call();
+            } finally {
+                metrics.busyNanos.add(System.nanoTime() - start);
+            }
+        });
+    }
+
+    /**
+     * wait until all the given tasks are done, even when one of them failed, so no task of a failed sort
+     * still writes its runs after the sort is done.
+     *
+     * @param tasks - the futures of submitted tasks
+     * @throws IOException - the error of the first task that failed, the sort can't go on without its output
+     */
+    static void awaitAll(List<? extends Future<?>> tasks) throws IOException {
+        IOException failure = null;
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the tasks of the sort");
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = toIOException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static IOException toIOException(Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof UncheckedIOException) {
+            return ((UncheckedIOException) cause).getCause();
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * rejection handler of the executor - instead of rejecting a task when the queue is full,
+     * block the submitting thread until one of the workers takes a task from the queue.
+     */
+    private void waitForFreeSlot(Runnable task, ThreadPoolExecutor taskExecutor) {
+        long start = System.nanoTime();
+        try {
+            taskExecutor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        } finally {
+            metrics.queueWaitNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * daemon threads, so the tasks of a sort that failed don't keep the process alive
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private static final AtomicInteger schedulerNumber = new AtomicInteger();
+        private final String namePrefix = "sort-" + schedulerNumber.incrementAndGet() + "-worker-";
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package csvsorter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * a long running sort service - sorts run as jobs in a single warm jvm, instead of a jvm per sort.
+ * jobs are submitted over http on the loopback address, queued, and run up to concurrentJobs at a time.
+ * the memory budget and the threads of the server are leased to the jobs that run at the same time - a job that
+ * starts gets its share of what the running jobs left, divided by the jobs that may still start next to it, and
+ * gives it back when it ends. a job may ask for less with -mem and -threads, never for more, and what it doesn't take
+ * is left to the other jobs - so concurrent jobs never take more than the server was given.
+ * <p>
+ * the endpoints:
+ * <ul>
+ * <li>POST /jobs - the body is the command line of a sort (see {@link Main}), one argument per line.
+ * -in, -key and -out are required. the response is the status of the new job</li>
+ * <li>GET /jobs - the status of all the jobs that the server remembers</li>
+ * <li>GET /jobs/id - the status of a job - its state (QUEUED, RUNNING, DONE or FAILED), the time it waited and ran,
+ * the progress of its map and its metrics</li>
+ * </ul>
+ * {@link SortClient} submits jobs and waits for them.
+ */
+public class SortServer {
+    private static final Logger logger = Logger.getLogger(String.valueOf(SortServer.class));
+
+    public static final int DEFAULT_PORT = 8765;
+    public static final int DEFAULT_CONCURRENT_JOBS = 2;
+    //finished jobs that are remembered for their status, the oldest are forgotten first
+    private static final int MAX_FINISHED_JOBS = 1000;
+
+    private final HttpServer httpServer;
+    private final ExecutorService jobExecutor;
+    private final long memoryBudget;
+    private final int threads;
+    private final int concurrentJobs;
+    private final String tempDir;
+    //what the running jobs left of the budget, and the number of running jobs
+    private long freeMemory;
+    private int freeThreads;
+    private int runningJobs;
+    private final Map<Long, SortJob> jobs = new ConcurrentSkipListMap<>();
+    private final AtomicLong jobNumber = new AtomicLong();
+
+    /**
+     * @param port           - the port to listen on, on the loopback address. 0 for any free port
+     * @param memoryBudget   - memory in bytes that all the running jobs share
+     * @param threads        - worker threads that all the running jobs share, at least one for every concurrent job
+     * @param concurrentJobs - the number of jobs that run at the same time, the rest wait in a queue
+     * @param tempDir        - the directory that every job creates its temp directory in, unless it gives -tmp
+     */
+    public SortServer(int port, long memoryBudget, int threads, int concurrentJobs, String tempDir) throws IOException {
+        if (memoryBudget <= 0 || threads <= 0 || concurrentJobs <= 0) {
+            throw new IllegalArgumentException("the memory budget, the threads and the concurrent jobs must be positive");
+        }
+        //every running job leases at least a thread and a byte, so the budget is never overdrawn
+        if (threads < concurrentJobs || memoryBudget < concurrentJobs) {
+            throw new IllegalArgumentException(concurrentJobs + " concurrent jobs can't share " + threads + " threads and "
+                    + memoryBudget + " bytes, every job needs a thread of its own");
+        }
+        this.memoryBudget = memoryBudget;
+        this.threads = threads;
+        this.concurrentJobs = concurrentJobs;
+        this.tempDir = tempDir;
+        this.freeMemory = memoryBudget;
+        this.freeThreads = threads;
+        this.jobExecutor = Executors.newFixedThreadPool(concurrentJobs);
+        this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.httpServer.createContext("/jobs", this::handle);
+    }
+
+    public void start() {
+        httpServer.start();
+        logger.info("Sort server listening on port " + getPort() + ", " + concurrentJobs + " concurrent jobs share "
+                + memoryBudget + " bytes and " + threads + " threads");
+    }
+
+    /**
+     * stop accepting jobs. the jobs that were submitted still run
+     */
+    public void stop() {
+        httpServer.stop(0);
+        jobExecutor.shutdown();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    /**
+     * @param args - the command line of a sort, with an output path
+     * @return the new job, queued
+     * @throws ParseException           if the command line can't be parsed
+     * @throws IllegalArgumentException if the options of the sort are not valid
+     */
+    SortJob submit(String[] args) throws ParseException {
+        CommandLine cmd = Main.parseCommandLine(args);
+        if (!cmd.hasOption("output")) {
+            throw new IllegalArgumentException("the output path of a job is required");
+        }
+        long requestedMemory = cmd.hasOption("memory") ? Main.parseSize(cmd.getOptionValue("memory")) : Long.MAX_VALUE;
+        int requestedThreads = cmd.hasOption("threads") ? Integer.parseInt(cmd.getOptionValue("threads")) : Integer.MAX_VALUE;
+        SortOptions.Builder optionsBuilder = Main.sortOptionsBuilder(cmd, Collections.emptyList());
+        //the options are checked when the job is submitted, its share is known only when it starts
+        optionsBuilder.memoryBudget(Math.min(requestedMemory, memoryBudget))
+                .numberOfWorkers(Math.max(1, Math.min(requestedThreads, threads)))
+                .build();
+        List<String> parentTempDirs = cmd.hasOption("tempdirs")
+                ? Arrays.asList(cmd.getOptionValue("tempdirs").split(",")) : Collections.singletonList(tempDir);
+        SortJob job = new SortJob(jobNumber.incrementAndGet(), cmd, parentTempDirs,
+                () -> lease(optionsBuilder, requestedMemory, requestedThreads), this::release);
+        jobs.put(job.getId(), job);
+        forgetOldJobs();
+        jobExecutor.execute(job);
+        return job;
+    }
+
+    /**
+     * lease the share of a job that starts - what the running jobs left of the budget, divided by the jobs that may
+     * start while it runs, up to what the job asked for. every share is at least a thread and a byte, and when
+     * concurrentJobs shares are leased the next lease waits for one of them to be given back
+     *
+     * @param optionsBuilder   - the options of the job, without its share
+     * @param requestedMemory  - the memory budget that the job asked for, Long.MAX_VALUE if it didn't
+     * @param requestedThreads - the threads that the job asked for, Integer.MAX_VALUE if it didn't
+     * @return the options of the job with its memory budget and threads, which are given back by {@link #release}
+     */
+    synchronized SortOptions lease(SortOptions.Builder optionsBuilder, long requestedMemory, int requestedThreads) {
+        while (runningJobs == concurrentJobs) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for the share of a job");
+            }
+        }
+        //what is free is at least a thread and a byte for every free slot, see the constructor
+        int freeSlots = concurrentJobs - runningJobs;
+        long jobMemory = Math.max(1, Math.min(requestedMemory, freeMemory / freeSlots));
+        int jobThreads = Math.max(1, Math.min(requestedThreads, freeThreads / freeSlots));
+        SortOptions options = optionsBuilder.memoryBudget(jobMemory).numberOfWorkers(jobThreads).build();
+        freeMemory -= jobMemory;
+        freeThreads -= jobThreads;
+        runningJobs++;
+        return options;
+    }
+
+    /**
+     * give back the share of a job that ended, to the jobs that start after it
+     */
+    synchronized void release(SortOptions options) {
+        freeMemory += options.getMemoryBudget();
+        freeThreads += options.getNumberOfWorkers();
+        runningJobs--;
+        notifyAll();
+    }
+
+    /**
+     * @return the job, or null if there is no such job, or it was forgotten
+     */
+    SortJob getJob(long id) {
+        return jobs.get(id);
+    }
+
+    private void forgetOldJobs() {
+        List<Long> finished = jobs.values().stream().filter(SortJob::isFinished).map(SortJob::getId)
+                .collect(Collectors.toList());
+        for (int i = 0; i < finished.size() - MAX_FINISHED_JOBS; i++) {
+            jobs.remove(finished.get(i));
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals("/jobs") || path.equals("/jobs/")) {
+                if (method.equals("POST")) {
+                    String body = new String(IOUtils.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8);
+                    List<String> args = new ArrayList<>();
+                    for (String line : body.split("\r?\n")) {
+                        if (!line.trim().isEmpty()) {
+                            args.add(line.trim());
+                        }
+                    }
+                    respond(exchange, 201, submit(args.toArray(new String[0])).toJson());
+                } else if (method.equals("GET")) {
+                    respond(exchange, 200, "[" + jobs.values().stream().map(SortJob::toJson)
+                            .collect(Collectors.joining(",\n")) + "]");
+                } else {
+                    respond(exchange, 405, error("use GET or POST"));
+                }
+                return;
+            }
+            SortJob job = null;
+            try {
+                job = getJob(Long.parseLong(path.substring("/jobs/".length())));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                //not a job number
+            }
+            if (job == null) {
+                respond(exchange, 404, error("no such job " + path));
+            } else if (!method.equals("GET")) {
+                respond(exchange, 405, error("use GET"));
+            } else {
+                respond(exchange, 200, job.toJson());
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            respond(exchange, 400, error(String.valueOf(e.getMessage())));
+        } catch (RuntimeException e) {
+            logger.severe(String.valueOf(e));
+            respond(exchange, 500, error(String.valueOf(e)));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\": " + SortJob.jsonString(message) + "}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    /**
+     * start a sort server, and keep it running
+     *
+     * @param args usage: csvsorter-server
+     *             -port,--port arg   the port on the loopback address (optional, default 8765)
+     *             -mem,--memory arg   memory budget of all the running jobs, e.g. 4g (optional, default half of the heap)
+     *             -threads,--threads arg   worker threads of all the running jobs, at least one per job (optional, default the processors)
+     *             -jobs,--jobs arg   the number of jobs that run at the same time (optional, default 2)
+     *             -tmp,--tempdir arg   the directory of the temp directories of the jobs (optional, default java.io.tmpdir)
+     */
+    public static void main(String[] args) throws IOException {
+        Options options = new Options();
+        options.addOption(new Option("port", "port", true, "the port on the loopback address (optional, default " + DEFAULT_PORT + ")"));
+        options.addOption(new Option("mem", "memory", true,
+                "memory budget in bytes of all the running jobs, a k/m/g suffix is allowed (optional, default half of the maximum heap size)"));
+        options.addOption(new Option("threads", "threads", true,
+                "worker threads of all the running jobs, at least one per job (optional, default the number of available processors)"));
+        options.addOption(new Option("jobs", "jobs", true,
+                "the number of jobs that run at the same time, the rest are queued (optional, default " + DEFAULT_CONCURRENT_JOBS + ")"));
+        options.addOption(new Option("tmp", "tempdir", true,
+                "the directory that the temp directories of the jobs are created in (optional, default the system temp directory)"));
+        CommandLine cmd = null;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            logger.severe(String.valueOf(e));
+            new HelpFormatter().printHelp("csvsorter-server", options);
+            System.exit(1);
+        }
+        int concurrentJobs = cmd.hasOption("jobs") ? Integer.parseInt(cmd.getOptionValue("jobs")) : DEFAULT_CONCURRENT_JOBS;
+        SortServer server = new SortServer(
+                Integer.parseInt(cmd.getOptionValue("port", String.valueOf(DEFAULT_PORT))),
+                cmd.hasOption("memory") ? Main.parseSize(cmd.getOptionValue("memory")) : Runtime.getRuntime().maxMemory() / 2,
+                cmd.hasOption("threads") ? Integer.parseInt(cmd.getOptionValue("threads")) : Math.max(concurrentJobs,
+                        Runtime.getRuntime().availableProcessors()),
+                concurrentJobs,
+                cmd.getOptionValue("tempdir", System.getProperty("java.io.tmpdir")));
+        server.start();
+    }
+}
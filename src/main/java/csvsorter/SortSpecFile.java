@@ -0,0 +1,93 @@
+package csvsorter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * a small properties file next to a sorted output (sorted.csv.sortspec), which records the key and the csv format
+ * that the output was sorted by. a later incremental sort reads it to make sure that it merges new records into a file
+ * that was sorted the same way, before it sorts anything.
+ */
+class SortSpecFile {
+
+    static final String SUFFIX = ".sortspec";
+
+    private static final String KEY_PROPERTY = "key";
+    private static final String DELIMITER_PROPERTY = "delimiter";
+    private static final String QUOTE_PROPERTY = "quote";
+
+    private SortSpecFile() {
+    }
+
+    /**
+     * @param sortedFile - path to a sorted output
+     * @param options    - the options it was sorted by
+     */
+    static void write(String sortedFile, SortOptions options) throws IOException {
+        try (OutputStream output = Files.newOutputStream(specFile(sortedFile))) {
+            toProperties(options).store(output, "the key and the csv format of " + Paths.get(sortedFile).getFileName());
+        }
+    }
+
+    /**
+     * @param sortedFile - path to a sorted file
+     * @param options    - the options that new records are sorted by
+     * @return true if the file has a spec that matches the options, false if it has no spec
+     * @throws IllegalArgumentException if the file was sorted by another key or in another csv format
+     */
+    static boolean check(String sortedFile, SortOptions options) throws IOException {
+        if (!Files.exists(specFile(sortedFile))) {
+            return false;
+        }
+        Properties spec = load(sortedFile);
+        Properties expected = toProperties(options);
+        for (String property : expected.stringPropertyNames()) {
+            if (!expected.getProperty(property).equals(spec.getProperty(property))) {
+                throw new IllegalArgumentException("the file " + sortedFile + " was sorted with " + property + " "
+                        + spec.getProperty(property) + ", not " + expected.getProperty(property));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param sortedFile - path to a sorted file
+     * @return the options of the key and the csv format that the file was sorted by
+     * @throws IOException if the file has no spec
+     */
+    static SortOptions read(String sortedFile) throws IOException {
+        if (!Files.exists(specFile(sortedFile))) {
+            throw new IOException("the file " + sortedFile + " has no " + SUFFIX + " file, its key is unknown");
+        }
+        Properties spec = load(sortedFile);
+        return SortOptions.builder(KeySpec.parse(spec.getProperty(KEY_PROPERTY)))
+                .delimiter(spec.getProperty(DELIMITER_PROPERTY).charAt(0))
+                .quote(spec.getProperty(QUOTE_PROPERTY).charAt(0))
+                .build();
+    }
+
+    private static Properties load(String sortedFile) throws IOException {
+        Properties spec = new Properties();
+        try (InputStream input = Files.newInputStream(specFile(sortedFile))) {
+            spec.load(input);
+        }
+        return spec;
+    }
+
+    private static Properties toProperties(SortOptions options) {
+        Properties spec = new Properties();
+        spec.setProperty(KEY_PROPERTY, options.getKeySpec().toString());
+        spec.setProperty(DELIMITER_PROPERTY, String.valueOf(options.getDelimiter()));
+        spec.setProperty(QUOTE_PROPERTY, String.valueOf(options.getQuote()));
+        return spec;
+    }
+
+    private static Path specFile(String sortedFile) {
+        return Paths.get(sortedFile + SUFFIX);
+    }
+}
@@ -0,0 +1,286 @@
+package csvsorter;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * point and range lookups in a sorted output, through the sparse index that was written next to it
+ * (sorted.csv.idx, see {@link SortOptions.Builder#indexInterval(int)}). the index holds the key and the offset of a
+ * record every interval bytes, so a lookup binary searches the index in memory, seeks to the indexed record before
+ * the key, and reads from there only up to the last record of the key - a few reads instead of a scan of the file.
+ * the key and the csv format of the file are read from its spec (sorted.csv.sortspec, see {@link SortSpecFile}).
+ * <p>
+ * a key is given as a csv record of the values of the key columns, in the order of the key spec and in the csv format
+ * of the file - for the key 7:decimal:desc,0 the key "104628.00,SMITH" is the salary 104628.00 and the name SMITH.
+ */
+public class SortedFileIndex {
+    private static final Logger logger = Logger.getLogger(String.valueOf(SortedFileIndex.class));
+
+    static final String SUFFIX = ".idx";
+    //the first int of every index file, "CSXI"
+    private static final int MAGIC = 0x43535849;
+
+    private final Path sortedFile;
+    private final SortOptions options;
+    private final RunIndex index;
+
+    private SortedFileIndex(Path sortedFile, SortOptions options, RunIndex index) {
+        this.sortedFile = sortedFile;
+        this.options = options;
+        this.index = index;
+    }
+
+    /**
+     * @param sortedFile - a sorted output that was written with an index
+     * @return the index of the file, loaded into memory
+     * @throws IOException if the file has no index or no spec
+     */
+    public static SortedFileIndex open(Path sortedFile) throws IOException {
+        SortOptions options = SortSpecFile.read(sortedFile.toString());
+        Path indexFile = indexFile(sortedFile.toString());
+        if (!Files.exists(indexFile)) {
+            throw new IOException("the file " + sortedFile + " has no " + SUFFIX + " file, sort it with an index");
+        }
+        RunIndex index = new RunIndex();
+        try (DataInputStream input = openIndex(indexFile)) {
+            for (long remaining = Files.size(indexFile) - Integer.BYTES; remaining > 0; ) {
+                byte[] key = new byte[input.readInt()];
+                input.readFully(key);
+                index.add(key, input.readLong());
+                remaining -= Integer.BYTES + key.length + Long.BYTES;
+            }
+        }
+        return new SortedFileIndex(sortedFile, options, index);
+    }
+
+    /**
+     * @param key - the values of the key columns, as a csv record
+     * @return the records with the key, in their order in the file
+     */
+    public List<String> lookup(String key) throws IOException {
+        byte[] encodedKey = encodeKey(key);
+        //the smallest key that is larger than the key and all the keys that it is a prefix of
+        byte[] nextKey = Arrays.copyOf(encodedKey, encodedKey.length + 1);
+        List<String> records = new ArrayList<>();
+        scan(encodedKey, nextKey, records::add);
+        return records;
+    }
+
+    /**
+     * @param fromKey - the values of the smallest key of the range, null to start from the first record
+     * @param toKey   - the values of the key after the range, null to read to the last record
+     * @param records - receives the records of the range, in their order in the file
+     * @return the number of records in the range
+     */
+    public long range(String fromKey, String toKey, Consumer<String> records) throws IOException {
+        return scan(fromKey == null ? null : encodeKey(fromKey), toKey == null ? null : encodeKey(toKey), records);
+    }
+
+    private long scan(byte[] lowerKey, byte[] upperKey, Consumer<String> records) throws IOException {
+        CsvKeyTokenizer keyTokenizer = newKeyTokenizer();
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(sortedFile, StandardOpenOption.READ)) {
+            channel.position(lowerKey == null ? 0 : index.offsetBefore(lowerKey));
+            RunReader file = SpillFormat.TEXT.openReader(Channels.newInputStream(channel), line -> line == null ? null
+                    : new KeyedRecord(keyTokenizer.encodeKey(line), line.getBytes(StandardCharsets.UTF_8)));
+            try (RunReader range = new KeyRangeRunReader(file, lowerKey, upperKey)) {
+                KeyedRecord record;
+                while ((record = range.next()) != null) {
+                    records.accept(record.recordAsString());
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param key - the values of the key columns, as a csv record
+     * @return the key encoded like the keys of the records - the values are placed at the indexes of their columns
+     * in a record of their own, which is encoded by the key spec
+     */
+    private byte[] encodeKey(String key) {
+        List<KeySpec.Column> columns = options.getKeySpec().getColumns();
+        String[] fields = new String[options.getKeySpec().getMaxIndex() + 1];
+        Arrays.fill(fields, "");
+        for (int i = 0; i < columns.size(); i++) {
+            String value = new CsvKeyTokenizer(i, options.getDelimiter(), options.getQuote()).key(key);
+            fields[columns.get(i).getIndex()] = quoted(value);
+        }
+        return newKeyTokenizer().encodeKey(String.join(String.valueOf(options.getDelimiter()), fields));
+    }
+
+    private String quoted(String value) {
+        String quote = String.valueOf(options.getQuote());
+        if (value.indexOf(options.getDelimiter()) < 0 && !value.startsWith(quote)) {
+            return value;
+        }
+        return quote + value.replace(quote, quote + quote) + quote;
+    }
+
+    private CsvKeyTokenizer newKeyTokenizer() {
+        return new CsvKeyTokenizer(options.getKeySpec(), options.getDelimiter(), options.getQuote());
+    }
+
+    /**
+     * @param sortedFile - path to a sorted output
+     * @return the path of its index
+     */
+    static Path indexFile(String sortedFile) {
+        return Paths.get(sortedFile + SUFFIX);
+    }
+
+    /**
+     * @param sortedFile - path to a sorted output that is about to be written
+     * @return a stream of the new index of the output, after its header
+     */
+    static DataOutputStream createIndex(String sortedFile) throws IOException {
+        DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(indexFile(sortedFile)), Constants.WRITE_BUFFER_SIZE));
+        index.writeInt(MAGIC);
+        return index;
+    }
+
+    /**
+     * @param index  - a stream of an index
+     * @param key    - the encoded key of an indexed record
+     * @param offset - the offset of the record in the output
+     */
+    static void writeEntry(DataOutputStream index, byte[] key, long offset) throws IOException {
+        index.writeInt(key.length);
+        index.write(key);
+        index.writeLong(offset);
+    }
+
+    private static DataInputStream openIndex(Path indexFile) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile),
+                Constants.READ_BUFFER_SIZE));
+        if (input.readInt() != MAGIC) {
+            input.close();
+            throw new IOException(indexFile + " is not an index of a sorted file");
+        }
+        return input;
+    }
+
+    /**
+     * add the index of a sorted file that was appended to another sorted file to the index of the other file,
+     * and delete it. nothing is done if the appended file has no index
+     *
+     * @param sortedFile   - a sorted output
+     * @param appendedFile - a sorted output that was appended to it
+     * @param offset       - the size of the sorted output before the file was appended to it
+     */
+    static void append(String sortedFile, String appendedFile, long offset) throws IOException {
+        Path appendedIndex = indexFile(appendedFile);
+        if (!Files.exists(appendedIndex)) {
+            return;
+        }
+        Path index = indexFile(sortedFile);
+        if (!Files.exists(index)) {
+            createIndex(sortedFile).close();
+        }
+        try (DataInputStream input = openIndex(appendedIndex);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                     Files.newOutputStream(index, StandardOpenOption.APPEND), Constants.WRITE_BUFFER_SIZE))) {
+            for (long remaining = Files.size(appendedIndex) - Integer.BYTES; remaining > 0; ) {
+                byte[] key = new byte[input.readInt()];
+                input.readFully(key);
+                writeEntry(output, key, offset + input.readLong());
+                remaining -= Integer.BYTES + key.length + Long.BYTES;
+            }
+        }
+        Files.delete(appendedIndex);
+    }
+
+    /**
+     * move the index of a sorted output along with it. an index of an older file at the target is deleted
+     *
+     * @param sortedFile - a sorted output that was moved, or is about to be moved
+     * @param targetFile - its new path
+     */
+    static void move(String sortedFile, String targetFile) throws IOException {
+        Path index = indexFile(sortedFile);
+        if (Files.exists(index)) {
+            Files.move(index, indexFile(targetFile), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            delete(targetFile);
+        }
+    }
+
+    /**
+     * @param sortedFile - a sorted output that is rewritten without an index, its old index is deleted
+     */
+    static void delete(String sortedFile) throws IOException {
+        Files.deleteIfExists(indexFile(sortedFile));
+    }
+
+    /**
+     * look up a key or a range of keys in a sorted output, and print the records
+     *
+     * @param args usage: csvsorter-lookup
+     *             -file,--file arg   the sorted output, with its index and spec
+     *             -eq,--equal arg   the values of the key columns to look up, as a csv record
+     *             -from,--from arg   the smallest key of a range (optional, default the first record)
+     *             -to,--to arg   the key after a range (optional, default the last record)
+     */
+    public static void main(String[] args) throws IOException {
+        Options options = new Options();
+        Option file = new Option("file", "file", true, "the sorted output, written with -index");
+        file.setRequired(true);
+        options.addOption(file);
+        options.addOption(new Option("eq", "equal", true,
+                "the values of the key columns to look up, as a csv record in the order of the key spec"));
+        options.addOption(new Option("from", "from", true, "the smallest key of a range (optional, default the first record)"));
+        options.addOption(new Option("to", "to", true, "the key after a range (optional, default the last record)"));
+        CommandLine cmd = null;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            logger.severe(String.valueOf(e));
+            new HelpFormatter().printHelp("csvsorter-lookup", options);
+            System.exit(1);
+        }
+        SortedFileIndex index = open(Paths.get(cmd.getOptionValue("file")));
+        Writer output = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        Consumer<String> printer = record -> {
+            try {
+                output.write(record);
+                output.write(System.lineSeparator());
+            } catch (IOException e) {
+                logger.severe(String.valueOf(e));
+            }
+        };
+        if (cmd.hasOption("equal")) {
+            index.lookup(cmd.getOptionValue("equal")).forEach(printer);
+        } else {
+            index.range(cmd.getOptionValue("from"), cmd.getOptionValue("to"), printer);
+        }
+        output.flush();
+    }
+}
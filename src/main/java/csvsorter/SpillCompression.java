@@ -0,0 +1,136 @@
+package csvsorter;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * the block compression of the intermediate runs. runs are compressed in independent blocks,
+ * see {@link BlockCompressedOutputStream}, so they are still written and read as streams.
+ */
+public enum SpillCompression {
+    /**
+     * runs are written as is
+     */
+    NONE {
+        @Override
+        boolean compresses() {
+            return false;
+        }
+
+        @Override
+        BlockCodec newCodec() {
+            return null;
+        }
+    },
+    /**
+     * lz4 - very fast compression and decompression, a moderate ratio
+     */
+    LZ4 {
+        @Override
+        BlockCodec newCodec() {
+            LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+            LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+            return new BlockCodec() {
+                @Override
+                public int maxCompressedLength(int length) {
+                    return compressor.maxCompressedLength(length);
+                }
+
+                @Override
+                public int compress(byte[] source, int length, byte[] destination) {
+                    return compressor.compress(source, 0, length, destination, 0);
+                }
+
+                @Override
+                public void decompress(byte[] source, int length, byte[] destination, int decompressedLength) {
+                    decompressor.decompress(source, 0, destination, 0, decompressedLength);
+                }
+            };
+        }
+    },
+    /**
+     * deflate at its fastest level - slower than lz4, a better ratio, and no native code
+     */
+    DEFLATE {
+        @Override
+        BlockCodec newCodec() {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            Inflater inflater = new Inflater(true);
+            return new BlockCodec() {
+                @Override
+                public int maxCompressedLength(int length) {
+                    //stored blocks of deflate add 5 bytes per 16k, round it up generously
+                    return length + length / 1000 + 64;
+                }
+
+                @Override
+                public int compress(byte[] source, int length, byte[] destination) {
+                    deflater.reset();
+                    deflater.setInput(source, 0, length);
+                    deflater.finish();
+                    int compressedLength = deflater.deflate(destination);
+                    //a block that didn't fit in the destination is stored uncompressed
+                    return deflater.finished() ? compressedLength : length;
+                }
+
+                @Override
+                public void decompress(byte[] source, int length, byte[] destination, int decompressedLength) throws IOException {
+                    inflater.reset();
+                    inflater.setInput(source, 0, length);
+                    try {
+                        if (inflater.inflate(destination, 0, decompressedLength) != decompressedLength) {
+                            throw new IOException("corrupted deflate block in a run");
+                        }
+                    } catch (DataFormatException e) {
+                        throw new IOException(e);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    deflater.end();
+                    inflater.end();
+                }
+            };
+        }
+    };
+
+    /**
+     * @return false if the runs are written as is, and have no codec
+     */
+    boolean compresses() {
+        return true;
+    }
+
+    /**
+     * @return a new codec, a codec is used by a single stream - null if the runs aren't {@link #compresses() compressed}
+     */
+    abstract BlockCodec newCodec();
+
+    /**
+     * compresses and decompresses whole blocks
+     */
+    interface BlockCodec {
+
+        int maxCompressedLength(int length);
+
+        /**
+         * @return the length of the compressed block in destination
+         */
+        int compress(byte[] source, int length, byte[] destination);
+
+        void decompress(byte[] source, int length, byte[] destination, int decompressedLength) throws IOException;
+
+        /**
+         * release the native resources of the codec, if it has any
+         */
+        default void close() {
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package csvsorter;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.Function;
+
+/**
+ * the format of the intermediate runs (the .map and .reduce_iter files).
+ * the final sorted output is always written as {@link #TEXT}.
+ */
+public enum SpillFormat {
+    /**
+     * csv lines, the same as the input. every merge pass parses the sorting key of every line again
+     */
+    TEXT {
+        @Override
+        RunWriter openWriter(OutputStream output) {
+            return new TextRunWriter(output);
+        }
+
+        @Override
+        RunReader openReader(InputStream input, Function<String, KeyedRecord> keyExtractor) {
+            return new TextRunReader(input, keyExtractor);
+        }
+    },
+    /**
+     * length prefixed records that carry their encoded key, so merge passes don't parse the records at all
+     */
+    BINARY {
+        @Override
+        RunWriter openWriter(OutputStream output) {
+            return new BinaryRunWriter(output);
+        }
+
+        @Override
+        RunReader openReader(InputStream input, Function<String, KeyedRecord> keyExtractor) {
+            return new BinaryRunReader(input);
+        }
+    };
+
+    /**
+     * @param output - the (unbuffered) stream of the run, the writer buffers it and closes it
+     */
+    abstract RunWriter openWriter(OutputStream output);
+
+    /**
+     * @param input        - the (unbuffered) stream of the run, the reader buffers it and closes it
+     * @param keyExtractor - parses a csv line into a keyed record, for formats that don't store the key
+     */
+    abstract RunReader openReader(InputStream input, Function<String, KeyedRecord> keyExtractor);
+}
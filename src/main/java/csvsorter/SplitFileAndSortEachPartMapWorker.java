@@ -1,130 +1,76 @@
 package csvsorter;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
- * this class will take a file that was created by the Mapper, and sort this file in memory.
- * this file contains maxNumberOfRecords records (or less)
+ * this class will take a part of the input file that was read by the Mapper, sort it in memory and write it to a file.
+ * the part contains maxRecordsNumber records (or less)
  */
 class SplitFileAndSortEachPartMapWorker extends MapReduceWorkersBase {
     private static final Logger logger = Logger.getLogger(String.valueOf(SplitFileAndSortEachPartMapWorker.class));
 
-    String partFileName, inputCSVFile;
-    int indexOfFirstLine, maxNumberOfRecords;
+    String partFileName;
+    List<String> part;
+    RunStorage runStorage;
+    //the input of the part and the number of its first record in it, for the error of a malformed record
+    String input;
+    long firstRecordNumber;
 
     /**
-     * @param partFileName       - the name of the smaller file that is created for each part
-     * @param indexOfFirstLine   - when dividing the large file into parts, this will indicate where to start the next part.
-     * @param maxNumberOfRecords - maximum number of records that are allowed to be held in memory at a time.
-     * @param inputCSVFile       - the path to the input csv file
-     * @param sortingKeyIndex    - the index in a csv record (one record from inputCSVFile) of the key to sort by
+     * @param partFileName      - the name of the smaller file that is created for each part
+     * @param part              - the records of this part, in the order they were read from the input file
+     * @param runStorage        - creates the part file, in the spill format and compression, and parses the keys
+     * @param input             - the name of the input, null if the records don't come from a file
+     * @param firstRecordNumber - the number of the first record of the part in the input, from 1
      */
-    SplitFileAndSortEachPartMapWorker(String partFileName, int indexOfFirstLine, int maxNumberOfRecords, String inputCSVFile, int sortingKeyIndex) {
+    SplitFileAndSortEachPartMapWorker(String partFileName, List<String> part, RunStorage runStorage, String input,
+                                      long firstRecordNumber) {
         this.partFileName = partFileName;
-        this.indexOfFirstLine = indexOfFirstLine;
-        this.maxNumberOfRecords = maxNumberOfRecords;
-        this.sortingKeyIndex = sortingKeyIndex;
-        this.inputCSVFile = inputCSVFile;
+        this.part = part;
+        this.runStorage = runStorage;
+        this.input = input;
+        this.firstRecordNumber = firstRecordNumber;
+        this.keyTokenizer = runStorage.newKeyTokenizer();
     }
 
     /**
-     * stream the lines of inputCSVFile, skip to the correct index, and create a list of lines the size of maxNumberOfRecords.
-     * sort the list using merge sort algorithm according to the sorting key at sortingKeyIndex.
-     * then open for writing partFileName, and write the sorted list to the file
+     * extract the sorting key of each record once,
+     * sort the part according to the extracted keys, by the part sort of the sort options.
+     * then open for writing partFileName, and write the sorted records to the file.
+     * an IO error fails the task, and with it the sort
      */
     public void run() {
         try {
             logger.info(Thread.currentThread().getName() + " is starting to write file " + partFileName);
-            List<String> part =
-                    Files.lines(Paths.get(inputCSVFile))
-                            .skip(indexOfFirstLine - 1)
-                            .limit(maxNumberOfRecords)
-                            .collect(Collectors.toList());
-
-            List<String> sortedPart = mergeSortPart(new ArrayList<>(part));
-
-            BufferedWriter writer = Files.newBufferedWriter(Paths.get(partFileName));
-            sortedPart.forEach(line -> writeToFile(writer, line));
-
-            logger.info(Thread.currentThread().getName() + " finished writing file " + partFileName);
-            writer.close();
-
-        } catch (IOException e) {
-            logger.severe(String.valueOf(e));
-        }
-    }
-
-    @SuppressWarnings("ConstantConditions")
-    private ArrayList<String> mergeSortPart(ArrayList<String> part) {
-        ArrayList<String> left = new ArrayList<>();
-        ArrayList<String> right = new ArrayList<>();
-        int middle;
-
-        if (part.size() == 1) {
-            return part;
-        } else {
-            middle = part.size() / 2;
-            for (int i = 0; i < middle; i++) {
-                left.add(part.get(i));
+            SortMetrics metrics = runStorage.getMetrics();
+            long start = System.nanoTime();
+            KeyedRecord[] keyedPart = new KeyedRecord[part.size()];
+            for (int i = 0; i < keyedPart.length; i++) {
+                keyedPart[i] = toKeyedInputRecord(part.get(i), input, firstRecordNumber + i);
             }
-
-            for (int i = middle; i < part.size(); i++) {
-                right.add(part.get(i));
+            part = null;
+            long parsed = System.nanoTime();
+            runStorage.getPartSort().sort(keyedPart);
+            if (runStorage.ordersTiesByRecord()) {
+                KeyedRecord.sortTiesByRecord(keyedPart);
             }
-
-            left = mergeSortPart(left);
-            right = mergeSortPart(right);
-
-            merge(left, right, part);
-        }
-        return part;
-    }
-
-    private void merge(ArrayList<String> left, ArrayList<String> right, ArrayList<String> part) {
-        int leftIndex = 0;
-        int rightIndex = 0;
-        int partIndex = 0;
-
-        while (leftIndex < left.size() && rightIndex < right.size()) {
-            if ((getSortingKey(left.get(leftIndex)).compareTo(getSortingKey(right.get(rightIndex)))) < 0) {
-                part.set(partIndex, left.get(leftIndex));
-                leftIndex++;
-            } else {
-                part.set(partIndex, right.get(rightIndex));
-                rightIndex++;
+            metrics.parseNanos.add(parsed - start);
+            metrics.sortNanos.add(System.nanoTime() - parsed);
+            metrics.inputRecords.add(keyedPart.length);
+            metrics.runRecordsWritten.add(keyedPart.length);
+
+            try (RunWriter writer = runStorage.createRun(partFileName)) {
+                for (KeyedRecord keyedRecord : keyedPart) {
+                    writer.write(keyedRecord);
+                }
             }
-            partIndex++;
-        }
-
-        ArrayList<String> remainingPart;
-        int remainingPartIndex;
-        if (leftIndex >= left.size()) {
-            remainingPart = right;
-            remainingPartIndex = rightIndex;
-        } else {
-            remainingPart = left;
-            remainingPartIndex = leftIndex;
-        }
-
-        for (int i = remainingPartIndex; i < remainingPart.size(); i++) {
-            part.set(partIndex, remainingPart.get(i));
-            partIndex++;
-        }
-    }
+            logger.info(Thread.currentThread().getName() + " finished writing file " + partFileName);
 
-    private void writeToFile(BufferedWriter writer, String line) {
-        try {
-            writer.write(line + "\r\n");
         } catch (IOException e) {
-            logger.severe(String.valueOf(e));
-            throw new RuntimeException(e);
+            throw new UncheckedIOException(e);
         }
     }
-}
\ No newline at end of file
+}
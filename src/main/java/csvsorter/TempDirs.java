@@ -0,0 +1,115 @@
+package csvsorter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * the temp directories that the runs of a sort are spread over, so the runs are read and written by several disks
+ * at the same time. every directory is known by its disk (its file store), and a run that is merged from other runs
+ * is placed on the disks that hold the fewest of them, so a merge reads from some disks and writes to another.
+ */
+class TempDirs {
+    private static final Logger logger = Logger.getLogger(String.valueOf(TempDirs.class));
+
+    private final List<String> dirs;
+    //the disk of every directory, or the directory itself when its disk is unknown
+    private final List<Object> devices;
+    private final SortOptions.TempDirPlacement placement;
+    private final AtomicInteger nextDir = new AtomicInteger();
+
+    /**
+     * @param dirs      - the directories, not empty
+     * @param placement - the way the directory of a new run is chosen
+     */
+    TempDirs(List<String> dirs, SortOptions.TempDirPlacement placement) {
+        this.dirs = new ArrayList<>(dirs.size());
+        this.devices = new ArrayList<>(dirs.size());
+        this.placement = placement;
+        for (String dir : dirs) {
+            String normalized = Paths.get(dir).toString() + File.separator;
+            if (!this.dirs.contains(normalized)) {
+                this.dirs.add(normalized);
+                devices.add(device(normalized));
+            }
+        }
+    }
+
+    private static Object device(String dir) {
+        try {
+            return Files.getFileStore(Paths.get(dir));
+        } catch (IOException e) {
+            logger.warning("The disk of the temp directory " + dir + " is unknown: " + e);
+            return dir;
+        }
+    }
+
+    /**
+     * @return the directories, every one ends with a separator
+     */
+    List<String> getDirs() {
+        return dirs;
+    }
+
+    /**
+     * @param name   - the name of a new run
+     * @param inputs - the runs that the new run is merged from, empty if it is not merged
+     * @return the path of the new run, in a directory on one of the disks that hold the fewest inputs
+     */
+    String place(String name, Collection<String> inputs) {
+        Map<Object, Integer> inputsPerDevice = new HashMap<>();
+        for (String input : inputs) {
+            for (int i = 0; i < dirs.size(); i++) {
+                if (input.startsWith(dirs.get(i))) {
+                    inputsPerDevice.merge(devices.get(i), 1, Integer::sum);
+                    break;
+                }
+            }
+        }
+        int fewestInputs = Integer.MAX_VALUE;
+        List<Integer> candidates = new ArrayList<>(dirs.size());
+        for (int i = 0; i < dirs.size(); i++) {
+            int deviceInputs = inputsPerDevice.getOrDefault(devices.get(i), 0);
+            if (deviceInputs < fewestInputs) {
+                fewestInputs = deviceInputs;
+                candidates.clear();
+            }
+            if (deviceInputs == fewestInputs) {
+                candidates.add(i);
+            }
+        }
+        //the turns break the ties of the free space too, so directories on the same disk still take turns
+        int turn = Math.floorMod(nextDir.getAndIncrement(), candidates.size());
+        int chosen = candidates.get(turn);
+        if (placement == SortOptions.TempDirPlacement.FREE_SPACE) {
+            long mostSpace = -1;
+            for (int i = 0; i < candidates.size(); i++) {
+                int candidate = candidates.get((turn + i) % candidates.size());
+                long space = usableSpace(candidate);
+                if (space > mostSpace) {
+                    mostSpace = space;
+                    chosen = candidate;
+                }
+            }
+        }
+        return dirs.get(chosen) + name;
+    }
+
+    private long usableSpace(int dir) {
+        Object device = devices.get(dir);
+        try {
+            return device instanceof FileStore ? ((FileStore) device).getUsableSpace() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package csvsorter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+/**
+ * reads a run of csv lines. each line is decorated with its sorting key once, when it is read.
+ */
+class TextRunReader implements RunReader {
+
+    private final BufferedReader reader;
+    private final Function<String, KeyedRecord> keyExtractor;
+
+    /**
+     * @param input        - the stream of the sorted run
+     * @param keyExtractor - parses a line into a keyed record, usually the toKeyedRecord of the worker that reads the run
+     */
+    TextRunReader(InputStream input, Function<String, KeyedRecord> keyExtractor) {
+        this.reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), Constants.READ_BUFFER_SIZE);
+        this.keyExtractor = keyExtractor;
+    }
+
+    @Override
+    public KeyedRecord next() throws IOException {
+        return keyExtractor.apply(reader.readLine());
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,40 @@
+package csvsorter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * writes a run as csv lines, each record followed by \r\n. this is also the format of the final sorted output.
+ */
+class TextRunWriter implements RunWriter {
+
+    private static final byte[] LINE_SEPARATOR = {'\r', '\n'};
+
+    private final OutputStream output;
+    private long position;
+
+    /**
+     * @param output - the stream of the run that is being created
+     */
+    TextRunWriter(OutputStream output) {
+        this.output = new BufferedOutputStream(output, Constants.WRITE_BUFFER_SIZE);
+    }
+
+    @Override
+    public void write(KeyedRecord record) throws IOException {
+        output.write(record.record);
+        output.write(LINE_SEPARATOR);
+        position += record.record.length + LINE_SEPARATOR.length;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+}
@@ -0,0 +1,173 @@
+package csvsorter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+
+/**
+ * finds the first limit records of the input by their keys, without sorting the whole input and without runs.
+ * a single reader cuts the input into batches, and the workers of the scheduler parse the keys of every batch into
+ * bounded heaps - a heap per worker, which holds the smallest limit records that the worker has seen.
+ * a record whose key is larger than the largest record of a full heap is dropped after its key is parsed, so most
+ * of the input costs a single read and a single key parse. when the input is done, the heaps are merged.
+ * records with equal keys are ordered by their position in the input, like the full sort orders them.
+ */
+class TopKSelector {
+
+    //the number of records in a batch of the reader
+    private static final int BATCH_SIZE = 8192;
+
+    private final int limit;
+    private final RunStorage runStorage;
+    private final SortScheduler scheduler;
+    private final BlockingQueue<BoundedHeap> heaps;
+
+    /**
+     * @param options    - the sort options, the limit and the number of workers
+     * @param runStorage - reads the input, and parses the keys in the csv format of the sort
+     * @param scheduler  - runs the batches
+     */
+    TopKSelector(SortOptions options, RunStorage runStorage, SortScheduler scheduler) {
+        this.limit = options.getLimit();
+        this.runStorage = runStorage;
+        this.scheduler = scheduler;
+        this.heaps = new ArrayBlockingQueue<>(options.getNumberOfWorkers());
+        for (int i = 0; i < options.getNumberOfWorkers(); i++) {
+            heaps.add(new BoundedHeap());
+        }
+    }
+
+    /**
+     * @param inputCSVFile - path to input file
+     * @return the first limit records of the input, sorted
+     */
+    List<KeyedRecord> select(String inputCSVFile) throws IOException {
+        try (BufferedReader reader = runStorage.openInput(inputCSVFile)) {
+            return select(reader::readLine, inputCSVFile);
+        }
+    }
+
+    /**
+     * @param records - the records of the input, in input order
+     * @return the first limit records of the input, sorted
+     */
+    List<KeyedRecord> select(RecordSource records) throws IOException {
+        return select(records, null);
+    }
+
+    /**
+     * @param input - the name of the input, for the error of a malformed record, null if it is not a file
+     */
+    private List<KeyedRecord> select(RecordSource records, String input) throws IOException {
+        SortMetrics metrics = runStorage.getMetrics();
+        metrics.startPhase(SortMetrics.Phase.MAP);
+        List<Future<?>> batchTasks = new ArrayList<>();
+        long sequence = 0;
+        try {
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            String line;
+            while ((line = records.nextRecord()) != null) {
+                batch.add(line);
+                if (batch.size() == BATCH_SIZE) {
+                    batchTasks.add(submitBatch(batch, input, sequence));
+                    sequence += batch.size();
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                batchTasks.add(submitBatch(batch, input, sequence));
+                sequence += batch.size();
+            }
+        } finally {
+            SortScheduler.awaitAll(batchTasks);
+        }
+        metrics.inputRecords.add(sequence);
+
+        metrics.startPhase(SortMetrics.Phase.REDUCE);
+        long start = System.nanoTime();
+        List<Entry> entries = new ArrayList<>();
+        for (BoundedHeap heap : heaps) {
+            entries.addAll(heap.entries);
+        }
+        Collections.sort(entries);
+        List<KeyedRecord> first = new ArrayList<>(Math.min(limit, entries.size()));
+        for (Entry entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            first.add(entry.record);
+        }
+        metrics.sortNanos.add(System.nanoTime() - start);
+        metrics.outputRecords.add(first.size());
+        metrics.startPhase(SortMetrics.Phase.DONE);
+        return first;
+    }
+
+    private Future<?> submitBatch(List<String> batch, String input, long firstSequence) {
+        return scheduler.submit(() -> {
+            //there are as many heaps as workers, so a free heap is always waiting for a running batch
+            BoundedHeap heap = heaps.poll();
+            try {
+                heap.addAll(batch, input, firstSequence);
+            } finally {
+                heaps.add(heap);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * the smallest limit records that a worker has seen, the largest of them at the root
+     */
+    private class BoundedHeap {
+        final PriorityQueue<Entry> entries = new PriorityQueue<>(Comparator.reverseOrder());
+        final CsvKeyTokenizer keyTokenizer = runStorage.newKeyTokenizer();
+
+        void addAll(List<String> batch, String input, long firstSequence) throws IOException {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch.size(); i++) {
+                String line = batch.get(i);
+                byte[] key = keyTokenizer.encodeInputKey(line, input, firstSequence + i + 1);
+                //a later record with an equal key comes after the largest record, so it is dropped as well
+                if (entries.size() == limit && compareToLargest(key, firstSequence + i) > 0) {
+                    continue;
+                }
+                if (entries.size() == limit) {
+                    entries.poll();
+                }
+                entries.add(new Entry(new KeyedRecord(key, line.getBytes(StandardCharsets.UTF_8)), firstSequence + i));
+            }
+            runStorage.getMetrics().parseNanos.add(System.nanoTime() - start);
+        }
+
+        private int compareToLargest(byte[] key, long sequence) {
+            Entry largest = entries.peek();
+            int comparison = KeyedRecord.compareKeys(key, largest.record.key);
+            return comparison != 0 ? comparison : Long.compare(sequence, largest.sequence);
+        }
+    }
+
+    /**
+     * a record and its position in the input, ordered by its key and then by its position
+     */
+    private static class Entry implements Comparable<Entry> {
+        final KeyedRecord record;
+        final long sequence;
+
+        Entry(KeyedRecord record, long sequence) {
+            this.record = record;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int comparison = record.compareTo(other.record);
+            return comparison != 0 ? comparison : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package csvsorter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * writes a file behind its writer with two buffers: when one buffer is full, a background thread writes it to the
+ * file while the writer fills the other one, so a merge keeps merging while its output is written to the disk.
+ */
+class WriteBehindOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final LongAdder waitNanos;
+
+    private byte[] buffer;
+    private byte[] spare;
+    private int count;
+    //the write of the spare buffer that is in flight
+    private Future<?> pending;
+    private boolean closed;
+
+    /**
+     * @param out        - the stream of the file
+     * @param bufferSize - the size of each of the two buffers
+     * @param executor   - runs the writes
+     * @param waitNanos  - adds the time the writer waited for the previous buffer to be written
+     */
+    WriteBehindOutputStream(OutputStream out, int bufferSize, ExecutorService executor, LongAdder waitNanos) {
+        this.out = out;
+        this.executor = executor;
+        this.waitNanos = waitNanos;
+        this.buffer = new byte[bufferSize];
+        this.spare = new byte[bufferSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            writeBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] source, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == buffer.length) {
+                writeBuffer();
+            }
+            int copied = Math.min(length, buffer.length - count);
+            System.arraycopy(source, offset, buffer, count, copied);
+            count += copied;
+            offset += copied;
+            length -= copied;
+        }
+    }
+
+    /**
+     * hand the full buffer to the background thread, once the previous one was written
+     */
+    private void writeBuffer() throws IOException {
+        awaitPending();
+        byte[] full = buffer;
+        int length = count;
+        pending = executor.submit(() -> {
+            out.write(full, 0, length);
+            return null;
+        });
+        buffer = spare;
+        spare = full;
+        count = 0;
+    }
+
+    private void awaitPending() throws IOException {
+        if (pending != null) {
+            Future<?> written = pending;
+            pending = null;
+            AsyncIo.await(written, waitNanos);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeBuffer();
+        }
+        awaitPending();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            //the file is closed only after the write in flight is done with it
+            try {
+                awaitPending();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package csvsorter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+public class AsyncIoStreamTest {
+
+    @Test
+    public void testRoundTrip_writeBehindThenReadAhead_sameBytes() throws IOException {
+        ExecutorService executor = AsyncIo.executor();
+        LongAdder waitNanos = new LongAdder();
+        //empty, shorter than a buffer, exactly two buffers, and many buffers
+        for (int size : new int[]{0, 100, 2048, 100_000}) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            try (OutputStream output = new WriteBehindOutputStream(file, 1024, executor, waitNanos)) {
+                int offset = 0;
+                while (offset < size) {
+                    if (offset % 3 == 0) {
+                        output.write(data[offset++]);
+                    } else {
+                        int length = Math.min(size - offset, 1 + offset % 3000);
+                        output.write(data, offset, length);
+                        offset += length;
+                    }
+                }
+            }
+            assert Arrays.equals(data, file.toByteArray()) : size;
+
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            try (InputStream input = new ReadAheadInputStream(new ByteArrayInputStream(file.toByteArray()), 1024,
+                    executor, waitNanos)) {
+                byte[] buffer = new byte[700];
+                int b = input.read();
+                while (b >= 0) {
+                    read.write(b);
+                    int length = input.read(buffer);
+                    if (length < 0) {
+                        break;
+                    }
+                    read.write(buffer, 0, length);
+                    b = input.read();
+                }
+                assert input.read() == -1;
+            }
+            assert Arrays.equals(data, read.toByteArray()) : size;
+        }
+    }
+
+    @Test
+    public void testWriteBehind_failedWrite_thrownByTheWriter() {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        ExecutorService executor = AsyncIo.executor();
+        try (OutputStream output = new WriteBehindOutputStream(failing, 16, executor, new LongAdder())) {
+            output.write(new byte[100]);
+            assert false;
+        } catch (IOException expected) {
+            assert expected.getMessage().equals("disk full");
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package csvsorter;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+public class BlockCompressedStreamTest {
+
+    @ParameterizedTest
+    @EnumSource(value = SpillCompression.class, names = {"LZ4", "DEFLATE"})
+    public void testRoundTrip_csvAndRandomBytes(SpillCompression compression) throws IOException {
+        //csv compresses well, random bytes don't and are stored as is. a small block size makes many blocks
+        byte[] csv = Files.readAllBytes(Paths.get("src/test/resources/employee_info.csv"));
+        byte[] random = new byte[10_000];
+        new Random(7).nextBytes(random);
+        byte[] data = new byte[csv.length + random.length];
+        System.arraycopy(csv, 0, data, 0, csv.length);
+        System.arraycopy(random, 0, data, csv.length, random.length);
+
+        CompressionStats stats = new CompressionStats();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream output = new BlockCompressedOutputStream(compressed, compression, 4096, stats)) {
+            output.write(data, 0, 100);
+            output.write(data[100]);
+            output.write(data, 101, data.length - 101);
+        }
+
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream input = new BlockCompressedInputStream(new ByteArrayInputStream(compressed.toByteArray()), compression, stats)) {
+            byte[] buffer = new byte[1000];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                decompressed.write(buffer, 0, read);
+            }
+        }
+
+        assert Arrays.equals(data, decompressed.toByteArray());
+        assert stats.uncompressedBytes.sum() == data.length;
+        assert stats.compressedBytes.sum() == compressed.size();
+        assert stats.compressionRatio() > 1.5;
+    }
+
+    @Test
+    public void testNone_hasNoCodec() {
+        //uncompressed runs are written as is, never through a block stream
+        assert !SpillCompression.NONE.compresses();
+        assert SpillCompression.NONE.newCodec() == null;
+        assert SpillCompression.LZ4.compresses() && SpillCompression.DEFLATE.compresses();
+        try {
+            new BlockCompressedOutputStream(new ByteArrayOutputStream(), SpillCompression.NONE, 4096, new CompressionStats());
+            assert false;
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testParallelGzip_membersReadAsOneStream() throws IOException {
+        byte[] csv = Files.readAllBytes(Paths.get("src/test/resources/employee_info.csv"));
+        ExecutorService executor = AsyncIo.executor();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream output = new ParallelGzipOutputStream(compressed, executor, 2, new LongAdder())) {
+            output.write(csv, 0, 100);
+            output.write(csv[100]);
+            output.write(csv, 101, csv.length - 101);
+        }
+        //a member for every block, which GZIPInputStream reads one after the other
+        assert csv.length > 3 * ParallelGzipOutputStream.BLOCK_SIZE;
+        assert compressed.size() < csv.length / 3;
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            assert Arrays.equals(csv, IOUtils.toByteArray(input));
+        }
+
+        //an empty stream is still a gzip file
+        ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(empty, executor, 2, new LongAdder()).close();
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(empty.toByteArray()))) {
+            assert input.read() == -1;
+        }
+    }
+}
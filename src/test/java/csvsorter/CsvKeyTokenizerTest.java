@@ -0,0 +1,88 @@
+package csvsorter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+public class CsvKeyTokenizerTest {
+
+    @Test
+    public void testKey_quotedFieldsEmbeddedDelimitersAndDoubledQuotes() {
+        String record = "1,\"a, \"\"quoted\"\" b\",key,\"x,\ny\"";
+        assert new CsvKeyTokenizer(0).key(record).equals("1");
+        assert new CsvKeyTokenizer(1).key(record).equals("a, \"quoted\" b");
+        assert new CsvKeyTokenizer(2).key(record).equals("key");
+        assert new CsvKeyTokenizer(3).key(record).equals("x,\ny");
+        //a quote in the middle of a field is an ordinary char, and so is what follows a closing quote
+        assert new CsvKeyTokenizer(1).key("a,b\"c,d").equals("b\"c");
+        assert new CsvKeyTokenizer(1).key("a,\"b\"c,d").equals("bc");
+        assert new CsvKeyTokenizer(1).key("a,,b").isEmpty();
+        assert new CsvKeyTokenizer(1).key("a,").isEmpty();
+        assert new CsvKeyTokenizer(0).key("\"unterminated,quote").equals("unterminated,quote");
+
+        //the tokenizer stops at the key, the slice includes the quotes of the field
+        CsvKeyTokenizer tokenizer = new CsvKeyTokenizer(1);
+        tokenizer.tokenize(record);
+        assert record.substring(tokenizer.fieldStart(0), tokenizer.fieldEnd(0)).equals("\"a, \"\"quoted\"\" b\"");
+
+        try {
+            new CsvKeyTokenizer(3).tokenize("a,b,c");
+            assert false;
+        } catch (IllegalArgumentException expected) {
+            //the record has no field at the key index
+        }
+    }
+
+    @Test
+    public void testKey_backslash_anOrdinaryChar() {
+        //a backslash doesn't escape a quote, the quote after it closes the field (opencsv read \" as a quote)
+        assert new CsvKeyTokenizer(1).key("a,\"b\\\"c\",d").equals("b\\c\"");
+        assert new CsvKeyTokenizer(2).key("a,\"b\\\"c\",d").equals("d");
+        assert new CsvKeyTokenizer(1).key("a,\"b\\\\\",d").equals("b\\\\");
+        assert new CsvKeyTokenizer(1).key("a,b\\,c").equals("b\\");
+        //quotes are escaped by doubling them
+        assert new CsvKeyTokenizer(1).key("a,\"b\"\"c\",d").equals("b\"c");
+    }
+
+    @Test
+    public void testEncodeKey_otherDelimitersAndQuotes_sameAsEncodedString() {
+        assert Arrays.equals(new CsvKeyTokenizer(1, ';', '"').encodeKey("a;\"b;c\";d"), KeyedRecord.encodeKey("b;c"));
+        assert Arrays.equals(new CsvKeyTokenizer(2, '|', '\'').encodeKey("a|'b|''c'|עברית|d"), KeyedRecord.encodeKey("עברית"));
+        assert Arrays.equals(new CsvKeyTokenizer(1, '|', '\'').encodeKey("a|'b|''c'|d"), KeyedRecord.encodeKey("b|'c"));
+        assert Arrays.equals(new CsvKeyTokenizer(1, '\t', '"').encodeKey("a,b\tc,d\te"), KeyedRecord.encodeKey("c,d"));
+    }
+
+    @Test
+    public void testEncodeKey_typedKeys_bytesInTheOrderOfTheValues() {
+        assertOrdered("0:long", "x", "-9223372036854775808", "-10", "-9", "0", "+7", "12", "9223372036854775807");
+        assertOrdered("0:decimal", "", "-1e3", "-100", "-99.5", "-0.001", "0", "0.00012", "1", "1.5", "\"9.99\"", "10",
+                "1.5e1", "107790.00");
+        assertOrdered("0:date", "2001-02-30", "0999-12-31", "2001-02-03", "2001-02-28", "2001-03-01");
+        assertOrdered("0:timestamp", "yesterday", "2001-02-03", "2001-02-03T04:05:06+01:00", "2001-02-03 03:05:07Z",
+                "2001-02-03T04:05:06", "2001-02-03T04:05:06.5", "2001-02-03T04:05:07-0000");
+        assertOrdered("0:istring", "", "a", "B", "c", "עברית");
+        assertOrdered("0", "", "B", "a", "a\u0000b", "ab", "עברית");
+        //descending, and composite keys - a shorter first field still comes before a longer one
+        assertOrdered("0:string:desc", "b", "ab", "a", "");
+        assertOrdered("1:long:desc,0", "b,20", "a,3", "b,3", "b,x", "a,");
+        assertOrdered("0,1:long", "a,5", "a,10", "a\u0000,1", "ab,1", "b,-1");
+
+        CsvKeyTokenizer decimal = new CsvKeyTokenizer(KeySpec.parse("0:decimal"), ',', '"');
+        assert Arrays.equals(decimal.encodeKey("1.50"), decimal.encodeKey(" 1.5"));
+        assert Arrays.equals(decimal.encodeKey("-0.0"), decimal.encodeKey("0"));
+        CsvKeyTokenizer ignoreCase = new CsvKeyTokenizer(KeySpec.parse("0:istring"), ',', '"');
+        assert Arrays.equals(ignoreCase.encodeKey("abc"), ignoreCase.encodeKey("ABC"));
+    }
+
+    /**
+     * @param spec    - a key spec
+     * @param records - records in the strict order of their keys
+     */
+    private static void assertOrdered(String spec, String... records) {
+        CsvKeyTokenizer tokenizer = new CsvKeyTokenizer(KeySpec.parse(spec), ',', '"');
+        for (int i = 1; i < records.length; i++) {
+            assert KeyedRecord.compareKeys(tokenizer.encodeKey(records[i - 1]), tokenizer.encodeKey(records[i])) < 0
+                    : spec + ": " + records[i - 1] + " / " + records[i];
+        }
+    }
+}
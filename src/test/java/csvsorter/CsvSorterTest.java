@@ -0,0 +1,169 @@
+package csvsorter;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class CsvSorterTest {
+
+    @Test
+    public void testSort_fitsInMemory_noRuns() throws IOException {
+        CsvSorter sorter = new CsvSorter(SortOptions.builder(KeySpec.parse("1:long,0")).build());
+        List<String> sorted = new ArrayList<>();
+        SortMetricsMXBean metrics = sorter.sort(Arrays.asList("c,10", "a,9", "b,10", "d,-1", "x,").iterator(), sorted::add);
+
+        assert sorted.equals(Arrays.asList("x,", "d,-1", "a,9", "b,10", "c,10"));
+        assert metrics.getInputRecords() == 5;
+        assert metrics.getOutputRecords() == 5;
+        assert metrics.getRunsWritten() == 0;
+    }
+
+    @Test
+    public void testSort_employeeInfo_spillsLikeMapAndReduce() throws IOException {
+        String inputCSVFile = "src/test/resources/employee_info.csv";
+        String tempFilesDir = Files.createTempDirectory("sorter-test").toString() + File.separator;
+        SortOptions options = SortOptions.builder(2).maxRecordsNumber(2000).build();
+        byte[] sorted;
+        try {
+            new Mapper(options).map(inputCSVFile, tempFilesDir);
+            sorted = Files.readAllBytes(Paths.get(new Reducer(options).reduceRec(tempFilesDir, Constants.MAP_SUFFIX, 1)));
+        } finally {
+            FileUtils.deleteDirectory(new File(tempFilesDir));
+        }
+
+        //more records than maxRecordsNumber don't fit in memory
+        CsvSorter sorter = new CsvSorter(options);
+        ByteArrayOutputStream fromFile = new ByteArrayOutputStream();
+        SortMetricsMXBean metrics = sorter.sort(Paths.get(inputCSVFile), fromFile);
+        assert Arrays.equals(fromFile.toByteArray(), sorted);
+        assert metrics.getRunsWritten() > 1;
+
+        StringBuilder fromStream = new StringBuilder();
+        try (InputStream input = Files.newInputStream(Paths.get(inputCSVFile))) {
+            sorter.sort(input, record -> fromStream.append(record).append("\r\n"));
+        }
+        assert Arrays.equals(fromStream.toString().getBytes(StandardCharsets.UTF_8), sorted);
+
+        //the whole file fits when the part may hold all of it
+        ByteArrayOutputStream inMemory = new ByteArrayOutputStream();
+        metrics = new CsvSorter(SortOptions.builder(2).build()).sort(Paths.get(inputCSVFile), inMemory);
+        assert Arrays.equals(inMemory.toByteArray(), sorted);
+        assert metrics.getRunsWritten() == 0;
+    }
+
+    @Test
+    public void testSort_limit_firstRecordsOfTheFullSort() throws IOException {
+        String inputCSVFile = "src/test/resources/employee_info.csv";
+        List<String> sorted = new ArrayList<>();
+        new CsvSorter(SortOptions.builder(2).build()).sort(Paths.get(inputCSVFile), sorted::add);
+
+        //the key has many duplicates, the ties are kept in input order across the heaps of 4 workers
+        List<String> first = new ArrayList<>();
+        SortMetricsMXBean metrics = new CsvSorter(SortOptions.builder(2).numberOfWorkers(4).limit(1000).build())
+                .sort(Paths.get(inputCSVFile), first::add);
+        assert first.equals(sorted.subList(0, 1000));
+        assert metrics.getInputRecords() == sorted.size();
+        assert metrics.getRunsWritten() == 0;
+
+        List<String> all = new ArrayList<>();
+        new CsvSorter(SortOptions.builder(2).limit(sorted.size() + 1).build()).sort(sorted.iterator(), all::add);
+        assert all.equals(sorted);
+    }
+    @Test
+    public void testSort_combiner_sameRecordsInMemoryAndAfterMerges() throws IOException {
+        List<String> records = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            records.add("k" + (i * 7919 % 13) + "," + (i % 3) + ",x" + (i % 2));
+        }
+        List<String> counts = new ArrayList<>();
+        new CsvSorter(SortOptions.builder(0).combiner(Combiner.count(1)).build()).sort(records.iterator(), counts::add);
+        assert counts.size() == 13;
+        assert counts.get(0).equals("k0,385,x0");
+
+        //the partial counts of the runs are summed by the merges
+        List<String> merged = new ArrayList<>();
+        SortMetricsMXBean metrics = new CsvSorter(SortOptions.builder(0).combiner(Combiner.count(1))
+                .maxRecordsNumber(300).fanIn(2).build()).sort(records.iterator(), merged::add);
+        assert merged.equals(counts);
+        assert metrics.getRunsWritten() > 1;
+        assert metrics.getOutputRecords() == 13;
+        assert metrics.getCombinedRecords() == records.size() - 13;
+
+        List<String> sums = new ArrayList<>();
+        new CsvSorter(SortOptions.builder(0).combiner(Combiner.sum(1)).maxRecordsNumber(300).fanIn(2).build())
+                .sort(records.iterator(), sums::add);
+        long total = 0;
+        for (String sum : sums) {
+            total += Long.parseLong(sum.split(",")[1]);
+        }
+        assert total == 4999;
+
+        //the records of a key are ordered by their bytes, in memory and in the runs of both run generations
+        List<String> expected = records.stream().distinct().sorted().collect(Collectors.toList());
+        for (SortOptions options : Arrays.asList(SortOptions.builder(0).combiner(Combiner.distinct()).build(),
+                SortOptions.builder(0).combiner(Combiner.distinct()).maxRecordsNumber(300).fanIn(2).build(),
+                SortOptions.builder(0).combiner(Combiner.distinct()).maxRecordsNumber(300).fanIn(2)
+                        .runGeneration(SortOptions.RunGeneration.REPLACEMENT_SELECTION).build())) {
+            List<String> distinct = new ArrayList<>();
+            new CsvSorter(options).sort(records.iterator(), distinct::add);
+            assert distinct.equals(expected);
+        }
+    }
+
+    @Test
+    public void testSort_indexInterval_lookupsReadLikeAScan() throws IOException {
+        String inputCSVFile = "src/test/resources/employee_info.csv";
+        Path dir = Files.createTempDirectory("sorter-test");
+        String sortedFile = dir.resolve("sorted.csv").toString();
+        KeySpec keySpec = KeySpec.parse("7:decimal:desc,0");
+        List<String> sorted = new ArrayList<>();
+        new CsvSorter(SortOptions.builder(keySpec).build()).sort(Paths.get(inputCSVFile), sorted::add);
+
+        try {
+            //in memory, and merged in key ranges that are concatenated with their indexes
+            for (SortOptions options : Arrays.asList(SortOptions.builder(keySpec).indexInterval(1024).build(),
+                    SortOptions.builder(keySpec).indexInterval(1024).maxRecordsNumber(3000).outputPartitions(3).build())) {
+                new CsvSorter(options).sort(Paths.get(inputCSVFile), Paths.get(sortedFile));
+                SortedFileIndex index = SortedFileIndex.open(Paths.get(sortedFile));
+
+                List<String> expected = new ArrayList<>();
+                for (String record : sorted) {
+                    String[] fields = record.split(",", -1);
+                    if (fields[7].equals("104628.00") && fields[0].equals("ELKINS")) {
+                        expected.add(record);
+                    }
+                }
+                assert !expected.isEmpty();
+                assert index.lookup("104628.00,ELKINS").equals(expected);
+                assert index.lookup("104628.00,NOBODY").isEmpty();
+
+                List<String> range = new ArrayList<>();
+                assert index.range("104628.00,A", "90000,A", range::add) == range.size();
+                int from = sorted.indexOf(expected.get(0));
+                while (from > 0 && sorted.get(from - 1).split(",", -1)[7].equals("104628.00")) {
+                    from--;
+                }
+                assert range.equals(sorted.subList(from, from + range.size()));
+                assert Double.parseDouble(range.get(range.size() - 1).split(",", -1)[7]) > 90000;
+
+                List<String> all = new ArrayList<>();
+                index.range(null, null, all::add);
+                assert all.equals(sorted);
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package csvsorter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class KeyPrefixSorterTest {
+
+    @Test
+    public void testSort_keysWithSharedPrefixesAndTies_sameOrderAsStableMergeSort() {
+        Random random = new Random(42);
+        for (int size : new int[]{0, 1, 2, 31, 1000, KeyPrefixSorter.PARALLEL_THRESHOLD + 1000}) {
+            KeyedRecord[] records = new KeyedRecord[size];
+            for (int i = 0; i < size; i++) {
+                //few distinct bytes and lengths from 0 to 12, so many keys share their 8 byte prefix or are equal
+                byte[] key = new byte[random.nextInt(13)];
+                for (int b = 0; b < key.length; b++) {
+                    key[b] = (byte) (b < 6 ? 0x61 : random.nextInt(3) * 0x7F);
+                }
+                records[i] = new KeyedRecord(key, Integer.toString(i).getBytes());
+            }
+            KeyedRecord[] expected = records.clone();
+            Arrays.sort(expected);
+            for (PartSort partSort : PartSort.values()) {
+                KeyedRecord[] sorted = records.clone();
+                partSort.sort(sorted);
+                //the same records in the same order, equal keys in their input order
+                for (int i = 0; i < size; i++) {
+                    assert sorted[i] == expected[i] : partSort + " " + size + " at " + i;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPrefix_unsignedBigEndianPaddedWithZeros() {
+        assert KeyPrefixSorter.prefix(new byte[0]) == 0;
+        assert KeyPrefixSorter.prefix(new byte[]{1}) == 1L << 56;
+        assert KeyPrefixSorter.prefix(new byte[]{(byte) 0xFF, 0, 0, 0, 0, 0, 0, 2, 3}) == 0xFF00000000000002L;
+    }
+}
@@ -1,23 +1,34 @@
 package csvsorter;
 
 import com.google.common.collect.Ordering;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 @ExtendWith(MockitoExtension.class)
 public class MainTestsIntegrationTests {
 
     @Test
     public void testMain_10Records_2max() throws IOException {
-        String inputCSVFile = "src\\test\\resources\\inputTest.csv";
-        String outputFile = "src\\test\\resources\\sorted.csv";
+        String inputCSVFile = "src/test/resources/inputTest.csv";
+        String outputFile = "src/test/resources/sorted.csv";
         String[] args = {"-in", inputCSVFile, "-key", "0", "-max", "2", "-out", outputFile};
         Main.main(args);
 
@@ -27,12 +38,215 @@ public class MainTestsIntegrationTests {
 
     @Test
     public void testMain_10Records_3max() throws IOException {
-        String inputCSVFile = "src\\test\\resources\\inputTest.csv";
-        String outputFile = "src\\test\\resources\\sorted.csv";
+        String inputCSVFile = "src/test/resources/inputTest.csv";
+        String outputFile = "src/test/resources/sorted.csv";
         String[] args = {"-in", inputCSVFile, "-key", "0", "-max", "3", "-out", outputFile};
         Main.main(args);
 
         List<String> outputFileOfcsvsorter = Files.lines(Paths.get(outputFile)).collect(Collectors.toList());
         assert Ordering.natural().isOrdered(outputFileOfcsvsorter);
     }
+
+    @Test
+    public void testMain_10Records_2max_binarySpill() throws IOException {
+        String inputCSVFile = "src/test/resources/inputTest.csv";
+        String outputFile = "src/test/resources/sorted.csv";
+        //5 parts with a fan-in of 2 - the intermediate passes read and write binary runs, the output is csv
+        String[] args = {"-in", inputCSVFile, "-key", "0", "-max", "2", "-fanin", "2", "-spill", "binary", "-out", outputFile};
+        Main.main(args);
+
+        List<String> outputFileOfcsvsorter = Files.lines(Paths.get(outputFile)).collect(Collectors.toList());
+        assert outputFileOfcsvsorter.size() == 10;
+        assert Ordering.natural().isOrdered(outputFileOfcsvsorter);
+    }
+
+    @Test
+    public void testMain_10Records_2max_jsonReport() throws IOException {
+        String inputCSVFile = "src/test/resources/inputTest.csv";
+        String outputFile = "src/test/resources/sorted.csv";
+        String reportFile = "src/test/resources/report.json";
+        String[] args = {"-in", inputCSVFile, "-key", "0", "-max", "2", "-fanin", "2", "-out", outputFile, "-report", reportFile};
+        Main.main(args);
+
+        String report = new String(Files.readAllBytes(Paths.get(reportFile)), StandardCharsets.UTF_8);
+        Files.delete(Paths.get(reportFile));
+        assert report.contains("\"phase\": \"DONE\"");
+        assert report.contains("\"input\": {\"records\": 10, \"bytes\": " + Files.size(Paths.get(inputCSVFile)) + "}");
+        assert report.contains("\"output\": {\"records\": 10, \"bytes\": " + Files.size(Paths.get(outputFile)) + "}");
+        assert report.contains("\"maxFanIn\": 2");
+    }
+
+    @Test
+    public void testMain_10Records_2max_decimalDescendingThenName() throws IOException {
+        String inputCSVFile = "src/test/resources/inputTest.csv";
+        String outputFile = "src/test/resources/sorted.csv";
+        String[] args = {"-in", inputCSVFile, "-key", "7:decimal:desc,0", "-max", "2", "-fanin", "2", "-spill", "binary",
+                "-out", outputFile};
+        Main.main(args);
+
+        List<String> outputFileOfcsvsorter = Files.lines(Paths.get(outputFile)).collect(Collectors.toList());
+        List<Double> salaries = outputFileOfcsvsorter.stream().map(line -> Double.valueOf(line.split(",")[7]))
+                .collect(Collectors.toList());
+        assert outputFileOfcsvsorter.size() == 10;
+        assert Ordering.natural().reverse().isOrdered(salaries);
+        //equal salaries are ordered by the name
+        assert outputFileOfcsvsorter.indexOf("ELKINS,ERIC J,SERGEANT,POLICE,F,Salary,,104628.00,")
+                < outputFileOfcsvsorter.indexOf("\uFEFFHOLLER,JOEL P,SERGEANT,POLICE,F,Salary,,104628.00,");
+    }
+
+    @Test
+    public void testMain_shortRecord_sortFails() throws IOException {
+        Path input = Files.createTempFile("short-record", ".csv");
+        Path output = Files.createTempFile("short-record-sorted", ".csv");
+        Files.write(input, Arrays.asList("c,3,z", "d,4,w", "b,2", "a,1,x"), StandardCharsets.UTF_8);
+        try {
+            //the part of the short record fails, and with it the sort - instead of an output without the part
+            for (String runGeneration : Arrays.asList("fixed", "replacement")) {
+                try {
+                    Main.main(new String[]{"-in", input.toString(), "-key", "2", "-max", "2", "-rungen", runGeneration,
+                            "-out", output.toString()});
+                    assert false;
+                } catch (IOException expected) {
+                    assert expected.getMessage().contains("record 3 of " + input) : expected.getMessage();
+                }
+            }
+        } finally {
+            Files.delete(input);
+            Files.deleteIfExists(output);
+        }
+    }
+
+    @Test
+    public void testMain_employeeInfo_mergeIntoBase() throws IOException {
+        String inputCSVFile = "src/test/resources/employee_info.csv";
+        //the outputs and their specs are written to a temp directory, which is deleted with all of them
+        Path dir = Files.createTempDirectory("merge-into-base");
+        String sortedFile = dir.resolve("sorted.csv").toString();
+        String baseInputFile = dir.resolve("base_input.csv").toString();
+        String deltaFile = dir.resolve("delta.csv").toString();
+        String baseFile = dir.resolve("base.csv").toString();
+        try {
+            List<String> lines = Files.readAllLines(Paths.get(inputCSVFile), StandardCharsets.UTF_8);
+            Files.write(Paths.get(baseInputFile), lines.subList(0, 25000), StandardCharsets.UTF_8);
+            Files.write(Paths.get(deltaFile), lines.subList(25000, lines.size()), StandardCharsets.UTF_8);
+            Main.main(new String[]{"-in", inputCSVFile, "-key", "2", "-out", sortedFile});
+            Main.main(new String[]{"-in", baseInputFile, "-key", "2", "-out", baseFile, "-sortspec"});
+            assert Files.exists(Paths.get(baseFile + SortSpecFile.SUFFIX));
+            assert !Files.exists(Paths.get(sortedFile + SortSpecFile.SUFFIX));
+
+            //only the delta is sorted, in several passes, and merged into the base file in place
+            Main.main(new String[]{"-in", deltaFile, "-base", baseFile, "-key", "2", "-max", "500", "-fanin", "3",
+                    "-out", baseFile});
+            assert Files.readAllLines(Paths.get(baseFile)).equals(Files.readAllLines(Paths.get(sortedFile)));
+
+            //a base file that was sorted by another key is rejected before the delta is sorted
+            try {
+                Main.main(new String[]{"-in", deltaFile, "-base", baseFile, "-key", "3", "-out", sortedFile});
+                assert false;
+            } catch (IllegalArgumentException expected) {
+                assert expected.getMessage().contains("2:string");
+            }
+
+            //a base file without a spec is checked while it is merged
+            try {
+                Main.main(new String[]{"-in", deltaFile, "-base", baseInputFile, "-key", "2", "-out", sortedFile});
+                assert false;
+            } catch (IOException expected) {
+                assert expected.getMessage().contains(baseInputFile);
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    @Test
+    public void testMain_employeeInfo_joinWithDepartments() throws IOException {
+        String inputCSVFile = "src/test/resources/employee_info.csv";
+        Path dir = Files.createTempDirectory("join");
+        String departmentsFile = dir.resolve("departments.csv").toString();
+        String sortedFile = dir.resolve("sorted.csv").toString();
+        String joinedFile = dir.resolve("joined.csv").toString();
+        try {
+            Files.write(Paths.get(departmentsFile), Arrays.asList("POLICE,P1", "NO SUCH DEPARTMENT,X", "FIRE,F1", "FIRE,F2"),
+                    StandardCharsets.UTF_8);
+            Main.main(new String[]{"-in", inputCSVFile, "-key", "3", "-out", sortedFile});
+            List<String> sorted = Files.readAllLines(Paths.get(sortedFile), StandardCharsets.UTF_8);
+
+            //the joined records are ordered like the input sorted by its key, with the right records in their order
+            List<String> inner = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            for (String line : sorted) {
+                String department = line.split(",", -1)[3];
+                if (department.equals("POLICE")) {
+                    inner.add(line + ",POLICE,P1");
+                } else if (department.equals("FIRE")) {
+                    inner.add(line + ",FIRE,F1");
+                    inner.add(line + ",FIRE,F2");
+                }
+                left.addAll(department.equals("POLICE") || department.equals("FIRE")
+                        ? inner.subList(inner.size() - (department.equals("FIRE") ? 2 : 1), inner.size())
+                        : Collections.singletonList(line + ",,"));
+            }
+
+            Main.main(new String[]{"-in", inputCSVFile, "-key", "3", "-join", departmentsFile, "-joinkey", "0",
+                    "-max", "500", "-fanin", "3", "-out", joinedFile});
+            assert Files.readAllLines(Paths.get(joinedFile), StandardCharsets.UTF_8).equals(inner);
+            Main.main(new String[]{"-in", inputCSVFile, "-key", "3", "-join", departmentsFile, "-joinkey", "0",
+                    "-jointype", "left", "-spill", "binary", "-out", joinedFile});
+            assert Files.readAllLines(Paths.get(joinedFile), StandardCharsets.UTF_8).equals(left);
+
+            //a key with more right records than the memory budget of a part holds is spilled, and read for every left record
+            String leftFile = dir.resolve("left.csv").toString();
+            String codesFile = dir.resolve("codes.csv").toString();
+            String spilledFile = dir.resolve("spilled.csv").toString();
+            Files.write(Paths.get(leftFile), Files.readAllLines(Paths.get(inputCSVFile), StandardCharsets.UTF_8).subList(0, 500),
+                    StandardCharsets.UTF_8);
+            List<String> codes = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                codes.add("POLICE,P" + i);
+            }
+            Files.write(Paths.get(codesFile), codes, StandardCharsets.UTF_8);
+            Main.main(new String[]{"-in", leftFile, "-key", "3", "-join", codesFile, "-joinkey", "0", "-out", joinedFile});
+            Main.main(new String[]{"-in", leftFile, "-key", "3", "-join", codesFile, "-joinkey", "0",
+                    "-mem", "600k", "-threads", "2", "-out", spilledFile});
+            List<String> spilled = Files.readAllLines(Paths.get(spilledFile), StandardCharsets.UTF_8);
+            assert spilled.size() > 3000;
+            assert spilled.equals(Files.readAllLines(Paths.get(joinedFile), StandardCharsets.UTF_8));
+
+            //the keys of both files must have the same types
+            try {
+                Main.main(new String[]{"-in", inputCSVFile, "-key", "7:decimal", "-join", departmentsFile, "-joinkey", "0",
+                        "-out", joinedFile});
+                assert false;
+            } catch (IllegalArgumentException expected) {
+                assert expected.getMessage().contains("7:decimal");
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    @Test
+    public void testMain_employeeInfo_gzipInputAndOutput() throws IOException {
+        String inputCSVFile = "src/test/resources/employee_info.csv";
+        Path dir = Files.createTempDirectory("gzip");
+        String compressedInputFile = dir.resolve("employee_info.csv.gz").toString();
+        String sortedFile = dir.resolve("sorted.csv").toString();
+        String compressedSortedFile = dir.resolve("sorted.csv.gz").toString();
+        try {
+            try (OutputStream output = new GZIPOutputStream(Files.newOutputStream(Paths.get(compressedInputFile)))) {
+                Files.copy(Paths.get(inputCSVFile), output);
+            }
+            Main.main(new String[]{"-in", inputCSVFile, "-key", "2", "-out", sortedFile});
+
+            //the input is recognized by its first bytes, the output by its name, and its key ranges are concatenated members
+            Main.main(new String[]{"-in", compressedInputFile, "-key", "2", "-max", "3000", "-fanin", "3", "-partitions", "3",
+                    "-out", compressedSortedFile});
+            try (InputStream input = new GZIPInputStream(Files.newInputStream(Paths.get(compressedSortedFile)))) {
+                assert Arrays.equals(IOUtils.toByteArray(input), Files.readAllBytes(Paths.get(sortedFile)));
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
 }
@@ -1,45 +1,168 @@
 package csvsorter;
 
+import com.google.common.collect.Ordering;
 import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 
 @ExtendWith(MockitoExtension.class)
 public class MapperTest {
 
+    //a new temp directory of the parts for every test, deleted after it
+    private String tempFilesDir;
+
+    @BeforeEach
+    public void createTempFilesDir() throws IOException {
+        tempFilesDir = Files.createTempDirectory("mapper-test").toString() + File.separator;
+    }
+
+    @AfterEach
+    public void deleteTempFilesDir() throws IOException {
+        FileUtils.deleteDirectory(new File(tempFilesDir));
+    }
+
     @Test
     public void testMapper_10records_3max() throws IOException {
-        String inputCSVFile = "src\\test\\resources\\inputTest.csv";
-        String tempFilesDir = "src\\test\\resources\\temp-test\\";
-        File tempdir = new File(tempFilesDir);
-        FileUtils.forceMkdir(tempdir);
-        FileUtils.cleanDirectory(tempdir);
+        String inputCSVFile = "src/test/resources/inputTest.csv";
 
         Mapper mapper = new Mapper(2, 3);
-        mapper.map(inputCSVFile, tempFilesDir);
+        int numberOfParts = mapper.map(inputCSVFile, tempFilesDir);
 
         //input file contains 10 records, and the maxRecordsNumber that was sent to map was 3, so we need to have 4 parts.
+        assert numberOfParts == 4;
         assert Files.list(Paths.get(tempFilesDir)).count() == 4;
     }
 
     @Test
     public void testMapper_10records_2max() throws IOException {
-        String inputCSVFile = "src\\test\\resources\\inputTest.csv";
-        String tempFilesDir = "src\\test\\resources\\temp-test\\";
-        File tempdir = new File(tempFilesDir);
-        FileUtils.forceMkdir(tempdir);
-        FileUtils.cleanDirectory(tempdir);
+        String inputCSVFile = "src/test/resources/inputTest.csv";
 
         Mapper mapper = new Mapper(2, 2);
-        mapper.map(inputCSVFile, tempFilesDir);
+        int numberOfParts = mapper.map(inputCSVFile, tempFilesDir);
 
         //input file contains 10 records, and the maxRecordsNumber that was sent to map was 2, so we need to have 5 parts.
+        assert numberOfParts == 5;
         assert Files.list(Paths.get(tempFilesDir)).count() == 5;
     }
+
+    @Test
+    public void testMapper_10records_memoryBudgetOf2Records() throws IOException {
+        String inputCSVFile = "src/test/resources/inputTest.csv";
+
+        //a single worker holds up to 3 parts in memory, each part gets room for about 2 records of ~50 chars
+        String record = "HOLLER,JOEL P,SERGEANT,POLICE,F,Salary,,104628.00,";
+        long memoryBudget = 3 * (KeyedRecord.estimateSize(record) * 2 - 10);
+        SortOptions options = SortOptions.builder(2).memoryBudget(memoryBudget).numberOfWorkers(1).build();
+
+        Mapper mapper = new Mapper(options);
+        int numberOfParts = mapper.map(inputCSVFile, tempFilesDir);
+
+        //no maxRecordsNumber was given, the parts were cut by the memory budget
+        assert numberOfParts == 5;
+        assert Files.list(Paths.get(tempFilesDir)).count() == 5;
+    }
+
+    @Test
+    public void testMapper_10records_3max_replacementSelection() throws IOException {
+        String inputCSVFile = "src/test/resources/inputTest.csv";
+
+        SortOptions options = SortOptions.builder(0).maxRecordsNumber(3)
+                .runGeneration(SortOptions.RunGeneration.REPLACEMENT_SELECTION).build();
+        Mapper mapper = new Mapper(options);
+        int numberOfParts = mapper.map(inputCSVFile, tempFilesDir);
+
+        //a heap of 3 records writes longer parts than the fixed slices of 3 records
+        assert numberOfParts < 4;
+        assert Files.list(Paths.get(tempFilesDir)).count() == numberOfParts;
+        long numberOfRecords = 0;
+        for (int i = 1; i <= numberOfParts; i++) {
+            List<String> part = Files.readAllLines(Paths.get(Mapper.createMapFileName(i, tempFilesDir)));
+            assert Ordering.natural().isOrdered(part);
+            numberOfRecords += part.size();
+        }
+        assert numberOfRecords == 10;
+    }
+
+    @Test
+    public void testMapper_sortedInput_replacementSelectionWritesASinglePart() throws IOException {
+        Path sortedInput = Files.createTempFile("sorted-input", ".csv");
+        List<String> records = Files.readAllLines(Paths.get("src/test/resources/inputTest.csv"));
+        Collections.sort(records);
+        Files.write(sortedInput, records);
+
+        SortOptions options = SortOptions.builder(0).maxRecordsNumber(2)
+                .runGeneration(SortOptions.RunGeneration.REPLACEMENT_SELECTION).build();
+        Mapper mapper = new Mapper(options);
+        int numberOfParts = mapper.map(sortedInput.toString(), tempFilesDir);
+        Files.delete(sortedInput);
+
+        assert numberOfParts == 1;
+        assert Files.readAllLines(Paths.get(Mapper.createMapFileName(1, tempFilesDir))).equals(records);
+    }
+
+    @Test
+    public void testMapper_quotedLineBreaks_byteRangesOnRecordBoundaries() throws IOException {
+        Path input = Files.createTempFile("quoted-input", ".csv");
+        List<String> records = Arrays.asList("\"d\n1\",x", "b,\"q\"\"\n\"", "\"a\",y", "c,z", "\"e\r\n2\",w");
+        Files.write(input, String.join("\n", records).getBytes(StandardCharsets.UTF_8));
+        List<String> sortedRecords = Arrays.asList(records.get(2), records.get(1), records.get(3), records.get(0), records.get(4));
+
+        //ranges of a few bytes start inside quoted fields, the records must still be parsed whole
+        for (int numberOfWorkers = 1; numberOfWorkers <= 8; numberOfWorkers++) {
+            FileUtils.cleanDirectory(new File(tempFilesDir));
+            SortOptions options = SortOptions.builder(0).numberOfWorkers(numberOfWorkers)
+                    .inputSplitting(SortOptions.InputSplitting.BYTE_RANGES).spillFormat(SpillFormat.BINARY).build();
+            RunStorage runStorage = new RunStorage(options);
+            int numberOfParts = new Mapper(options, runStorage).mapByteRanges(input.toString(), tempFilesDir, 1);
+            assert numberOfParts >= 1 && numberOfParts <= numberOfWorkers;
+            assert Files.list(Paths.get(tempFilesDir)).count() == numberOfParts;
+
+            String sortedFile = new Reducer(options, runStorage).reduceRec(tempFilesDir, Constants.MAP_SUFFIX, 1);
+            String sorted = new String(Files.readAllBytes(Paths.get(sortedFile)), StandardCharsets.UTF_8);
+            assert sorted.equals(String.join("\r\n", sortedRecords) + "\r\n");
+        }
+        Files.delete(input);
+    }
+
+    @Test
+    public void testMapper_10records_1max_2fanIn_partsAreMergedDuringTheMap() throws IOException {
+        String inputCSVFile = "src/test/resources/inputTest.csv";
+
+        SortOptions options = SortOptions.builder(0).maxRecordsNumber(1).fanIn(2).numberOfWorkers(2).build();
+        RunStorage runStorage = new RunStorage(options);
+        SortScheduler scheduler = new SortScheduler(options.getNumberOfWorkers());
+        int numberOfParts = new Mapper(options, runStorage, scheduler).map(inputCSVFile, tempFilesDir);
+
+        //10 parts were written, the ones that were written early enough were already merged in pairs
+        assert numberOfParts == 10;
+        List<Path> runs = Files.list(Paths.get(tempFilesDir)).collect(Collectors.toList());
+        assert runs.size() <= numberOfParts;
+        long numberOfRecords = 0;
+        for (Path run : runs) {
+            assert run.toString().endsWith(Constants.MAP_SUFFIX);
+            List<String> records = Files.readAllLines(run);
+            assert Ordering.natural().isOrdered(records);
+            numberOfRecords += records.size();
+        }
+        assert numberOfRecords == 10;
+
+        String sortedFile = new Reducer(options, runStorage, scheduler).reduceRec(tempFilesDir, Constants.MAP_SUFFIX, 1);
+        List<String> sorted = Files.readAllLines(Paths.get(sortedFile));
+        assert sorted.size() == 10;
+        assert Ordering.natural().isOrdered(sorted);
+    }
 }
@@ -1,10 +1,18 @@
 package csvsorter;
 
 import com.google.common.collect.Ordering;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -12,9 +20,29 @@ import static java.nio.file.Files.lines;
 
 public class ReducerTest {
 
+    //a new temp directory of the runs for every test, deleted after it
+    private String tempFilesDir;
+
+    @BeforeEach
+    public void createTempFilesDir() throws IOException {
+        tempFilesDir = Files.createTempDirectory("reducer-test").toString() + File.separator;
+    }
+
+    @AfterEach
+    public void deleteTempFilesDir() throws IOException {
+        FileUtils.deleteDirectory(new File(tempFilesDir));
+    }
+
+    /**
+     * copy the 4 sorted parts of inputTest.csv (3 records each) into the temp directory, so they are merged there
+     */
+    private void copyParts() throws IOException {
+        FileUtils.copyDirectory(new File("src/test/resources/reducer-test-temp"), new File(tempFilesDir));
+    }
+
     @Test
     public void testReducer_10records_3max() throws IOException {
-        String tempFilesDir = "src\\test\\resources\\reducer-test-temp\\";
+        copyParts();
         int sortingKeyIndex = 0;
 
         Reducer reducer = new Reducer(sortingKeyIndex);
@@ -25,4 +53,106 @@ public class ReducerTest {
         assert lines(Paths.get(sortedOutputFilePath)).count() == 10;
         assert Ordering.natural().isOrdered(lines);
     }
+
+    @Test
+    public void testReducer_10records_3max_2fanIn() throws IOException {
+        copyParts();
+        int sortingKeyIndex = 0;
+
+        //4 parts with a fan-in of 2 need 2 merge passes
+        Reducer reducer = new Reducer(sortingKeyIndex, 2, Runtime.getRuntime().maxMemory() / 2);
+        String sortedOutputFilePath = reducer.reduceRec(tempFilesDir, Constants.MAP_SUFFIX, 1);
+
+        List<String> lines = lines(Paths.get(sortedOutputFilePath)).collect(Collectors.toList());
+
+        assert sortedOutputFilePath.endsWith(Constants.REDUCE_SUFFIX + 2);
+        assert lines.size() == 10;
+        assert Ordering.natural().isOrdered(lines);
+    }
+
+    @Test
+    public void testPlanMergePass_onlyMergesWhatTheNextPassCannot() {
+        List<String> files = Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11");
+
+        //11 files, and the final merge can take 10 - merging 2 files in this pass is enough
+        List<List<String>> mergeGroups = Reducer.planMergePass(files, 10, 10);
+        assert mergeGroups.size() == 10;
+        assert mergeGroups.get(0).equals(Arrays.asList("1", "2"));
+
+        //everything fits in the final merge
+        assert Reducer.planMergePass(files, 4, 16).size() == 1;
+
+        //11 files with a fan-in of 3 take 3 passes, the first one has to get down to 9 files
+        mergeGroups = Reducer.planMergePass(files, 3, 3);
+        assert mergeGroups.size() == 9;
+        assert mergeGroups.get(0).size() == 3;
+        assert mergeGroups.get(1).size() == 1;
+    }
+
+    @Test
+    public void testChooseSplitters_equalRangesOfTheSample() {
+        List<byte[]> sample = Arrays.asList("f", "b", "h", "d", "a", "c", "g", "e").stream()
+                .map(KeyedRecord::encodeKey).collect(Collectors.toList());
+
+        List<byte[]> splitters = Reducer.chooseSplitters(sample, 4);
+        assert splitters.size() == 3;
+        assert Arrays.equals(splitters.get(0), KeyedRecord.encodeKey("c"));
+        assert Arrays.equals(splitters.get(1), KeyedRecord.encodeKey("e"));
+        assert Arrays.equals(splitters.get(2), KeyedRecord.encodeKey("g"));
+
+        assert Reducer.chooseSplitters(sample, 1).isEmpty();
+        assert Reducer.chooseSplitters(Collections.emptyList(), 4).isEmpty();
+    }
+
+    @Test
+    public void testReducer_employeeInfo_4shards() throws IOException {
+        String inputCSVFile = "src/test/resources/employee_info.csv";
+        SortOptions options = SortOptions.builder(2).maxRecordsNumber(2000).build();
+        new Mapper(options).map(inputCSVFile, tempFilesDir);
+        String sortedFile = new Reducer(options).reduceRec(tempFilesDir, Constants.MAP_SUFFIX, 1);
+        byte[] sorted = Files.readAllBytes(Paths.get(sortedFile));
+
+        //compressed binary runs are read from the indexed record before every key range
+        FileUtils.cleanDirectory(new File(tempFilesDir));
+        SortOptions shardedOptions = SortOptions.builder(2).maxRecordsNumber(2000).outputPartitions(4).shardedOutput(true)
+                .spillFormat(SpillFormat.BINARY).spillCompression(SpillCompression.LZ4).build();
+        RunStorage runStorage = new RunStorage(shardedOptions);
+        new Mapper(shardedOptions, runStorage).map(inputCSVFile, tempFilesDir);
+        List<String> shards = new Reducer(shardedOptions, runStorage).reduceToShards(tempFilesDir, Constants.MAP_SUFFIX, 1);
+
+        assert shards.size() == 4;
+        ByteArrayOutputStream concatenatedShards = new ByteArrayOutputStream();
+        for (String shard : shards) {
+            byte[] shardBytes = Files.readAllBytes(Paths.get(shard));
+            assert shardBytes.length > 0;
+            concatenatedShards.write(shardBytes);
+        }
+        assert Arrays.equals(concatenatedShards.toByteArray(), sorted);
+    }
+
+    @Test
+    public void testReducer_employeeInfo_2tempDirs() throws IOException {
+        String inputCSVFile = "src/test/resources/employee_info.csv";
+        String otherTempDir = Files.createTempDirectory("reducer-test-2").toString() + File.separator;
+        SortOptions options = SortOptions.builder(2).maxRecordsNumber(2000).build();
+        new Mapper(options).map(inputCSVFile, tempFilesDir);
+        byte[] sorted = Files.readAllBytes(Paths.get(new Reducer(options).reduceRec(tempFilesDir, Constants.MAP_SUFFIX, 1)));
+
+        //the runs are spread over both directories, and the merges of a small fan-in delete their inputs
+        try {
+            FileUtils.cleanDirectory(new File(tempFilesDir));
+            SortOptions stripedOptions = SortOptions.builder(2).maxRecordsNumber(2000).fanIn(4)
+                    .tempDirs(Arrays.asList(tempFilesDir, otherTempDir)).build();
+            RunStorage runStorage = new RunStorage(stripedOptions);
+            int numberOfParts = new Mapper(stripedOptions, runStorage).map(inputCSVFile, tempFilesDir);
+            assert numberOfParts == 17;
+            assert Files.list(Paths.get(otherTempDir)).count() > 0;
+            String sortedFile = new Reducer(stripedOptions, runStorage).reduceRec(tempFilesDir, Constants.MAP_SUFFIX, 1);
+
+            assert Arrays.equals(Files.readAllBytes(Paths.get(sortedFile)), sorted);
+            assert Files.list(Paths.get(tempFilesDir)).count() + Files.list(Paths.get(otherTempDir)).count() == 1;
+        } finally {
+            FileUtils.deleteDirectory(new File(otherTempDir));
+        }
+    }
 }
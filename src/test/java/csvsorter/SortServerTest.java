@@ -0,0 +1,118 @@
+package csvsorter;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class SortServerTest {
+
+    @Test
+    public void testServer_jobsShareTheBudget_sameOutputAsMain() throws IOException {
+        String inputCSVFile = "src/test/resources/employee_info.csv";
+        //the outputs and the temp directories of the jobs, deleted with the directory
+        Path dir = Files.createTempDirectory("sort-server");
+        String sortedFile = dir.resolve("sorted.csv").toString();
+        SortServer server = null;
+        try {
+            Main.main(new String[]{"-in", inputCSVFile, "-key", "2", "-out", sortedFile});
+            List<String> sorted = Files.readAllLines(Paths.get(sortedFile));
+
+            server = new SortServer(0, 64L * 1024 * 1024, 4, 2, dir.resolve("temp").toString());
+            server.start();
+            SortClient client = new SortClient("http://localhost:" + server.getPort());
+            List<Long> ids = new ArrayList<>();
+            for (int job = 1; job <= 3; job++) {
+                ids.add(client.submit("-in", inputCSVFile, "-key", "2", "-max", "3000", "-fanin", "3",
+                        "-threads", "8", "-out", dir.resolve("sorted-" + job + ".csv").toString()));
+            }
+            for (int job = 1; job <= 3; job++) {
+                String status = client.awaitFinished(ids.get(job - 1), 60_000);
+                assert SortClient.state(status).equals("DONE") : status;
+                //every job gets half of the memory and the threads, and may not ask for more
+                assert status.contains("\"memoryBudget\": " + 32L * 1024 * 1024);
+                assert status.contains("\"threads\": 2");
+                assert status.contains("\"mapProgress\": 1.000");
+                assert Files.readAllLines(dir.resolve("sorted-" + job + ".csv")).equals(sorted);
+            }
+
+            //a job without an output is rejected, and a job that fails says why
+            try {
+                client.submit("-in", inputCSVFile, "-key", "2");
+                assert false;
+            } catch (IOException expected) {
+                assert expected.getMessage().contains("400");
+            }
+            String failed = client.awaitFinished(client.submit("-in", "src/test/resources/no-such-file.csv", "-key", "2",
+                    "-out", dir.resolve("sorted-4.csv").toString()), 60_000);
+            assert SortClient.state(failed).equals("FAILED");
+            assert failed.contains("no-such-file.csv");
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    @Test
+    public void testServer_leaseTheBudget_jobThatAsksForLessLeavesMoreToTheOthers() throws IOException {
+        SortServer server = new SortServer(0, 64L * 1024 * 1024, 4, 2, System.getProperty("java.io.tmpdir"));
+        SortOptions small = server.lease(SortOptions.builder(0), 8L * 1024 * 1024, 1);
+        assert small.getMemoryBudget() == 8L * 1024 * 1024;
+        assert small.getNumberOfWorkers() == 1;
+        SortOptions large = server.lease(SortOptions.builder(0), Long.MAX_VALUE, Integer.MAX_VALUE);
+        assert large.getMemoryBudget() == 56L * 1024 * 1024;
+        assert large.getNumberOfWorkers() == 3;
+
+        //a share that was given back is leased again, never more than is left
+        server.release(small);
+        SortOptions next = server.lease(SortOptions.builder(0), Long.MAX_VALUE, Integer.MAX_VALUE);
+        assert next.getMemoryBudget() == 8L * 1024 * 1024;
+        server.release(large);
+        server.release(next);
+        assert server.lease(SortOptions.builder(0), Long.MAX_VALUE, Integer.MAX_VALUE).getMemoryBudget()
+                == 32L * 1024 * 1024;
+        server.stop();
+    }
+
+    @Test
+    public void testServer_leaseMoreJobsThanThreads_neverOverdrawsTheBudget() throws Exception {
+        //a server can't run more jobs at the same time than it has threads
+        try {
+            new SortServer(0, 64L * 1024 * 1024, 1, 2, System.getProperty("java.io.tmpdir"));
+            assert false;
+        } catch (IllegalArgumentException expected) {
+            assert expected.getMessage().contains("2 concurrent jobs");
+        }
+
+        SortServer server = new SortServer(0, 64L * 1024 * 1024, 2, 2, System.getProperty("java.io.tmpdir"));
+        SortOptions first = server.lease(SortOptions.builder(0), Long.MAX_VALUE, Integer.MAX_VALUE);
+        SortOptions second = server.lease(SortOptions.builder(0), Long.MAX_VALUE, Integer.MAX_VALUE);
+        assert first.getNumberOfWorkers() == 1 && second.getNumberOfWorkers() == 1;
+        assert first.getMemoryBudget() + second.getMemoryBudget() == 64L * 1024 * 1024;
+
+        //a third job waits for a share that is given back, instead of a thread that isn't there
+        CompletableFuture<SortOptions> third = CompletableFuture.supplyAsync(
+                () -> server.lease(SortOptions.builder(0), Long.MAX_VALUE, Integer.MAX_VALUE));
+        try {
+            third.get(200, TimeUnit.MILLISECONDS);
+            assert false;
+        } catch (TimeoutException expected) {
+            //still waiting
+        }
+        server.release(first);
+        SortOptions leased = third.get(10, TimeUnit.SECONDS);
+        assert leased.getNumberOfWorkers() == 1;
+        assert leased.getMemoryBudget() == first.getMemoryBudget();
+        server.stop();
+    }
+}